@@ -0,0 +1,40 @@
+#shader vertex
+#version 330 core
+
+
+// the corner of the shape, with the front pointing along the x axis
+layout(location = 0) in vec2 position;
+
+// the pose of the particle (x, y, theta) and its weight relative to the strongest one
+layout(location = 1) in vec4 particle;
+
+uniform mat4 u_projModelView;
+uniform float u_size;
+
+out vec4 v_Color;
+void main(){
+	// rotate and scale the shape and move it to the particle
+	float c = cos(particle.z), s = sin(particle.z);
+	vec2 corner = u_size * vec2(c * position.x - s * position.y, s * position.x + c * position.y);
+
+	// output the final vertex position
+	gl_Position = u_projModelView * vec4(particle.xy + corner, 0.0, 1.0);
+
+	// weak particles are blue, strong ones red
+	v_Color = vec4(mix(vec3(0.0, 0.0, 1.0), vec3(1.0, 0.0, 0.0), particle.w), 1.0);
+};
+
+
+
+
+
+#shader fragment
+
+#version 330 core
+
+layout(location = 0) out vec4 color;
+
+in vec4 v_Color;
+void main(){
+	color = v_Color;
+};
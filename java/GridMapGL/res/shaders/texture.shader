@@ -0,0 +1,35 @@
+#shader vertex
+#version 330 core
+
+
+layout(location = 0) in vec4 position;
+layout(location = 1) in vec2 texCoord;
+
+uniform mat4 u_projModelView;
+
+out vec2 v_TexCoord;
+void main(){
+	// output the final vertex position
+	gl_Position = u_projModelView * position;
+
+	v_TexCoord = texCoord;
+};
+
+
+
+
+
+#shader fragment
+
+#version 330 core
+
+layout(location = 0) out vec4 color;
+
+// a single channel texture holding the gray level
+uniform sampler2D u_Texture;
+
+in vec2 v_TexCoord;
+void main(){
+	float gray = texture(u_Texture, v_TexCoord).r;
+	color = vec4(gray, gray, gray, 1.0);
+};
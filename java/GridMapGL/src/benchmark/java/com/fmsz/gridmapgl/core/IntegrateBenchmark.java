@@ -0,0 +1,99 @@
+/*******************************************************************************
+ *  Copyright 2018 Anton Berneving
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *******************************************************************************/
+package com.fmsz.gridmapgl.core;
+
+import com.fmsz.gridmapgl.app.Util;
+import com.fmsz.gridmapgl.math.Transform;
+import com.fmsz.gridmapgl.slam.GridMap;
+import com.fmsz.gridmapgl.slam.GridMap.GridMapData;
+import com.fmsz.gridmapgl.slam.Observation;
+import com.fmsz.gridmapgl.slam.Pose;
+import com.fmsz.gridmapgl.slam.RayIterator;
+import com.fmsz.gridmapgl.slam.SensorModel;
+
+import glm_.vec2.Vec2;
+import glm_.vec2.Vec2i;
+
+/**
+ * Micro-benchmark of integrating a 360 beam scan into a map. Compares {@link GridMap#integrateObservation}, with and
+ * without ray templates, against the previous way of applying each measurement, which evaluated a sqrt and a log for each
+ * visited cell.
+ * 
+ * @author Anton
+ *
+ */
+public class IntegrateBenchmark {
+	private static final int BEAMS = 360, WARMUP = 2000, RUNS = 5000;
+
+	public static void main(String[] args) {
+		// a 20x20 m map with 5 cm cells, and a scan where the beams are between 1 and 7 m long
+		GridMap gridMap = new GridMap(20, 20, 0.05f, new Vec2(-10, -10));
+		Observation obs = new Observation();
+		for (int i = 0; i < BEAMS; i++)
+			obs.addMeasurement((float) Math.toRadians(i), (float) (4 + 3 * Math.sin(i * 0.1)), i % 10 != 0);
+		Pose pose = new Pose(0.3f, -0.2f, 0.1f);
+
+		// the same map but replaying precomputed rays
+		GridMap templateMap = new GridMap(20, 20, 0.05f, new Vec2(-10, -10));
+		templateMap.setUseRayTemplates(true);
+
+		GridMapData map = gridMap.createMapData(null);
+		RayIterator rayIterator = new RayIterator(400, 400);
+
+		for (int round = 0; round < 3; round++) {
+			double reference = time(() -> integrateReference(gridMap, map, rayIterator, obs, pose), WARMUP, RUNS);
+			double current = time(() -> gridMap.integrateObservation(map, obs, pose), WARMUP, RUNS);
+			double templates = time(() -> templateMap.integrateObservation(map, obs, pose), WARMUP, RUNS);
+
+			System.out.printf("sqrt + log per cell: %8.1f us/scan, lookup + squared distance: %8.1f us/scan (%.2fx), ray templates: %8.1f us/scan (%.2fx)%n",
+					reference, current, reference / current, templates, reference / templates);
+		}
+	}
+
+	// runs the task and returns the average time in microseconds
+	private static double time(Runnable task, int warmup, int runs) {
+		for (int i = 0; i < warmup; i++)
+			task.run();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < runs; i++)
+			task.run();
+		return (System.nanoTime() - start) / 1000.0 / runs;
+	}
+
+	// the previous implementation of GridMap.integrateObservation and applyMeasurement
+	private static void integrateReference(GridMap gridMap, GridMapData map, RayIterator rayIterator, Observation obs, Pose p) {
+		Vec2 position = gridMap.getPosition();
+		float resolution = gridMap.getResolution();
+		Transform localToWorld = Transform.fromRobotToWorld(p);
+		float startX = (float) ((localToWorld.transformX(0, 0) - position.getX()) / resolution);
+		float startY = (float) ((localToWorld.transformY(0, 0) - position.getY()) / resolution);
+
+		for (int i = 0; i < obs.getNumberOfMeasurements(); i++) {
+			float endX = (float) ((localToWorld.transformX(obs.getLocalX(i), obs.getLocalY(i)) - position.getX()) / resolution);
+			float endY = (float) ((localToWorld.transformY(obs.getLocalX(i), obs.getLocalY(i)) - position.getY()) / resolution);
+			float measuredDistance = obs.getRange(i) / resolution;
+
+			rayIterator.init(startX + 0.5f, startY + 0.5f, endX + 0.5f, endY + 0.5f, 2);
+			while (rayIterator.hasNext()) {
+				Vec2i cell = rayIterator.next();
+				float dX = startX - (cell.getX() + 0.5f), dY = startY - (cell.getY() + 0.5f);
+				float distance = (float) Math.sqrt(dX * dX + dY * dY);
+				map.logData.add(cell.getX(), cell.getY(), Util.logOdds(SensorModel.inverseSensorModel(distance, measuredDistance, obs.wasHit(i), 2)));
+			}
+		}
+	}
+}
@@ -0,0 +1,104 @@
+/*******************************************************************************
+ *  Copyright 2018 Anton Berneving
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *******************************************************************************/
+package com.fmsz.gridmapgl.core;
+
+import java.util.Random;
+
+import com.fmsz.gridmapgl.slam.GridMap;
+import com.fmsz.gridmapgl.slam.GridMap.GridMapData;
+import com.fmsz.gridmapgl.slam.Observation;
+import com.fmsz.gridmapgl.slam.Pose;
+
+import glm_.vec2.Vec2;
+
+/**
+ * Micro-benchmark of scoring an observation against a map. Checks that the batched
+ * {@link GridMap#logProbabilityOf(GridMapData, Observation, Pose)} agrees with the original
+ * {@link GridMap#probabilityOfScalar(GridMapData, Observation, Pose)} and compares their speed.
+ * 
+ * @author Anton
+ *
+ */
+public class ScoringBenchmark {
+	private static final int BEAMS = 360, POSES = 500, WARMUP = 200, RUNS = 500;
+
+	public static void main(String[] args) {
+		// a map of a 4x3 m room, built from a few scans
+		GridMap gridMap = new GridMap(6, 6, 0.05f, new Vec2(-3, -3));
+		GridMapData map = gridMap.createMapData(null);
+		for (int i = 0; i < 5; i++) {
+			Pose pose = new Pose(0.1f * i, 0.05f * i, 0.1f * i);
+			gridMap.integrateObservation(map, scanRoom(pose), pose);
+		}
+		gridMap.computeLikelihoodMap(map);
+
+		// poses around the true one, like the ones the optimizer tries
+		Random rand = new Random(1);
+		Pose[] poses = new Pose[POSES];
+		for (int i = 0; i < POSES; i++)
+			poses[i] = new Pose((float) rand.nextGaussian() * 0.1f, (float) rand.nextGaussian() * 0.1f, (float) rand.nextGaussian() * 0.1f);
+		Observation obs = scanRoom(new Pose(0, 0, 0));
+
+		// check that both implementations agree
+		double maxError = 0;
+		int underflows = 0;
+		for (Pose p : poses) {
+			double scalar = gridMap.probabilityOfScalar(map, obs, p);
+			double log = gridMap.logProbabilityOf(map, obs, p);
+			if (scalar < Double.MIN_NORMAL)
+				underflows++;
+			else
+				maxError = Math.max(maxError, Math.abs(Math.log(scalar) - log));
+		}
+		System.out.printf("max |log(scalar) - batched| = %.3g (%d poses underflowed in the scalar version)%n", maxError, underflows);
+
+		double[] sink = new double[1];
+		for (int round = 0; round < 3; round++) {
+			double scalar = time(() -> {
+				for (Pose p : poses)
+					sink[0] += gridMap.probabilityOfScalar(map, obs, p);
+			});
+			double batched = time(() -> {
+				for (Pose p : poses)
+					sink[0] += gridMap.logProbabilityOf(map, obs, p);
+			});
+			System.out.printf("scalar: %6.2f us/call, batched: %6.2f us/call, speedup %.2fx%n", scalar / POSES, batched / POSES, scalar / batched);
+		}
+	}
+
+	// runs the task and returns the average time in microseconds
+	private static double time(Runnable task) {
+		for (int i = 0; i < WARMUP; i++)
+			task.run();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < RUNS; i++)
+			task.run();
+		return (System.nanoTime() - start) / 1000.0 / RUNS;
+	}
+
+	// simulates a scan of a 4x3 m room centered at the origin, in the local frame of the pose
+	private static Observation scanRoom(Pose pose) {
+		Observation obs = new Observation(BEAMS);
+		for (int i = 0; i < BEAMS; i++) {
+			double angle = Math.toRadians(i), c = Math.cos(angle + pose.theta), s = Math.sin(angle + pose.theta);
+			double t = Math.min(c > 0 ? (2 - pose.x) / c : c < 0 ? (-2 - pose.x) / c : Double.MAX_VALUE,
+					s > 0 ? (1.5 - pose.y) / s : s < 0 ? (-1.5 - pose.y) / s : Double.MAX_VALUE);
+			obs.addMeasurement((float) angle, (float) t, true);
+		}
+		return obs;
+	}
+}
@@ -17,12 +17,14 @@ package com.fmsz.gridmapgl.app;
 
 import java.util.ArrayList;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import com.fmsz.gridmapgl.slam.TimeFrame;
 
 /**
  * Handles the robot data by using a publish/subscribe model. Tries to be thread safe by using thread safe queues for data and calling
- * subscribers only from the main thread.
+ * subscribers only from the main thread. Subscribers that are thread safe themselves can instead subscribe with
+ * {@link #subscribeDirect(IDataSubscriber)} to be called on the publishing thread, without waiting for the main thread.
  */
 public class DataEventHandler {
 	// static instance variable
@@ -36,10 +38,16 @@ public class DataEventHandler {
 		return instance;
 	}
 
-	private final ArrayBlockingQueue<TimeFrame> frameQueue = new ArrayBlockingQueue<>(20);
+	/** the maximum number of events waiting for the main thread, {@link #publish(TimeFrame)} blocks when it is full */
+	public static final int QUEUE_SIZE = 20;
+
+	private final ArrayBlockingQueue<TimeFrame> frameQueue = new ArrayBlockingQueue<>(QUEUE_SIZE);
 
 	private ArrayList<IDataSubscriber> subscribers = new ArrayList<>();
 
+	// called on the publishing thread, may be changed while a frame is being published
+	private final CopyOnWriteArrayList<IDataSubscriber> directSubscribers = new CopyOnWriteArrayList<>();
+
 	// Private constructor
 	private DataEventHandler() {
 	}
@@ -55,17 +63,30 @@ public class DataEventHandler {
 			subscribers.add(sub);
 	}
 
+	/**
+	 * Subscribe to get notified on the publishing thread as soon as new data arrives. The subscriber must be thread safe, and
+	 * may block the publisher (for example a connection thread) but never the main thread.
+	 */
+	public void subscribeDirect(IDataSubscriber sub) {
+		directSubscribers.addIfAbsent(sub);
+	}
+
 	/** Remove subscription to get notified when new data arrives */
 	public void unSubscribe(IDataSubscriber sub) {
 		subscribers.remove(sub);
+		directSubscribers.remove(sub);
 	}
 
-	/** Publish new data */
+	/** Publish new data, the direct subscribers are notified right away and the others by {@link #handleEvents(int)} */
 	public void publish(TimeFrame frame) {
+		for (IDataSubscriber sub : directSubscribers)
+			sub.onHandleData(frame);
+
 		try {
 			frameQueue.put(frame);
 		} catch (InterruptedException e) {
-			e.printStackTrace();
+			// keep the interrupt so that a publishing thread waiting for room in the queue can still be stopped
+			Thread.currentThread().interrupt();
 		}
 	}
 
@@ -15,10 +15,6 @@
  *******************************************************************************/
 package com.fmsz.gridmapgl.app;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
@@ -30,8 +26,6 @@ import java.util.ArrayList;
 import java.util.List;
 
 import com.fmsz.gridmapgl.app.DataEventHandler.IDataSubscriber;
-import com.fmsz.gridmapgl.slam.Observation;
-import com.fmsz.gridmapgl.slam.Odometry;
 import com.fmsz.gridmapgl.slam.TimeFrame;
 
 import glm_.vec2.Vec2;
@@ -44,6 +38,10 @@ import kotlin.reflect.KMutableProperty0;
 
 /**
  * A class for recording incoming observation and odometry information. Also does playback and saving/loading from file
+ *
+ * The playback runs on its own thread, which hands the frames straight to the {@link SLAMThread} and waits there when the
+ * SLAM falls behind, so that neither waits for the rendering. The recording and the GUI run on the main thread, and the
+ * frames and loaded recording are only touched by the main thread while no playback is running.
  */
 public class DataRecorder implements IDataSubscriber {
 
@@ -56,6 +54,13 @@ public class DataRecorder implements IDataSubscriber {
 	/** Stores all recorded TimeFrames */
 	private ArrayList<RecordedTimeFrame> frames = new ArrayList<RecordedTimeFrame>();
 
+	/** A recording loaded from disk, its frames are read on demand when replayed instead of being kept in frames */
+	private RecordingFile.Reader loadedRecording = null;
+
+	/** Writes the frames straight to the selected file while recording, instead of keeping them in frames */
+	private RecordingFile.Writer recordingWriter = null;
+	private boolean[] streamToFile = { false };
+
 	/** Weather or not we are currently recording */
 	// private boolean isRecording = false;
 
@@ -69,19 +74,41 @@ public class DataRecorder implements IDataSubscriber {
 		}
 	}
 
-	private State currentState = State.IDLE;
+	// the state, time and frame counter are written by the playback thread while it runs, and read by the GUI
+	private volatile State currentState = State.IDLE;
 
 	/** Holds the current time, in seconds */
-	private float currentTime = 0;
+	private volatile float currentTime = 0;
 
 	/** The number of frames recorded or replayed */
-	private int frameCounter = 0;
+	private volatile int frameCounter = 0;
 
-	private boolean forceNext = false;
-	private boolean paused = false;
-	private boolean running = false;
+	/** how long the playback thread sleeps while waiting for the time stamp of the next frame, in milliseconds */
+	private static final long REPLAY_POLL_INTERVAL = 1;
+
+	private volatile boolean forceNext = false;
+	private volatile boolean paused = false;
+	private volatile boolean running = false;
 
 	private boolean[] pausedArray = { false };
+
+	// fast replay ignores the timestamps and processes the frames back to back, optionally stopping after a number of frames.
+	// The GUI values are copied for the playback thread
+	private boolean[] fastReplay = { false };
+	private int[] stopAfter = { 0 };
+	private volatile boolean fast = false;
+	private volatile int lastReplayFrame = 0;
+
+	/** the SLAM the frames are replayed into, and the thread replaying them */
+	private final SLAMThread slamThread;
+	private Thread replayThread = null;
+
+	// the time stamp of the next frame to replay, as read by the playback thread
+	private volatile float nextTimeStamp;
+
+	// throughput of the current replay, counted in frames processed by the SLAM thread
+	private long replayStartTime, replayTime;
+	private int replayStartFrame, replayProcessedFrames;
 	private int[] modeSelectArray = { 1 };
 	private KMutableProperty0<Boolean> recorderOpen = new MutableProperty0<>(true);
 
@@ -96,11 +123,17 @@ public class DataRecorder implements IDataSubscriber {
 
 	private String rootDirectory = "maps";
 
-	public DataRecorder() {
+	public DataRecorder(SLAMThread slamThread) {
+		this.slamThread = slamThread;
 		DataEventHandler.getInstance().subscribe(this);
 		refreshFileList();
 	}
 
+	/** Stops the playback, must be called before the SLAM thread is shut down */
+	public void dispose() {
+		endPlayback();
+	}
+
 	public void doGUI(ImGui imgui) {
 		if (imgui.begin("Recorder", recorderOpen, 0)) {
 			// select recording slot?
@@ -170,9 +203,11 @@ public class DataRecorder implements IDataSubscriber {
 			}
 			imgui.sameLine(0, 4);
 			if (imgui.button("Clear", new Vec2())) {
+				endPlayback();
 				currentTime = 0;
 				frameCounter = 0;
 				frames.clear();
+				closeLoadedRecording();
 			}
 
 			/*
@@ -188,7 +223,7 @@ public class DataRecorder implements IDataSubscriber {
 			*/
 			// show status, how many samples we have taken and have left
 			imgui.text("State: %s", currentState.description);
-			imgui.text("Frames: %d/%d", frameCounter, frames.size());
+			imgui.text("Frames: %d/%d", frameCounter, recordingWriter != null ? recordingWriter.getFrameCount() : getFrameCount());
 
 			// show current playback and recording time
 			imgui.text("Time: %4.2f s", currentTime);
@@ -218,6 +253,9 @@ public class DataRecorder implements IDataSubscriber {
 				if (imgui.buttonEx("Stop", new Vec2(), (running ? 0 : ButtonFlag.Disabled.getI()))) {
 					endRecording();
 				}
+
+				// takes effect when the next recording starts
+				imgui.checkbox("Stream to File", streamToFile);
 			} else { // replay
 				if (imgui.buttonEx("Start", new Vec2(), (running ? ButtonFlag.Disabled.getI() : 0))) {
 					// begin replay
@@ -239,8 +277,31 @@ public class DataRecorder implements IDataSubscriber {
 					endPlayback();
 				}
 
-				if (frameCounter < frames.size())
-					imgui.text("Next Frame: %.2f", frames.get(frameCounter).timeStamp);
+				imgui.checkbox("Fast", fastReplay);
+				imgui.sameLine(0, 4);
+				imgui.inputInt("Stop After", stopAfter, 1, 100, 0);
+				stopAfter[0] = Math.max(stopAfter[0], 0);
+				fast = fastReplay[0];
+				lastReplayFrame = getLastReplayFrame();
+
+				// the loaded recording belongs to the playback thread while it runs
+				int counter = frameCounter;
+				if (counter < getFrameCount())
+					imgui.text("Next Frame: %.2f", running ? nextTimeStamp : getTimeStamp(counter));
+
+				// progress of the replay, and the throughput of the SLAM thread since the replay started. The time is taken
+				// when the last frame was processed, so that the frames still queued are not counted until they are done
+				int last = lastReplayFrame;
+				imgui.progressBar(last > 0 ? counter / (float) last : 0, new Vec2(-1, 0), counter + "/" + last);
+				int processed = slamThread.getFrameCount() - replayStartFrame;
+				if (currentState == State.REPLAY && processed > replayProcessedFrames) {
+					replayProcessedFrames = processed;
+					replayTime = System.nanoTime() - replayStartTime;
+				}
+				if (replayProcessedFrames > 0) {
+					double seconds = replayTime / 1e9;
+					imgui.text("Throughput: %.1f frames/s, %.1f ms/frame", replayProcessedFrames / seconds, seconds * 1000 / replayProcessedFrames);
+				}
 			}
 		}
 		// end the window
@@ -299,11 +360,28 @@ public class DataRecorder implements IDataSubscriber {
 	}
 
 	private void beginRecording() {
+		endPlayback();
 		running = true;
 		currentState = State.RECORD;
 		currentTime = 0;
 		frameCounter = 0;
 		frames.clear();
+		closeLoadedRecording();
+
+		// write the frames to the selected file as they arrive, so that the memory used stays the same however long the
+		// recording is, and a crash only loses the last few seconds
+		if (streamToFile[0]) {
+			if (currentSelectedFile == null) {
+				System.err.println("[DataRecorder] No file selected, recording to memory");
+			} else {
+				try {
+					recordingWriter = RecordingFile.create(currentSelectedFile);
+				} catch (IOException e) {
+					System.err.println("Error opening file: " + currentSelectedFile.toAbsolutePath().toString());
+					e.printStackTrace();
+				}
+			}
+		}
 	}
 
 	private void endRecording() {
@@ -311,19 +389,62 @@ public class DataRecorder implements IDataSubscriber {
 		paused = false;
 
 		currentState = State.IDLE;
+
+		// finish the streamed file and open it for replay
+		if (recordingWriter != null) {
+			closeRecordingWriter();
+			load(currentSelectedFile);
+		}
+	}
+
+	private void closeRecordingWriter() {
+		try {
+			recordingWriter.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		recordingWriter = null;
 	}
 
 	private void beginPlayback() {
+		// wait for the thread of an earlier playback that ended by itself
+		endPlayback();
+
 		running = true;
 		currentState = State.REPLAY;
 		currentTime = 0;
 		frameCounter = 0;
+		lastReplayFrame = getLastReplayFrame();
+
+		replayStartTime = System.nanoTime();
+		replayStartFrame = slamThread.getFrameCount();
+		replayProcessedFrames = 0;
+		replayTime = 0;
+
+		replayThread = new Thread(this::replay, "Replay");
+		replayThread.setDaemon(true);
+		replayThread.start();
 	}
 
+	// stops the playback thread, if any, and waits for it to finish. Does nothing while recording
 	private void endPlayback() {
+		if (currentState != State.REPLAY && replayThread == null)
+			return;
+
 		running = false;
 		paused = false;
 
+		if (replayThread != null) {
+			// wakes the thread if it is waiting for room in the SLAM thread's queue
+			replayThread.interrupt();
+			try {
+				replayThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			replayThread = null;
+		}
+
 		currentState = State.IDLE;
 	}
 
@@ -332,35 +453,104 @@ public class DataRecorder implements IDataSubscriber {
 			forceNext = true;
 	}
 
-	/** Allows this recorder to update its' internal state and publish data if playback is active */
+	/** Allows this recorder to update its' internal state, the playback keeps its own time on the playback thread */
 	public void update(float delta) {
-		if (running && !paused)
+		if (currentState == State.RECORD && running && !paused)
 			currentTime += delta;
+	}
 
-		if (currentState == State.REPLAY)
-			// exit replay state if there are no more to replay
-			if (frameCounter >= frames.size()) {
-				endPlayback();
+	// runs on the playback thread, hands the frames to the SLAM thread at their time stamps (or back to back in fast mode)
+	// until the last one or until the playback is stopped
+	private void replay() {
+		long lastTime = System.nanoTime();
+		while (running && !Thread.currentThread().isInterrupted() && frameCounter < lastReplayFrame) {
+			// fast mode does not follow the clock
+			long now = System.nanoTime();
+			if (!paused && !fast)
+				currentTime += (now - lastTime) / 1e9f;
+			lastTime = now;
+
+			// stop if the loaded recording could not be read
+			float timeStamp = getTimeStamp(frameCounter);
+			if (timeStamp < 0)
+				break;
+			nextTimeStamp = timeStamp;
+
+			if (forceNext || (!paused && (fast || currentTime >= timeStamp))) {
+				// move time forwards if we forced or do not follow the clock
+				if (forceNext || fast)
+					currentTime = timeStamp;
+
+				forceNext = false;
+
+				// post this frame, waits while the SLAM thread is behind
+				TimeFrame frame = getFrame(frameCounter);
+				if (frame != null)
+					slamThread.submit(frame);
+				frameCounter++;
 			} else {
+				try {
+					Thread.sleep(REPLAY_POLL_INTERVAL);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+
+		// exit replay state, unless the playback was stopped from the main thread which does so itself
+		if (running) {
+			running = false;
+			paused = false;
+			currentState = State.IDLE;
+		}
+	}
+
+	// returns the index after the last frame to replay
+	private int getLastReplayFrame() {
+		return stopAfter[0] > 0 ? Math.min(stopAfter[0], getFrameCount()) : getFrameCount();
+	}
 
-				// handle posting possible new data
-				RecordedTimeFrame frame = frames.get(frameCounter);
-				if (currentTime >= frame.timeStamp || forceNext) {
+	// returns the number of frames that can be replayed, either recorded or loaded
+	private int getFrameCount() {
+		return loadedRecording != null ? loadedRecording.getFrameCount() : frames.size();
+	}
 
-					// move time forwards if we forced
-					if (forceNext)
-						currentTime = frame.timeStamp;
+	// returns the time stamp of a recorded or loaded frame, or -1 if it could not be read
+	private float getTimeStamp(int index) {
+		if (loadedRecording == null)
+			return frames.get(index).timeStamp;
 
-					forceNext = false;
+		try {
+			return loadedRecording.getTimeStamp(index);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return -1;
+		}
+	}
 
-					// post this frame
-					DataEventHandler.getInstance().publish(frame.frame);
+	// returns a recorded or loaded frame, or null if it could not be read
+	private TimeFrame getFrame(int index) {
+		if (loadedRecording == null)
+			return frames.get(index).frame;
 
-					frameCounter++;
+		try {
+			return loadedRecording.get(index);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
 
-				}
-			}
+	private void closeLoadedRecording() {
+		if (loadedRecording == null)
+			return;
 
+		try {
+			loadedRecording.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		loadedRecording = null;
 	}
 
 	@Override
@@ -368,67 +558,79 @@ public class DataRecorder implements IDataSubscriber {
 		// handle new measurement here ( only in recording mode)
 		if (currentState == State.RECORD && !paused) {
 
-			RecordedTimeFrame recFrame = new RecordedTimeFrame();
-			recFrame.frame = frame;
-			recFrame.timeStamp = currentTime;
-			frames.add(recFrame);
+			if (recordingWriter != null) {
+				try {
+					recordingWriter.append(frame, currentTime);
+				} catch (IOException e) {
+					System.err.println("[DataRecorder] Could not write the recording, stopping");
+					e.printStackTrace();
+					endRecording();
+					return;
+				}
+			} else {
+				RecordedTimeFrame recFrame = new RecordedTimeFrame();
+				recFrame.frame = frame;
+				recFrame.timeStamp = currentTime;
+				frames.add(recFrame);
+			}
 
 			frameCounter++;
 		}
 	}
 
-	/** Saves the current recording to disk */
+	/** Saves the current recording to disk, see {@link RecordingFile} for the format */
 	public void save(Path file) {
-		// use try-with-resource statement (ensures the file is closed even after possible exception
-		try (FileOutputStream fos = new FileOutputStream(file.toFile(), false); DataOutputStream dos = new DataOutputStream(fos);) {
-
-			// write header
-			dos.writeByte(0xff);
-
-			// write all data
-			dos.writeShort(frames.size());
-			for (RecordedTimeFrame rtf : frames) {
-				dos.writeFloat(rtf.timeStamp);
-				ObjectSerializer.writeOdometry(dos, rtf.frame.u);
-				ObjectSerializer.writeObservation(dos, rtf.frame.z);
-			}
-			fos.flush();
-		} catch (IOException e) {
-			System.err.println("Error opening file: " + file.toAbsolutePath().toString());
-			e.printStackTrace();
-		}
-	}
-
-	/** loads a recording from disk */
-	public void load(Path file) {
+		endPlayback();
 
-		try (FileInputStream fis = new FileInputStream(file.toFile()); DataInputStream dis = new DataInputStream(fis)) {
-
-			// open the file
-			// fis = new FileInputStream(filename);
-			// dis = new DataInputStream(fis);
+		// a streamed recording is already on disk, and file may be the one being written
+		if (recordingWriter != null) {
+			System.err.println("[DataRecorder] Stop the recording before saving");
+			return;
+		}
 
-			// correct "header" byte?
-			byte b;
-			if ((b = dis.readByte()) != (byte) 0xff) {
-				dis.close();
-				throw new IllegalStateException("Error opening file, header byte is not correct! Wanted " + 0xff + ", got " + b);
+		List<TimeFrame> recorded = new ArrayList<>(getFrameCount());
+		List<Float> timeStamps = new ArrayList<>(getFrameCount());
+		for (int i = 0; i < getFrameCount(); i++) {
+			TimeFrame frame = getFrame(i);
+			if (frame != null) {
+				recorded.add(frame);
+				timeStamps.add(getTimeStamp(i));
 			}
+		}
 
-			// load stuff here
-			short length = dis.readShort();
+		// the loaded file may be the one being overwritten, keep the frames in memory from now on
+		if (loadedRecording != null) {
+			closeLoadedRecording();
 			frames.clear();
-			for (int i = 0; i < length; i++) {
+			for (int i = 0; i < recorded.size(); i++) {
 				RecordedTimeFrame rtf = new RecordedTimeFrame();
-				rtf.timeStamp = dis.readFloat();
-				Odometry u = ObjectSerializer.readOdometry(dis);
-				//System.out.println(u.dCenter + ", " + u.dTheta);
-				Observation z = ObjectSerializer.readObservation(dis);
-				rtf.frame = new TimeFrame(z, u);
-
+				rtf.frame = recorded.get(i);
+				rtf.timeStamp = timeStamps.get(i);
 				frames.add(rtf);
 			}
+		}
 
+		try {
+			RecordingFile.write(file, recorded, timeStamps);
+		} catch (IOException e) {
+			System.err.println("Error opening file: " + file.toAbsolutePath().toString());
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * loads a recording from disk, in either the current or the original format. The file is only opened, the frames are
+	 * read from it as they are replayed.
+	 */
+	public void load(Path file) {
+		endPlayback();
+		frames.clear();
+		closeLoadedRecording();
+
+		try {
+			loadedRecording = RecordingFile.open(file);
+			if (loadedRecording.isRecovered())
+				System.err.println(file + " was not closed, recovered " + loadedRecording.getFrameCount() + " frames");
 		} catch (IOException e) {
 			System.err.println("Error opening file " + file.toAbsolutePath().toString());
 			e.printStackTrace();
@@ -17,21 +17,29 @@ package com.fmsz.gridmapgl.app;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.fmsz.gridmapgl.app.DataEventHandler.IDataSubscriber;
+import com.fmsz.gridmapgl.app.SLAMThread.Snapshot;
 import com.fmsz.gridmapgl.conn.ConnectionManager;
 import com.fmsz.gridmapgl.graphics.Camera;
 import com.fmsz.gridmapgl.graphics.Color;
+import com.fmsz.gridmapgl.graphics.GridMapRenderer;
+import com.fmsz.gridmapgl.graphics.ParticleRenderer;
 import com.fmsz.gridmapgl.graphics.ShapeRenderer;
 import com.fmsz.gridmapgl.graphics.ShapeRenderer.ShapeType;
 import com.fmsz.gridmapgl.math.MathUtil;
 import com.fmsz.gridmapgl.math.Transform;
+import com.fmsz.gridmapgl.slam.GridMap;
+import com.fmsz.gridmapgl.slam.GridMap.CellStorage;
 import com.fmsz.gridmapgl.slam.GridMap.GridMapData;
+import com.fmsz.gridmapgl.slam.GridMap.LikelihoodField;
+import com.fmsz.gridmapgl.slam.GridMap.PoseOptimizer;
 import com.fmsz.gridmapgl.slam.Observation;
-import com.fmsz.gridmapgl.slam.Observation.Measurement;
 import com.fmsz.gridmapgl.slam.Pose;
 import com.fmsz.gridmapgl.slam.SLAM;
 import com.fmsz.gridmapgl.slam.SLAM.Particle;
+import com.fmsz.gridmapgl.slam.TiledGrid;
 import com.fmsz.gridmapgl.slam.TimeFrame;
 
 import glm_.vec2.Vec2;
@@ -51,6 +59,12 @@ public class GridMapApp implements IApplication, IDataSubscriber {
 	// the global ShapeRenderer used for drawing primitive types
 	private ShapeRenderer rend;
 
+	// draws the map as a texture
+	private GridMapRenderer gridMapRenderer;
+
+	// draws the particles with one instanced draw call
+	private ParticleRenderer particleRenderer;
+
 	///////////////// GUI STUFFS ////////////////////////
 	// global ImGUI instance
 	private ImGui imgui = ImGui.INSTANCE;
@@ -74,6 +88,23 @@ public class GridMapApp implements IApplication, IDataSubscriber {
 
 	private boolean[] automaticResampling = new boolean[] { true };
 
+	private int[] slamThreads = new int[] { SLAM.getDefaultParallelism() };
+
+	private boolean[] distanceLikelihood = new boolean[] { false };
+
+	private boolean[] rayTemplates = new boolean[] { false };
+
+	private List<String> poseOptimizerNames = new ArrayList<>();
+	private int[] poseOptimizer = new int[] { PoseOptimizer.BOBYQA.ordinal() };
+
+	private int[] refinedParticles = new int[] { 500 };
+
+	// the size, resolution and cell storage used when recreating the map
+	private float[] mapSize = new float[] { 6.0f };
+	private float[] mapResolution = new float[] { 0.05f };
+	private List<String> cellStorageNames = new ArrayList<>();
+	private int[] cellStorage = new int[] { CellStorage.DOUBLE.ordinal() };
+
 	private int[] selectedParticle = new int[] { 0 };
 
 	private List<String> mapDrawSelectStrings = new ArrayList<>();
@@ -93,145 +124,80 @@ public class GridMapApp implements IApplication, IDataSubscriber {
 	private ConnectionManager serial;
 
 	private SLAM slam;
-	private double neff;
+
+	// runs the SLAM, which must only be accessed through it, and the state published by it used for this frame
+	private SLAMThread slamThread;
+	private Snapshot snapshot;
 
 	private DataRecorder recorder;
 
-	private Observation lastObservation, lastRawObservation;
 	// private float lastObservationLikelihood = 0;
 
-	private Pose currentCombinedPose = null;
-
-	private Particle strongestParticle = null;
-
 	private GridMapData combinedGrid = null;
 
+	// a combined grid calculated by the SLAM thread, not yet taken by the render thread
+	private final AtomicReference<GridMapData> newCombinedGrid = new AtomicReference<>();
+
 	@Override
 	public void init() {
 		mapDrawSelectStrings.add(MAP_STRONGEST, "Strongest Particle");
 		mapDrawSelectStrings.add(MAP_SPECIFIC, "Specific Particle");
 		mapDrawSelectStrings.add(MAP_COMBINED, "Combined Map");
+		for (CellStorage storage : CellStorage.values())
+			cellStorageNames.add(storage.name());
+		for (PoseOptimizer optimizer : PoseOptimizer.values())
+			poseOptimizerNames.add(optimizer.name());
 
 		// initialize the global ShapeRenderer
 		rend = new ShapeRenderer();
+		gridMapRenderer = new GridMapRenderer();
+		particleRenderer = new ParticleRenderer();
 
 		// gridMap = new GridMap(6.0f, 6.0f, 0.05f, new Vec2(-3, -3));
 		// mapData = gridMap.createMapData(null);
 
 		serial = new ConnectionManager();
 
-		slam = new SLAM();
-		strongestParticle = slam.getStrongestParticle();
+		slam = new SLAM(mapSize[0], mapSize[0], mapResolution[0], CellStorage.values()[cellStorage[0]]);
+		slam.setParallelism(slamThreads[0]);
+
+		slamThread = new SLAMThread(slam);
+		readSnapshot();
+		slamThread.start();
 
-		recorder = new DataRecorder();
+		recorder = new DataRecorder(slamThread);
 
-		DataEventHandler.getInstance().subscribe(this);
+		// frames are handed to the SLAM thread by the thread receiving them, so the rendering never waits for the SLAM
+		DataEventHandler.getInstance().subscribeDirect(this);
 
 	}
 
 	@Override
 	public void onHandleData(TimeFrame frame) {
-		// set last observation to the raw one
-		lastRawObservation = frame.z;
-
-		//System.out.printf("[Odemetry] Rot=%.2f (%.2f), D=%.2f \n", frame.u.dTheta, frame.u.dTheta * MathUtil.RAD_TO_DEG, frame.u.dCenter);
-
-		// create new observation containing corrected data
-		lastObservation = new Observation();
-
-		// compensate for the rotation in the odometry before processing the observation
-		int i = 0;
-		int length = frame.z.getNumberOfMeasurements();
-		for (Measurement m : frame.z.getMeasurements()) {
-
-			// compensate rotation of robot
-
-			// calculate negative "time factor" since we want to transform "back" the measurement
-			double d_i = -(length - i) / (double) length;
-
-			// measurement coordinates in robot's coordinate system
-			// double x_p = m.distance * MathUtil.cos(m.angle);
-			// double y_p = m.distance * MathUtil.sin(m.angle);
-
-			// calculate difference in angle and x (forward) motion
-			double delta_theta = frame.u.dTheta * d_i;
-			double delta_x = frame.u.dCenter * d_i;
-
-			// rotate measurement point and apply x-movement
-			// double x_a = x_p * MathUtil.cos(delta_theta) - y_p * MathUtil.sin(delta_theta) + delta_x;
-			// double y_a = x_p * MathUtil.sin(delta_theta) + y_p * MathUtil.cos(delta_theta);
-
-			// calculate new coordinates for this measurement (in local coordinate frame) by adding rotation and translation
-			// component
-			double x_a = m.distance * MathUtil.cos(m.angle + delta_theta) + delta_x;
-			double y_a = m.distance * MathUtil.sin(m.angle + delta_theta);
-
-			// add new measurement
-			lastObservation.addMeasurement(new Measurement(x_a, y_a, m.wasHit, 0));
-
-			// increase count
-			i++;
-
-		}
-
-		long start = System.currentTimeMillis();
-		neff = slam.update(lastObservation, frame.u);
-
-		long timeTaken = System.currentTimeMillis() - start;
-
-		System.out.println("SLAM Update took " + timeTaken + "ms");
-
-		// only resample if supposed to
-		if (automaticResampling[0] && neff < slam.getParticles().size() / 2)
-			slam.resample();
-
-		// note that the strongest particle may no longer be correct as resampling has happened and the particle may no longer
-		// be active!
-		strongestParticle = slam.getStrongestParticle();
-
-		currentCombinedPose = slam.getWeightedPose();
-
-		System.out.println(currentCombinedPose);
-
-		/*
-		// lastObservation.computeEndPoints();
-		// gmap.processObservation(lastObservation);
-		
-		currentPose = gridMap.findBestPose(mapData, lastObservation, currentPose);
-		
-		// calculate probability of observation
-		gridMap.rays.clear();
-		// double prob = gmap.probabilityOf(lastObservation, currentPose);
-		
-		// System.out.println(prob);
-		
-		gridMap.integrateObservation(mapData, lastObservation, currentPose);
-		gridMap.computeLikelihoodMap(mapData);
-		
-		*/
+		// let the SLAM thread process it, runs on the thread publishing the frame
+		slamThread.submit(frame);
 	}
 
 	@Override
 	public void render(float delta, Camera cam) {
-		// process data first
-		DataEventHandler.getInstance().handleEvents(1);
+		// let the recorder see the new frames, and use the latest state from the SLAM thread for this frame
+		DataEventHandler.getInstance().handleEvents(DataEventHandler.QUEUE_SIZE);
+		readSnapshot();
 
 		// do a GUI for the GridMap
 		if (imgui.begin("Grid Map", gridmapOpen, 0)) {
-			/*
+			// the cell below the mouse in the map of the strongest particle
+			GridMap gridMap = snapshot.gridMap;
 			if (gridMap.pointInMap(mousePos)) {
-				
-				double value = gridMap.getRawAt(mapData, mousePos);
-			
+				double value = gridMap.getRawAt(snapshot.strongestMap, mousePos);
+
 				imgui.text("Prob: %.2f (%.2f)", Util.invLogOdds(value), value);
-				imgui.text("LHFD: %.2f", gridMap.getLikelihood(mapData, mousePos));
-			
+				imgui.text("LHFD: %.2f", gridMap.getLikelihood(snapshot.strongestMap, mousePos));
 			} else {
 				imgui.text("Prob: -.-- (-.--)");
 				imgui.text("LHFD: -.-- ");
 			}
-			*
-			*/
+
 			/*
 			KMutableProperty0<Boolean> prop = new JavaProp<>(() -> {
 				//System.out.println("Get");
@@ -264,12 +230,13 @@ public class GridMapApp implements IApplication, IDataSubscriber {
 						break;
 
 					case MAP_SPECIFIC:
-						imgui.sliderInt("Particle", selectedParticle, 0, 0, slam.getParticles().size() - 1, "%.0f", SliderFlag.None.getI());
+						if (imgui.sliderInt("Particle", selectedParticle, 0, 0, snapshot.particleCount - 1, "%.0f", SliderFlag.None.getI()))
+							slamThread.setSelectedParticle(selectedParticle[0]);
 						break;
 
 					case MAP_COMBINED:
 						if (imgui.button("Calculate Combined Grid", new Vec2())) {
-							calculateCombined();
+							slamThread.invokeLater(slam -> newCombinedGrid.set(calculateCombined(slam)));
 						}
 						break;
 					}
@@ -300,22 +267,72 @@ public class GridMapApp implements IApplication, IDataSubscriber {
 
 			imgui.setNextItemOpen(true, Cond.FirstUseEver);
 			if (imgui.collapsingHeader("SLAM Options", 0)) {
-				imgui.text("Neff: %.3f", neff);
+				imgui.text("Neff: %.3f", snapshot.neff);
+				imgui.text("Frames: %d (%d queued)", snapshot.frames, SLAMThread.QUEUE_SIZE - slamThread.getRemainingCapacity());
+				imgui.text("Update: %.1f ms", snapshot.updateTime / 1e6);
+
+				// everything changing the SLAM runs on the SLAM thread
+				if (imgui.button("Resample", new Vec2()))
+					slamThread.resample();
 
-				if (imgui.button("Resample", new Vec2())) {
-					slam.resample();
-					neff = slam.calculateNeff();
+				if (imgui.checkbox("Automatic Resampling", automaticResampling))
+					slamThread.setAutomaticResampling(automaticResampling[0]);
+
+				// number of threads used when updating the particles
+				if (imgui.sliderInt("Threads", slamThreads, 0, 1, Runtime.getRuntime().availableProcessors(), "%.0f", SliderFlag.None.getI())) {
+					int threads = slamThreads[0];
+					slamThread.invokeLater(slam -> slam.setParallelism(threads));
+				}
+
+				// how the likelihood field is computed
+				if (imgui.checkbox("Distance Likelihood Field", distanceLikelihood)) {
+					LikelihoodField field = distanceLikelihood[0] ? LikelihoodField.DISTANCE_TRANSFORM : LikelihoodField.GAUSSIAN_BLUR;
+					slamThread.invokeLater(slam -> slam.getGridMap().setLikelihoodField(field));
+				}
+
+				// replay precomputed rays instead of tracing each one
+				if (imgui.checkbox("Ray Templates", rayTemplates)) {
+					boolean useTemplates = rayTemplates[0];
+					slamThread.invokeLater(slam -> slam.getGridMap().setUseRayTemplates(useTemplates));
+				}
+
+				// how the particle poses are refined, CORRELATIVE searches a window around each pose before refining it
+				if (imgui.combo("Pose Optimizer", poseOptimizer, poseOptimizerNames, 3)) {
+					PoseOptimizer optimizer = PoseOptimizer.values()[poseOptimizer[0]];
+					slamThread.invokeLater(slam -> slam.getGridMap().setPoseOptimizer(optimizer));
 				}
 
-				imgui.checkbox("Automatic Resampling", automaticResampling);
+				// how many particles are refined by the scan matcher, the others are only given a coarse score
+				if (imgui.sliderInt("Refined Particles", refinedParticles, 0, 0, snapshot.particleCount, "%.0f", SliderFlag.None.getI())) {
+					int refined = refinedParticles[0];
+					slamThread.invokeLater(slam -> slam.setRefinedParticles(refined));
+				}
+				imgui.text("Coarse: %d (%.1f ms)", snapshot.coarseScored, snapshot.coarseStageTime / 1e6);
+				imgui.text("Refined: %d (%.1f ms)", snapshot.refined, snapshot.refineStageTime / 1e6);
 
 				// button for resetting the map and stuff
-				if (imgui.button("Reset", new Vec2())){
-					slam.reset();
-					lastObservation = null;
-					lastRawObservation = null;
-					strongestParticle = slam.getStrongestParticle();
-					currentCombinedPose = null;
+				if (imgui.button("Reset", new Vec2()))
+					slamThread.reset();
+
+				// the size and cell storage of the maps, changing them recreates the map and resets the SLAM
+				imgui.setNextItemOpen(false, Cond.FirstUseEver);
+				if (imgui.treeNode("Map")) {
+					imgui.text("Cells: %.0fx%.0f, %s", snapshot.gridMap.getWorldSize().getX() / snapshot.gridMap.getResolution(),
+							snapshot.gridMap.getWorldSize().getY() / snapshot.gridMap.getResolution(), snapshot.gridMap.getCellStorage());
+
+					imgui.dragFloat("Size", mapSize, 0, 0.5f, 1, 100, "%.1f m", SliderFlag.None.getI());
+					imgui.dragFloat("Resolution", mapResolution, 0, 0.005f, 0.01f, 0.5f, "%.3f m", SliderFlag.None.getI());
+					imgui.combo("Storage", cellStorage, cellStorageNames, 3);
+
+					if (imgui.button("Recreate Map", new Vec2())) {
+						float size = mapSize[0], resolution = mapResolution[0];
+						CellStorage storage = CellStorage.values()[cellStorage[0]];
+						slamThread.invokeLater(slam -> slam.recreateGridMap(size, size, resolution, storage));
+						slamThread.reset();
+					}
+
+					// end node
+					imgui.treePop();
 				}
 			}
 
@@ -377,11 +394,11 @@ public class GridMapApp implements IApplication, IDataSubscriber {
 
 		switch (mapDrawSelectArray[0]) {
 		case MAP_STRONGEST:
-			mapToRender = strongestParticle != null ? strongestParticle.m : null;
+			mapToRender = snapshot.strongestMap;
 			break;
 
 		case MAP_SPECIFIC:
-			mapToRender = slam.getParticles().get(selectedParticle[0]).m;
+			mapToRender = snapshot.selectedMap;
 			break;
 
 		case MAP_COMBINED:
@@ -390,22 +407,25 @@ public class GridMapApp implements IApplication, IDataSubscriber {
 		}
 
 		if (mapToRender != null)
-			slam.getGridMap().render(rend, mapToRender, drawGridLines[0], drawLikelihood[0]);
+			gridMapRenderer.render(rend, cam, snapshot.gridMap, mapToRender, drawGridLines[0], drawLikelihood[0]);
 
 		// draw the last observation
+		final Observation lastObservation = snapshot.observation, lastRawObservation = snapshot.rawObservation;
 		if (lastObservation != null && drawLastObservation[0]) {
-			Pose basePose = mapDrawSelectArray[0] == MAP_SPECIFIC ? slam.getParticles().get(selectedParticle[0]).pose : strongestParticle.pose;
+			Pose basePose = mapDrawSelectArray[0] == MAP_SPECIFIC ? snapshot.selectedPose : snapshot.strongestPose;
 
 			Transform localToWorld = Transform.fromRobotToWorld(basePose);
 
 			rend.begin(ShapeType.LINE);
 
-			for (Measurement m : lastObservation.getMeasurements()) {
-				rend.line(basePose.x, basePose.y, (float) localToWorld.transformX(m.localX, m.localY), (float) localToWorld.transformY(m.localX, m.localY), (m.wasHit ? Color.GREEN : Color.RED));
+			for (int i = 0; i < lastObservation.getNumberOfMeasurements(); i++) {
+				float x = lastObservation.getLocalX(i), y = lastObservation.getLocalY(i);
+				rend.line(basePose.x, basePose.y, (float) localToWorld.transformX(x, y), (float) localToWorld.transformY(x, y), (lastObservation.wasHit(i) ? Color.GREEN : Color.RED));
 			}
 
-			for (Measurement m : lastRawObservation.getMeasurements()) {
-				rend.line(basePose.x, basePose.y, (float) localToWorld.transformX(m.localX, m.localY), (float) localToWorld.transformY(m.localX, m.localY), Color.BLUE);
+			for (int i = 0; i < lastRawObservation.getNumberOfMeasurements(); i++) {
+				float x = lastRawObservation.getLocalX(i), y = lastRawObservation.getLocalY(i);
+				rend.line(basePose.x, basePose.y, (float) localToWorld.transformX(x, y), (float) localToWorld.transformY(x, y), Color.BLUE);
 			}
 
 			rend.end();
@@ -413,48 +433,73 @@ public class GridMapApp implements IApplication, IDataSubscriber {
 
 		// render poses
 		rend.begin(ShapeType.FILLED);
-		if (drawCombinedPose[0] && currentCombinedPose != null)
-			renderPose(currentCombinedPose, Color.YELLOW);
+		if (drawCombinedPose[0] && snapshot.weightedPose != null)
+			renderPose(snapshot.weightedPose, Color.YELLOW);
 		if (drawStrongestPose[0])
-			renderPose(strongestParticle.pose, Color.MAGENTA);
+			renderPose(snapshot.strongestPose, Color.MAGENTA);
 
 		if (drawSpecificPose[0])
-			renderPose(slam.getParticles().get(selectedParticle[0]).pose, Color.TEAL);
+			renderPose(snapshot.selectedPose, Color.TEAL);
 		rend.end();
 
-		// draw all particle positions as quads
-		if (drawParticles[0]) {
-			rend.begin(ShapeType.FILLED);
-			for (Particle p : slam.getParticles()) {
-				rend.rect(p.pose.x - 0.005f, p.pose.y - 0.005f, 0.01f, 0.01f, Color.BLUE.toFloatBits());
-			}
-			rend.end();
-		}
+		// draw all particles as arrows, colored by their weight
+		if (drawParticles[0])
+			particleRenderer.render(cam.combined, 0.01f);
 	}
 
 	private void renderPose(Pose pose, Color col) {
 		rend.arrow(pose.x, pose.y, pose.theta, 0.10f, col);
 	}
 
-	private void calculateCombined() {
+	// reads the latest snapshot and combined grid published by the SLAM thread
+	private void readSnapshot() {
+		// hold on to the snapshot until the next frame has acquired a newer one
+		Snapshot latest = slamThread.acquireSnapshot();
+		Snapshot previous = snapshot;
+		snapshot = latest;
+		if (previous != null)
+			previous.release();
+		if (latest != previous)
+			particleRenderer.setParticles(snapshot.particles, snapshot.particleCount);
+
+		GridMapData newCombined = newCombinedGrid.getAndSet(null);
+		if (newCombined != null) {
+			if (combinedGrid != null)
+				combinedGrid.release();
+			combinedGrid = newCombined;
+		}
+
+		// a combined grid of a map that has since been recreated with another size can not be shown
+		if (combinedGrid != null && (combinedGrid.logData.getWidth() != snapshot.strongestMap.logData.getWidth()
+				|| combinedGrid.logData.getHeight() != snapshot.strongestMap.logData.getHeight())) {
+			combinedGrid.release();
+			combinedGrid = null;
+		}
+	}
+
+	// calculates the probability of each cell being occupied in any of the particles, runs on the SLAM thread
+	private static GridMapData calculateCombined(SLAM slam) {
 		// create empty map object
-		combinedGrid = slam.getGridMap().createMapData(null);
+		GridMapData combinedGrid = slam.getGridMap().createMapData(null);
 
-		final double[] combinedData = combinedGrid.logData;
+		final TiledGrid combinedData = combinedGrid.logData;
 
-		for (int i = 0; i < combinedData.length; i++) {
-			double product = 1;
+		for (int y = 0; y < combinedData.getHeight(); y++) {
+			for (int x = 0; x < combinedData.getWidth(); x++) {
+				double product = 1;
 
-			for (Particle p : slam.getParticles()) {
-				// final double[] particleData = p.m.logData;
+				for (Particle p : slam.getParticles()) {
+					// final double[] particleData = p.m.logData;
 
-				product *= 1 - Util.invLogOdds(p.m.logData[i]);
+					product *= 1 - Util.invLogOdds(p.m.logData.get(x, y));
 
+				}
+				combinedData.set(x, y, Util.logOdds(1 - product));
 			}
-			combinedData[i] = Util.logOdds(1 - product);
 		}
 
 		slam.getGridMap().computeLikelihoodMap(combinedGrid);
+		return combinedGrid;
 	}
 
 	@Override
@@ -490,7 +535,21 @@ public class GridMapApp implements IApplication, IDataSubscriber {
 	@Override
 	public void dispose() {
 		rend.dispose();
+		gridMapRenderer.dispose();
+		particleRenderer.dispose();
 		serial.dispose();
+		recorder.dispose();
+
+		// stop the SLAM thread before letting go of the SLAM
+		try {
+			slamThread.shutdown();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		snapshot.release();
+		if (combinedGrid != null)
+			combinedGrid.release();
+		slam.dispose();
 	}
 
 }
@@ -18,13 +18,12 @@ package com.fmsz.gridmapgl.app;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.List;
 
 import com.fmsz.gridmapgl.slam.GridMap;
+import com.fmsz.gridmapgl.slam.GridMap.CellStorage;
 import com.fmsz.gridmapgl.slam.GridMap.GridMapData;
 import com.fmsz.gridmapgl.slam.Observation;
 import com.fmsz.gridmapgl.slam.Odometry;
-import com.fmsz.gridmapgl.slam.Observation.Measurement;
 
 import glm_.vec2.Vec2;
 
@@ -46,63 +45,61 @@ public class ObjectSerializer {
 
 	/////////////////////////////////// OBSERVATION ////////////////////////////////////////////
 	public static void writeObservation(DataOutputStream dos, Observation o) throws IOException {
-		List<Measurement> measurements = o.getMeasurements();
-
 		// write size first
-		dos.writeShort(measurements.size());
+		dos.writeShort(o.getNumberOfMeasurements());
 
 		// then all measurements
-		for (Measurement m : measurements)
-			writeMeasurement(dos, m);
+		for (int i = 0; i < o.getNumberOfMeasurements(); i++) {
+			dos.writeDouble(o.getAngle(i));
+			dos.writeDouble(o.getRange(i));
+			dos.writeBoolean(o.wasHit(i));
+		}
 	}
 
 	public static Observation readObservation(DataInputStream dis) throws IOException {
-		Observation obs = new Observation();
 		// read size first
 		short length = dis.readShort();
+		Observation obs = new Observation(length);
 
 		// then read all measurements
-		for (int i = 0; i < length; i++)
-			obs.addMeasurement(readMeasurement(dis));
+		for (int i = 0; i < length; i++) {
+			double angle = dis.readDouble();
+			double distance = dis.readDouble();
+			boolean wasHit = dis.readBoolean();
+			obs.addMeasurement((float) angle, (float) distance, wasHit);
+		}
 
 		return obs;
 	}
 
-	///////////////////////////////// MEASUREMENT //////////////////////////////////////////
-	public static void writeMeasurement(DataOutputStream dos, Measurement m) throws IOException {
-		dos.writeDouble(m.angle);
-		dos.writeDouble(m.distance);
-		dos.writeBoolean(m.wasHit);
-	}
-
-	public static Measurement readMeasurement(DataInputStream dis) throws IOException {
-		double angle = dis.readDouble();
-		double distance = dis.readDouble();
-		boolean wasHit = dis.readBoolean();
-		return new Measurement(angle, distance, wasHit);
-	}
-
 	///////////////////////////////// GRID MAP ////////////////////////////////////////////
 	public static void writeGridMap(DataOutputStream dos, GridMap map) throws IOException {
-		// width, height, resolution, position, logData
+		// width, height, resolution, position, cell storage
 
 		dos.writeFloat(map.getWorldSize().getX()); // map width (meters)
 		dos.writeFloat(map.getWorldSize().getY()); // map height (meters)
 		dos.writeFloat(map.getResolution()); // resolution (meters)
 		dos.writeFloat(map.getPosition().getX()); // global map position x
 		dos.writeFloat(map.getPosition().getY()); // global map position y
+		dos.writeByte(map.getCellStorage().ordinal()); // how the cells are stored
 	}
 
 	public static GridMap readGridMap(DataInputStream dis) throws IOException {
+		return readGridMap(dis, true);
+	}
+
+	/** Reads a GridMap, maps written before the cell storage was saved are read with withStorage false and use DOUBLE */
+	public static GridMap readGridMap(DataInputStream dis, boolean withStorage) throws IOException {
 		// continue reading the parameters
 		float width = dis.readFloat();
 		float height = dis.readFloat();
 		float resolution = dis.readFloat();
 		float posX = dis.readFloat();
 		float posY = dis.readFloat();
+		CellStorage cellStorage = withStorage ? CellStorage.values()[dis.readByte()] : CellStorage.DOUBLE;
 
 		// create the map object:
-		GridMap map = new GridMap(width, height, resolution, new Vec2(posX, posY));
+		GridMap map = new GridMap(width, height, resolution, new Vec2(posX, posY), cellStorage);
 
 		return map;
 	}
@@ -110,8 +107,10 @@ public class ObjectSerializer {
 	///////////////////////////////// GRID MAP DATA ///////////////////////////////////////
 	public static void writeGridMapData(DataOutputStream dos, GridMapData map) throws IOException {
 		// write all the data:
-		for (int i = 0; i < map.logData.length; i++) {
-			dos.writeDouble(map.logData[i]);
+		for (int y = 0; y < map.logData.getHeight(); y++) {
+			for (int x = 0; x < map.logData.getWidth(); x++) {
+				dos.writeDouble(map.logData.get(x, y));
+			}
 		}
 	}
 
@@ -120,8 +119,10 @@ public class ObjectSerializer {
 		GridMapData map = gridMap.createMapData(null);
 
 		// then load in the data from the file
-		for (int i = 0; i < map.logData.length; i++) {
-			map.logData[i] = dis.readDouble();
+		for (int y = 0; y < map.logData.getHeight(); y++) {
+			for (int x = 0; x < map.logData.getWidth(); x++) {
+				map.logData.set(x, y, dis.readDouble());
+			}
 		}
 
 		return map;
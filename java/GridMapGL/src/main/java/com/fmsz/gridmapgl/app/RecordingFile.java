@@ -0,0 +1,667 @@
+/*******************************************************************************
+ *  Copyright 2018 Anton Berneving
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *******************************************************************************/
+package com.fmsz.gridmapgl.app;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.fmsz.gridmapgl.math.MathUtil;
+import com.fmsz.gridmapgl.slam.Observation;
+import com.fmsz.gridmapgl.slam.Odometry;
+import com.fmsz.gridmapgl.slam.TimeFrame;
+
+/**
+ * Reads and writes recordings of TimeFrames with their time stamps. Recordings are written in the version 2 format, and
+ * both it and the original format (a 0xff byte, a short frame count and the frames written with ObjectSerializer) can be
+ * read, either all at once or on demand with a {@link Reader}.
+ *
+ * The version 2 format stores the frames in chunks of at most {@link #FRAMES_PER_CHUNK} frames, each compressed with
+ * Deflate, and ends with an index of where each chunk starts. All values are big endian.
+ *
+ * <pre>
+ * header:  byte 0xfe, byte version (2), int largest number of frames per chunk
+ * chunk:   int frames, int uncompressed length, int compressed length, compressed frames
+ * frame:   float time stamp, double dCenter, double dTheta, int measurements, measurements
+ * measurement: short angle (in 2pi/65536 rad), short range (in mm, or -1 - range if it was not a hit)
+ * index:   int frames, int chunks, long offset of each chunk
+ * trailer: long offset of the index
+ * </pre>
+ *
+ * The angles and ranges are quantized to 16 bits, which is finer than the sensor resolution of one degree and one mm.
+ *
+ * @author Anton
+ *
+ */
+public class RecordingFile {
+	/** the first byte of a version 2 recording, the original format starts with 0xff */
+	private static final byte HEADER = (byte) 0xfe;
+	private static final byte VERSION = 2;
+
+	/** the largest number of frames compressed together */
+	public static final int FRAMES_PER_CHUNK = 64;
+
+	private static final double ANGLE_TO_SHORT = 65536 / MathUtil.PI2;
+
+	private RecordingFile() {
+	}
+
+	/** Writes frames and their time stamps, in seconds, to file in the version 2 format */
+	public static void write(Path file, List<TimeFrame> frames, List<Float> timeStamps) throws IOException {
+		try (Writer writer = create(file)) {
+			for (int i = 0; i < frames.size(); i++)
+				writer.append(frames.get(i), timeStamps.get(i));
+		}
+	}
+
+	/** Creates a new recording, replacing file if it exists, for appending frames to while they are recorded */
+	public static Writer create(Path file) throws IOException {
+		return new Writer(file);
+	}
+
+	/**
+	 * Writes a recording in the version 2 format while it is being recorded, so that the memory used does not grow with the
+	 * length of the recording. Appended frames are serialized into the current chunk, and when the chunk has
+	 * {@link #FRAMES_PER_CHUNK} frames it is handed to a background thread which compresses and writes it. The background
+	 * thread also takes the current chunk when it has been open for {@link #FLUSH_INTERVAL} ms, even if no more frames are
+	 * appended, and forces what it has written to disk at most every {@link #SYNC_INTERVAL} ms. If the disk can not keep
+	 * up, append waits when {@link #PENDING_CHUNKS} chunks are waiting.
+	 *
+	 * The index is written when the writer is closed. If the application crashes before that, the Reader recovers the
+	 * chunks that reached the disk.
+	 *
+	 * Frames must only be appended by one thread at a time.
+	 */
+	public static class Writer implements Closeable {
+		/** the longest time a frame is kept in memory before it is handed to the background thread, in ms */
+		public static final long FLUSH_INTERVAL = 5000;
+
+		/** the shortest time between forcing the written chunks to disk, in ms */
+		public static final long SYNC_INTERVAL = 5000;
+
+		/** the number of chunks that may wait for the background thread */
+		public static final int PENDING_CHUNKS = 4;
+
+		// how long the background thread waits for a chunk before checking the current chunk and the last sync, in ms
+		private static final long POLL_INTERVAL = 500;
+
+		// tells the background thread to stop
+		private static final byte[] END = new byte[0];
+
+		private final FileChannel channel;
+		private final ArrayBlockingQueue<byte[]> pending = new ArrayBlockingQueue<>(PENDING_CHUNKS);
+		private final Thread thread;
+		private volatile IOException error = null;
+
+		// the offsets of the written chunks, only touched by the background thread until it has stopped
+		private long[] chunkOffsets = new long[16];
+		private int chunks = 0;
+
+		// the compressed chunk being written by the background thread
+		private byte[] compressed = new byte[0];
+
+		// the chunk being filled, starting with the number of frames in it, guarded by this writer
+		private ByteBuffer raw = ByteBuffer.allocate(1 << 16);
+		private int chunkFrames = 0, frameCount = 0;
+		private long chunkStartTime;
+
+		private Writer(Path file) throws IOException {
+			channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+			ByteBuffer header = ByteBuffer.allocate(6);
+			header.put(HEADER).put(VERSION).putInt(FRAMES_PER_CHUNK);
+			writeFully(channel, header);
+
+			thread = new Thread(this::writeChunks, "RecordingWriter");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		/** Appends a frame with its time stamp, in seconds */
+		public void append(TimeFrame frame, float timeStamp) throws IOException {
+			byte[] full = null;
+			synchronized (this) {
+				if (chunkFrames == 0) {
+					raw.clear();
+					raw.putInt(0);
+					chunkStartTime = System.nanoTime();
+				}
+
+				int n = frame.z.getNumberOfMeasurements();
+				raw = ensureRemaining(raw, 24 + 4 * n);
+
+				raw.putFloat(timeStamp);
+				raw.putDouble(frame.u.dCenter);
+				raw.putDouble(frame.u.dTheta);
+				raw.putInt(n);
+				for (int j = 0; j < n; j++) {
+					raw.putShort((short) Math.round(MathUtil.angleConstrain(frame.z.getAngle(j)) * ANGLE_TO_SHORT));
+
+					int millimeters = Math.min(Math.round(frame.z.getRange(j) * 1000), Short.MAX_VALUE);
+					raw.putShort((short) (frame.z.wasHit(j) ? millimeters : -1 - millimeters));
+				}
+
+				chunkFrames++;
+				frameCount++;
+				if (chunkFrames == FRAMES_PER_CHUNK)
+					full = takeChunk();
+			}
+
+			// waiting for room without holding the lock, which the background thread takes when it times out
+			if (full != null)
+				hand(full);
+		}
+
+		/** Returns the number of frames appended */
+		public int getFrameCount() {
+			return frameCount;
+		}
+
+		/** Writes the remaining frames and the index, and closes the file */
+		@Override
+		public void close() throws IOException {
+			if (!channel.isOpen())
+				return;
+
+			try {
+				byte[] last;
+				synchronized (this) {
+					last = chunkFrames > 0 ? takeChunk() : null;
+				}
+				if (last != null)
+					hand(last);
+				hand(END);
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while closing the recording", e);
+			} finally {
+				if (error != null || thread.isAlive())
+					channel.close();
+			}
+
+			if (error != null)
+				throw error;
+
+			// the index and the trailer pointing at it
+			long indexOffset = channel.position();
+			ByteBuffer index = ByteBuffer.allocate(8 + 8 * chunks + 8);
+			index.putInt(frameCount).putInt(chunks);
+			for (int i = 0; i < chunks; i++)
+				index.putLong(chunkOffsets[i]);
+			index.putLong(indexOffset);
+			writeFully(channel, index);
+
+			channel.force(true);
+			channel.close();
+		}
+
+		// returns a copy of the current chunk and starts a new one, the caller must hold the lock
+		private byte[] takeChunk() {
+			raw.putInt(0, chunkFrames);
+			chunkFrames = 0;
+			return Arrays.copyOf(raw.array(), raw.position());
+		}
+
+		// returns the current chunk if it has frames that have waited for FLUSH_INTERVAL ms, or null
+		private synchronized byte[] takeStaleChunk() {
+			if (chunkFrames == 0 || System.nanoTime() - chunkStartTime <= FLUSH_INTERVAL * 1_000_000)
+				return null;
+			return takeChunk();
+		}
+
+		// waits for room for the chunk, unless the background thread has stopped because of an error
+		private void hand(byte[] chunk) throws IOException {
+			try {
+				while (!pending.offer(chunk, 100, TimeUnit.MILLISECONDS))
+					if (error != null)
+						throw error;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while writing the recording", e);
+			}
+		}
+
+		// compresses and writes the chunks handed to it until told to stop, run by the background thread
+		private void writeChunks() {
+			Deflater deflater = new Deflater();
+			long lastSync = System.nanoTime();
+			boolean synced = true;
+
+			try {
+				byte[] chunk;
+				while ((chunk = pending.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS)) != END) {
+					// nothing was handed over, the frames may have stopped coming
+					if (chunk == null)
+						chunk = takeStaleChunk();
+
+					if (chunk != null) {
+						writeChunk(deflater, chunk);
+						synced = false;
+					}
+
+					if (!synced && System.nanoTime() - lastSync > SYNC_INTERVAL * 1_000_000) {
+						channel.force(false);
+						lastSync = System.nanoTime();
+						synced = true;
+					}
+				}
+			} catch (IOException e) {
+				error = e;
+			} catch (InterruptedException e) {
+				error = new IOException("Interrupted while writing the recording", e);
+			} finally {
+				deflater.end();
+			}
+		}
+
+		// compresses and writes a chunk, run by the background thread
+		private void writeChunk(Deflater deflater, byte[] chunk) throws IOException {
+			deflater.reset();
+			deflater.setInput(chunk, 4, chunk.length - 4);
+			deflater.finish();
+			int length = 0;
+			while (!deflater.finished()) {
+				if (length == compressed.length)
+					compressed = Arrays.copyOf(compressed, Math.max(2 * compressed.length, 1 << 12));
+				length += deflater.deflate(compressed, length, compressed.length - length);
+			}
+
+			if (chunks == chunkOffsets.length)
+				chunkOffsets = Arrays.copyOf(chunkOffsets, 2 * chunks);
+			chunkOffsets[chunks++] = channel.position();
+
+			// the number of frames is already first in the chunk
+			ByteBuffer chunkBuffer = ByteBuffer.allocate(12 + length);
+			chunkBuffer.put(chunk, 0, 4).putInt(chunk.length - 4).putInt(length).put(compressed, 0, length);
+			writeFully(channel, chunkBuffer);
+		}
+	}
+
+	/**
+	 * Reads all frames of a recording in either format. The time stamp of each frame, in seconds, is added to timeStamps if
+	 * it is not null.
+	 */
+	public static List<TimeFrame> read(Path file, List<Float> timeStamps) throws IOException {
+		try (Reader reader = open(file)) {
+			List<TimeFrame> frames = new ArrayList<>(reader.getFrameCount());
+			while (reader.hasNext()) {
+				if (timeStamps != null)
+					timeStamps.add(reader.getTimeStamp(reader.getPosition()));
+				frames.add(reader.next());
+			}
+			return frames;
+		}
+	}
+
+	/** Opens a recording in either format for reading the frames on demand */
+	public static Reader open(Path file) throws IOException {
+		return new Reader(file, Reader.WINDOW_SIZE);
+	}
+
+	/** Opens a recording mapping windowSize bytes of it at a time, so that tests can move the window with small files */
+	static Reader open(Path file, int windowSize) throws IOException {
+		return new Reader(file, windowSize);
+	}
+
+	/**
+	 * Reads the frames of a recording on demand from a memory mapped window of the file, so that opening a recording is
+	 * instant, only the frames in use take up memory and recordings may be larger than what fits in one mapping. The window
+	 * is moved when a chunk outside of it is read. The frames are decoded one chunk at a time and the last decoded chunk is
+	 * kept, so reading the frames in order decodes every chunk once. In the original format every frame is its own chunk.
+	 *
+	 * The reader is also an iterator over the frames from the current position, see {@link #seek(int)}. A reader must only
+	 * be used by one thread at a time.
+	 */
+	public static class Reader implements Closeable, Iterator<TimeFrame> {
+		/** the number of bytes of the file mapped at a time, unless a chunk is larger */
+		public static final int WINDOW_SIZE = 1 << 26;
+
+		private final Path file;
+		private final FileChannel channel;
+		private final long size;
+		private final int windowSize;
+
+		// the mapped part of the file, from windowStart (inclusive) to windowEnd (exclusive)
+		private MappedByteBuffer window = null;
+		private long windowStart, windowEnd;
+
+		private final boolean original;
+		private final int frameCount;
+		private final long[] chunkOffsets;
+
+		// the index of the first frame in each chunk, the chunks may hold different numbers of frames
+		private final int[] chunkFirstFrames;
+
+		// the largest number of frames per chunk according to the header, and whether the chunks were found without an index
+		private int framesPerChunk;
+		private boolean recovered = false;
+
+		// the last decoded chunk
+		private int chunk = -1;
+		private int chunkFirstFrame;
+		private TimeFrame[] chunkFrames;
+		private float[] chunkTimeStamps;
+
+		private int position = 0;
+
+		private final Inflater inflater = new Inflater();
+		private byte[] compressed = new byte[0], raw = new byte[0];
+
+		private Reader(Path file, int windowSize) throws IOException {
+			this.file = file;
+			this.windowSize = windowSize;
+			channel = FileChannel.open(file, StandardOpenOption.READ);
+			try {
+				size = channel.size();
+
+				byte b = map(0, 1).get();
+				original = b == (byte) 0xff;
+				if (original) {
+					// there is no index, find the frames by skipping over their measurements
+					frameCount = map(1, 2).getShort();
+					chunkOffsets = new long[frameCount];
+					chunkFirstFrames = null;
+
+					long offset = 3;
+					for (int i = 0; i < frameCount; i++) {
+						chunkOffsets[i] = offset;
+						offset += 4 + 8 + 8 + 2 + map(offset + 20, 2).getShort() * (8 + 8 + 1);
+					}
+				} else {
+					if (b != HEADER)
+						throw new IllegalStateException("Error opening file, header byte is not correct! Wanted " + HEADER + ", got " + b);
+					ByteBuffer header = map(1, 5);
+					byte version = header.get();
+					if (version != VERSION)
+						throw new IllegalStateException("Unsupported recording version " + version);
+					framesPerChunk = header.getInt();
+
+					chunkOffsets = hasIndex() ? readIndex() : findChunks();
+
+					// count the frames in the chunk headers
+					chunkFirstFrames = new int[chunkOffsets.length];
+					int frames = 0;
+					for (int i = 0; i < chunkOffsets.length; i++) {
+						chunkFirstFrames[i] = frames;
+						frames += map(chunkOffsets[i], 4).getInt();
+					}
+					frameCount = frames;
+				}
+			} catch (IOException | RuntimeException e) {
+				channel.close();
+				throw e;
+			}
+		}
+
+		/** Returns the number of frames in the recording */
+		public int getFrameCount() {
+			return frameCount;
+		}
+
+		/**
+		 * Returns true if the recording was never closed, so it has no index and the frames were recovered from the chunks
+		 * that reached the disk
+		 */
+		public boolean isRecovered() {
+			return recovered;
+		}
+
+		/** Returns the frame with the given index */
+		public TimeFrame get(int index) throws IOException {
+			decodeChunkOf(index);
+			return chunkFrames[index - chunkFirstFrame];
+		}
+
+		/** Returns the time stamp of the frame with the given index, in seconds */
+		public float getTimeStamp(int index) throws IOException {
+			decodeChunkOf(index);
+			return chunkTimeStamps[index - chunkFirstFrame];
+		}
+
+		/** Moves the position to the frame with the given index, which is the next frame returned by {@link #next()} */
+		public void seek(int index) {
+			if (index < 0 || index > frameCount)
+				throw new IndexOutOfBoundsException("Frame " + index + " of " + frameCount);
+			position = index;
+		}
+
+		/** Returns the index of the next frame returned by {@link #next()} */
+		public int getPosition() {
+			return position;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return position < frameCount;
+		}
+
+		@Override
+		public TimeFrame next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+
+			try {
+				return get(position++);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		/** Returns the frames from index from (inclusive) to index to (exclusive), without moving the position */
+		public Iterable<TimeFrame> range(int from, int to) {
+			return () -> new Iterator<TimeFrame>() {
+				private int index = from;
+
+				@Override
+				public boolean hasNext() {
+					return index < to;
+				}
+
+				@Override
+				public TimeFrame next() {
+					if (!hasNext())
+						throw new NoSuchElementException();
+
+					try {
+						return get(index++);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+			};
+		}
+
+		@Override
+		public void close() throws IOException {
+			// the mapping itself is released when the buffer is garbage collected
+			window = null;
+			inflater.end();
+			channel.close();
+		}
+
+		// makes sure the chunk containing the frame with the given index is the decoded one
+		private void decodeChunkOf(int index) throws IOException {
+			if (index < 0 || index >= frameCount)
+				throw new IndexOutOfBoundsException("Frame " + index + " of " + frameCount);
+
+			// find the last chunk starting at or before the frame
+			int c = original ? index : Arrays.binarySearch(chunkFirstFrames, index);
+			if (c < 0)
+				c = -c - 2;
+			if (c == chunk)
+				return;
+
+			if (original)
+				decodeOriginalFrame(chunkOffsets[c]);
+			else
+				decodeChunk(chunkOffsets[c]);
+			chunk = c;
+			chunkFirstFrame = original ? index : chunkFirstFrames[c];
+		}
+
+		// returns the window positioned at offset, moving it if the length bytes from there are not all mapped
+		private ByteBuffer map(long offset, int length) throws IOException {
+			if (offset < 0 || length < 0 || offset + length > size)
+				throw new IOException("Unexpected end of " + file + " reading " + length + " bytes at " + offset);
+
+			if (window == null || offset < windowStart || offset + length > windowEnd) {
+				windowStart = offset;
+				windowEnd = Math.min(size, offset + Math.max(windowSize, length));
+				window = channel.map(MapMode.READ_ONLY, windowStart, windowEnd - windowStart);
+			}
+
+			window.position((int) (offset - windowStart));
+			return window;
+		}
+
+		// returns true if the file ends with a complete index, which it does not if the recording was never closed
+		private boolean hasIndex() throws IOException {
+			if (size < 6 + 16)
+				return false;
+
+			long indexOffset = map(size - 8, 8).getLong();
+			return indexOffset >= 6 && indexOffset <= size - 16 && indexOffset + 16 + 8L * map(indexOffset + 4, 4).getInt() == size;
+		}
+
+		private long[] readIndex() throws IOException {
+			long indexOffset = map(size - 8, 8).getLong();
+			long[] offsets = new long[map(indexOffset + 4, 4).getInt()];
+			for (int i = 0; i < offsets.length; i++)
+				offsets[i] = map(indexOffset + 8 + 8L * i, 8).getLong();
+			return offsets;
+		}
+
+		// finds the chunks by following them from the start of the file, ignoring a partly written last chunk
+		private long[] findChunks() throws IOException {
+			long[] offsets = new long[16];
+			int chunks = 0;
+			long offset = 6;
+			while (offset + 12 <= size) {
+				ByteBuffer header = map(offset, 12);
+				int count = header.getInt(), length = header.getInt(), compressedLength = header.getInt();
+				if (offset + 12 + compressedLength > size)
+					break;
+
+				if (count <= 0 || count > framesPerChunk || length < 0 || compressedLength < 0)
+					throw new IOException("Corrupt chunk at " + offset + " in " + file);
+
+				if (chunks == offsets.length)
+					offsets = Arrays.copyOf(offsets, 2 * chunks);
+				offsets[chunks++] = offset;
+				offset += 12 + compressedLength;
+			}
+
+			recovered = true;
+			return Arrays.copyOf(offsets, chunks);
+		}
+
+		private void decodeChunk(long offset) throws IOException {
+			ByteBuffer header = map(offset, 12);
+			int count = header.getInt(), length = header.getInt(), compressedLength = header.getInt();
+
+			if (compressed.length < compressedLength)
+				compressed = new byte[compressedLength];
+			if (raw.length < length)
+				raw = new byte[length];
+			map(offset + 12, compressedLength).get(compressed, 0, compressedLength);
+
+			try {
+				inflater.reset();
+				inflater.setInput(compressed, 0, compressedLength);
+				if (inflater.inflate(raw, 0, length) != length)
+					throw new IOException("Corrupt chunk at " + offset + " in " + file);
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupt chunk at " + offset + " in " + file, e);
+			}
+
+			chunkFrames = new TimeFrame[count];
+			chunkTimeStamps = new float[count];
+
+			ByteBuffer data = ByteBuffer.wrap(raw, 0, length);
+			for (int i = 0; i < count; i++) {
+				chunkTimeStamps[i] = data.getFloat();
+				Odometry u = new Odometry(data.getDouble(), data.getDouble());
+
+				int n = data.getInt();
+				Observation z = new Observation(n);
+				for (int j = 0; j < n; j++) {
+					float angle = (float) (data.getShort() / ANGLE_TO_SHORT);
+					int range = data.getShort();
+					if (range >= 0)
+						z.addMeasurement(angle, range / 1000f, true);
+					else
+						z.addMeasurement(angle, (-1 - range) / 1000f, false);
+				}
+
+				chunkFrames[i] = new TimeFrame(z, u);
+			}
+		}
+
+		// decodes a frame written by ObjectSerializer.writeOdometry and writeObservation, after its time stamp
+		private void decodeOriginalFrame(long offset) throws IOException {
+			int n = map(offset + 20, 2).getShort();
+			ByteBuffer buffer = map(offset, 4 + 8 + 8 + 2 + n * (8 + 8 + 1));
+			float timeStamp = buffer.getFloat();
+			Odometry u = new Odometry(buffer.getDouble(), buffer.getDouble());
+
+			buffer.getShort();
+			Observation z = new Observation(n);
+			for (int j = 0; j < n; j++) {
+				double angle = buffer.getDouble();
+				double distance = buffer.getDouble();
+				boolean wasHit = buffer.get() != 0;
+				z.addMeasurement((float) angle, (float) distance, wasHit);
+			}
+
+			chunkFrames = new TimeFrame[] { new TimeFrame(z, u) };
+			chunkTimeStamps = new float[] { timeStamp };
+		}
+	}
+
+	// returns buffer, or a larger copy of it if it has less than the given number of bytes remaining
+	private static ByteBuffer ensureRemaining(ByteBuffer buffer, int bytes) {
+		if (buffer.remaining() >= bytes)
+			return buffer;
+
+		ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * buffer.capacity(), buffer.position() + bytes));
+		larger.put(buffer.array(), 0, buffer.position());
+		return larger;
+	}
+
+	// writes everything put into buffer to the channel
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+}
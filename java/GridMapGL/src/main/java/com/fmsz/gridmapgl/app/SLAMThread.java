@@ -0,0 +1,324 @@
+/*******************************************************************************
+ *  Copyright 2018 Anton Berneving
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *******************************************************************************/
+package com.fmsz.gridmapgl.app;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import com.fmsz.gridmapgl.slam.GridMap;
+import com.fmsz.gridmapgl.slam.GridMap.GridMapData;
+import com.fmsz.gridmapgl.slam.Observation;
+import com.fmsz.gridmapgl.slam.Pose;
+import com.fmsz.gridmapgl.slam.SLAM;
+import com.fmsz.gridmapgl.slam.SLAM.Particle;
+import com.fmsz.gridmapgl.slam.TimeFrame;
+
+/**
+ * Runs the SLAM on its own thread, so that the updates neither freeze the GUI nor are limited to one per rendered frame.
+ * The thread owns the {@link SLAM}: frames are handed to it with {@link #submit(TimeFrame)}, and everything else that
+ * touches the SLAM (resampling, settings and so on) is passed as a task to {@link #invokeLater(Consumer)}.
+ *
+ * After each update or task an immutable {@link Snapshot} of the state is published through a single atomic reference, and
+ * any number of threads (the renderer, exporters and so on) may read the latest one with {@link #acquireSnapshot()} without
+ * locking, releasing it with {@link Snapshot#release()} when done.
+ *
+ * @author Anton
+ *
+ */
+public class SLAMThread extends Thread {
+	/** the maximum number of frames waiting to be processed, {@link #submit(TimeFrame)} blocks when it is full */
+	public static final int QUEUE_SIZE = 20;
+
+	/** the number of floats per particle in a snapshot, x, y, theta and the weight */
+	public static final int FLOATS_PER_PARTICLE = 4;
+
+	/** how long to wait for a frame before checking for tasks again, in milliseconds */
+	private static final long TASK_POLL_INTERVAL = 5;
+
+	/**
+	 * A copy of the state of the SLAM after an update. Nothing in it is changed after it is published, so it can be read
+	 * from any thread, and the arrays, poses, observations and maps in it must not be modified by the readers either.
+	 *
+	 * The maps are copies of the particles' maps. Their tiles are shared with the particles, and as a shared tile is copied
+	 * before it is written to they never change. A snapshot is reference counted: the SLAM thread holds one reference until
+	 * it publishes the next snapshot, and each reader holds one from {@link SLAMThread#acquireSnapshot()} until it calls
+	 * {@link #release()}. When the last reference is released the maps let go of their tiles, so the particles can write to
+	 * them again without copying.
+	 */
+	public static class Snapshot {
+		// the number of holders, the maps are released when it reaches 0 and the snapshot can not be acquired after that
+		private final AtomicInteger references = new AtomicInteger(1);
+
+		/** the number of frames processed when the snapshot was taken */
+		public final int frames;
+
+		/** the grid map the maps below belong to, it is replaced when the SLAM recreates its map */
+		public final GridMap gridMap;
+
+		/** the pose and weight of each particle, FLOATS_PER_PARTICLE floats each (x, y, theta and the weight) */
+		public final float[] particles;
+		public final int particleCount;
+
+		/** the weighted pose of all particles, or null if no frame has been processed since the last reset */
+		public final Pose weightedPose;
+		public final Pose strongestPose, selectedPose;
+		public final GridMapData strongestMap, selectedMap;
+		public final int selectedParticle;
+
+		/** the last observation corrected for the motion and as received, or null if there is none */
+		public final Observation observation, rawObservation;
+
+		public final double neff;
+
+		/** statistics of the last update */
+		public final long updateTime, coarseStageTime, refineStageTime;
+		public final int coarseScored, refined;
+
+		// copies the state of thread and its SLAM, must run on the SLAM thread
+		private Snapshot(SLAMThread thread) {
+			SLAM slam = thread.slam;
+			ArrayList<Particle> particles = slam.getParticles();
+			GridMap gridMap = slam.getGridMap();
+
+			this.frames = thread.frames;
+			this.gridMap = gridMap;
+
+			this.particleCount = particles.size();
+			this.particles = new float[particles.size() * FLOATS_PER_PARTICLE];
+			int i = 0;
+			for (Particle p : particles) {
+				this.particles[i++] = p.pose.x;
+				this.particles[i++] = p.pose.y;
+				this.particles[i++] = p.pose.theta;
+				this.particles[i++] = (float) p.weight;
+			}
+
+			Particle strongest = slam.getStrongestParticle();
+			this.selectedParticle = Math.min(thread.selectedParticle, particles.size() - 1);
+			Particle selected = particles.get(selectedParticle);
+			this.weightedPose = thread.weightedPose;
+			this.strongestPose = new Pose(strongest.pose);
+			this.strongestMap = gridMap.createMapData(strongest.m);
+			this.selectedPose = new Pose(selected.pose);
+			this.selectedMap = gridMap.createMapData(selected.m);
+
+			this.observation = thread.lastObservation;
+			this.rawObservation = thread.lastRawObservation;
+
+			this.neff = thread.neff;
+			this.updateTime = thread.updateTime;
+			this.coarseStageTime = slam.getLastCoarseStageTime();
+			this.refineStageTime = slam.getLastRefineStageTime();
+			this.coarseScored = slam.getLastCoarseScoredCount();
+			this.refined = slam.getLastRefinedCount();
+		}
+
+		/** Lets go of a reference from {@link SLAMThread#acquireSnapshot()}, nothing in the snapshot may be used after this */
+		public void release() {
+			if (references.decrementAndGet() == 0) {
+				strongestMap.release();
+				selectedMap.release();
+			}
+		}
+
+		// adds a reference unless the snapshot has already been released
+		private boolean tryAcquire() {
+			int count;
+			do {
+				count = references.get();
+				if (count == 0)
+					return false;
+			} while (!references.compareAndSet(count, count + 1));
+			return true;
+		}
+	}
+
+	private final SLAM slam;
+
+	private final ArrayBlockingQueue<TimeFrame> frameQueue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+	private final ConcurrentLinkedQueue<Consumer<SLAM>> tasks = new ConcurrentLinkedQueue<>();
+
+	// the latest published snapshot
+	private final AtomicReference<Snapshot> latest = new AtomicReference<>();
+
+	// state only used by the SLAM thread
+	private volatile boolean automaticResampling = true;
+	private int selectedParticle = 0;
+	private Observation lastObservation, lastRawObservation;
+	private Pose weightedPose = null;
+	private double neff;
+	private long updateTime;
+
+	// written by the SLAM thread only, read by any
+	private volatile int frames = 0;
+
+	/** Creates a thread running slam, which must not be used by anything else once the thread has started */
+	public SLAMThread(SLAM slam) {
+		super("SLAM");
+		setDaemon(true);
+
+		this.slam = slam;
+		this.neff = slam.calculateNeff();
+
+		// there is always a snapshot to render, even before the first frame
+		publish();
+	}
+
+	@Override
+	public void run() {
+		while (!isInterrupted()) {
+			try {
+				boolean changed = runTasks();
+
+				// process the frames as soon as they arrive
+				TimeFrame frame = frameQueue.poll(TASK_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+				if (frame != null) {
+					update(frame);
+					changed = true;
+				}
+
+				if (changed)
+					publish();
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Queues a frame for processing, waits if QUEUE_SIZE frames are already waiting. Frames are submitted by the threads
+	 * producing them (connections, the replay), never by the render thread, which must not wait for the SLAM.
+	 */
+	public void submit(TimeFrame frame) {
+		try {
+			frameQueue.put(frame);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** Returns the number of frames that can be submitted without waiting */
+	public int getRemainingCapacity() {
+		return frameQueue.remainingCapacity();
+	}
+
+	/** Returns the number of frames processed so far, may be called from any thread */
+	public int getFrameCount() {
+		return frames;
+	}
+
+	/** Runs task on the SLAM thread before the next frame is processed, a new snapshot is published after it */
+	public void invokeLater(Consumer<SLAM> task) {
+		tasks.add(task);
+	}
+
+	/**
+	 * Returns the latest published snapshot, may be called from any thread. The snapshot stays valid until the caller
+	 * releases it with {@link Snapshot#release()}, which must be done exactly once.
+	 */
+	public Snapshot acquireSnapshot() {
+		while (true) {
+			// a newer snapshot may be published and the old one released between reading and acquiring it, then try again
+			Snapshot snapshot = latest.get();
+			if (snapshot.tryAcquire())
+				return snapshot;
+		}
+	}
+
+	/** Sets whether to resample automatically when the number of effective particles drops below half */
+	public void setAutomaticResampling(boolean automaticResampling) {
+		this.automaticResampling = automaticResampling;
+	}
+
+	/** Sets the particle whose pose and map are included in the snapshots */
+	public void setSelectedParticle(int selectedParticle) {
+		invokeLater(slam -> this.selectedParticle = selectedParticle);
+	}
+
+	/** Resamples the particles */
+	public void resample() {
+		invokeLater(slam -> {
+			slam.resample();
+			neff = slam.calculateNeff();
+		});
+	}
+
+	/** Resets the SLAM, dropping all frames waiting to be processed */
+	public void reset() {
+		invokeLater(slam -> {
+			frameQueue.clear();
+			slam.reset();
+			lastObservation = null;
+			lastRawObservation = null;
+			weightedPose = null;
+			neff = slam.calculateNeff();
+		});
+	}
+
+	/**
+	 * Stops the thread and waits for it to finish, after which the SLAM may be used by the caller again. The thread's
+	 * reference to the latest snapshot is released, readers still holding it may keep using it until they release it.
+	 */
+	public void shutdown() throws InterruptedException {
+		interrupt();
+		join();
+		latest.get().release();
+	}
+
+	// runs all queued tasks, returns true if there were any
+	private boolean runTasks() {
+		boolean ran = false;
+		Consumer<SLAM> task;
+		while ((task = tasks.poll()) != null) {
+			task.accept(slam);
+			ran = true;
+		}
+		return ran;
+	}
+
+	// processes one frame
+	private void update(TimeFrame frame) {
+		lastRawObservation = frame.z;
+
+		// compensate for the rotation in the odometry before processing the observation, a new observation is used for
+		// each frame since the last one may still be in a snapshot
+		lastObservation = new Observation(frame.z.getNumberOfMeasurements());
+		frame.u.compensateMotion(frame.z, lastObservation);
+
+		long start = System.nanoTime();
+		neff = slam.update(lastObservation, frame.u);
+
+		// only resample if supposed to
+		if (automaticResampling && neff < slam.getParticles().size() / 2)
+			slam.resample();
+
+		updateTime = System.nanoTime() - start;
+		weightedPose = slam.getWeightedPose();
+		frames++;
+	}
+
+	// publishes a snapshot of the current state, and lets go of the previous one
+	private void publish() {
+		Snapshot previous = latest.getAndSet(new Snapshot(this));
+		if (previous != null)
+			previous.release();
+	}
+}
@@ -15,9 +15,6 @@
  *******************************************************************************/
 package com.fmsz.gridmapgl.app;
 
-import com.fmsz.gridmapgl.graphics.Color;
-
-
 public class Util {
 
 	// hide constructor
@@ -87,26 +84,6 @@ public class Util {
 		}
 	}
 
-	private static float[] colorBitsGrayscaleLUT;
-	static {
-		colorBitsGrayscaleLUT = new float[256];
-		for (int i = 0; i < colorBitsGrayscaleLUT.length; i++) {
-			float ratio = i / (float) colorBitsGrayscaleLUT.length;
-			colorBitsGrayscaleLUT[i] = Color.colorToFloatBits(ratio, ratio, ratio, 1.0f);
-		}
-	}
-
-	/**
-	 * Converts a value from 0.0f - 1.0f to the corresponding grayscale color bits where 0.0f = black
-	 * 
-	 * @param p
-	 *            the grayscale value
-	 * @return the colorbits
-	 */
-	public static float getColorBitsGrayscale(float p) {
-		return colorBitsGrayscaleLUT[(int) (p * 255)];
-	}
-
 	/////////////////////////////////////// ***************//////////////////////////////
 	public static interface Visitor {
 		void visit(int x, int y, int dx, int dy);
@@ -371,23 +348,44 @@ public class Util {
 		}
 	}
 
-	/** temporary array used in the separable gaussian calculation since we don't want to overwrite the input */
-	private static double[] tempArray = new double[10];
 	public static final double[] testKernel = generateGaussianKernel(3, 5 * 3);
 
+	/**
+	 * Same as {@link #doGaussianBlurdSeparable(double[], double[], double[], int, int, double[])} but allocates its own
+	 * temporary array
+	 */
 	public static void doGaussianBlurdSeparable(double[] in, double[] out, int width, int height, double[] kernel) {
+		doGaussianBlurdSeparable(in, out, new double[out.length], width, height, kernel);
+	}
+
+	/**
+	 * Computes a separable gaussian blur of the input data and stores the result in out. The tempArray is used to store
+	 * the intermediate result since we don't want to overwrite the input, it must be at least as large as out. Since no
+	 * shared state is used this can be called from several threads at once as long as they use different arrays.
+	 */
+	public static void doGaussianBlurdSeparable(double[] in, double[] out, double[] tempArray, int width, int height, double[] kernel) {
+		doGaussianBlurdSeparable(in, out, tempArray, width, height, kernel, 0, 0, width - 1, height - 1);
+	}
+
+	/**
+	 * Same as {@link #doGaussianBlurdSeparable(double[], double[], double[], int, int, double[])} but only computes the
+	 * output inside the region (minX, minY) - (maxX, maxY), inclusive. Only the input within the region grown by the kernel
+	 * radius is read, the rest of out is left untouched.
+	 */
+	public static void doGaussianBlurdSeparable(double[] in, double[] out, double[] tempArray, int width, int height, double[] kernel, int minX,
+			int minY, int maxX, int maxY) {
 		// make sure we have room
 		if (out.length > tempArray.length)
-			tempArray = new double[out.length];
+			throw new IllegalArgumentException("doGaussianBlurdSeparable: tempArray is too small, got " + tempArray.length + ", need " + out.length);
 
 		// calculate the size of the kernel
 		int k = (kernel.length - 1) / 2;
 
-		// do horizontal blur first
-		for (int y = 0; y < height; y++) {
+		// do horizontal blur first, on all rows that the vertical blur will read from
+		for (int y = Math.max(minY - k, 0); y <= Math.min(maxY + k, height - 1); y++) {
 			int yIndex = y * width;
 
-			for (int x = 0; x < width; x++) {
+			for (int x = minX; x <= maxX; x++) {
 				double total = 0;
 
 				for (int i = -k; i <= k; i++) {
@@ -399,17 +397,14 @@ public class Util {
 
 					}
 				}
-				out[yIndex + x] = total;
+				tempArray[yIndex + x] = total;
 			}
 		}
 
-		// copy the output values
-		System.arraycopy(out, 0, tempArray, 0, out.length);
-
 		// then vertical blur second
-		for (int y = 0; y < height; y++) {
+		for (int y = minY; y <= maxY; y++) {
 
-			for (int x = 0; x < width; x++) {
+			for (int x = minX; x <= maxX; x++) {
 				double total = 0;
 
 				for (int i = -k; i <= k; i++) {
@@ -425,6 +420,114 @@ public class Util {
 		}
 	}
 
+	/** value used as "infinite" distance by {@link #doDistanceTransformSquared}, finite to keep the arithmetic free of NaN */
+	public static final double DISTANCE_INFINITY = 1e20;
+
+	/**
+	 * Computes the exact squared euclidean distance transform of data inside the region (minX, minY) - (maxX, maxY),
+	 * inclusive, in place. Cells should be 0 where there is a feature and {@link #DISTANCE_INFINITY} elsewhere, afterwards
+	 * every cell holds the squared distance (in cells) to the nearest feature inside the region. Runs in linear time by doing
+	 * one pass of the lower envelope algorithm by Felzenszwalb and Huttenlocher along each row and then each column.
+	 * 
+	 * f, d and v are scratch for one row or column and must hold at least max(maxX - minX, maxY - minY) + 1 values, z one
+	 * more than that.
+	 */
+	public static void doDistanceTransformSquared(double[] data, int width, int height, int minX, int minY, int maxX, int maxY,
+			double[] f, double[] d, int[] v, double[] z) {
+
+		// transform along the rows first
+		for (int y = minY; y <= maxY; y++) {
+			for (int x = minX; x <= maxX; x++)
+				f[x - minX] = data[x + y * width];
+			distanceTransformSquared1D(f, d, v, z, maxX - minX + 1);
+			for (int x = minX; x <= maxX; x++)
+				data[x + y * width] = d[x - minX];
+		}
+
+		// then along the columns, on the result of the rows
+		for (int x = minX; x <= maxX; x++) {
+			for (int y = minY; y <= maxY; y++)
+				f[y - minY] = data[x + y * width];
+			distanceTransformSquared1D(f, d, v, z, maxY - minY + 1);
+			for (int y = minY; y <= maxY; y++)
+				data[x + y * width] = d[y - minY];
+		}
+	}
+
+	// 1D squared distance transform of f into d: d[q] = min over p of (q - p)^2 + f[p]. v and z holds the parabolas of the
+	// lower envelope and the boundaries between them
+	private static void distanceTransformSquared1D(double[] f, double[] d, int[] v, double[] z, int n) {
+		int k = 0;
+		v[0] = 0;
+		z[0] = Double.NEGATIVE_INFINITY;
+		z[1] = Double.POSITIVE_INFINITY;
+
+		for (int q = 1; q < n; q++) {
+			// find where the parabola from q intersects the envelope, removing the parabolas it hides
+			double s = ((f[q] + q * q) - (f[v[k]] + v[k] * v[k])) / (2 * q - 2 * v[k]);
+			while (s <= z[k]) {
+				k--;
+				s = ((f[q] + q * q) - (f[v[k]] + v[k] * v[k])) / (2 * q - 2 * v[k]);
+			}
+			k++;
+			v[k] = q;
+			z[k] = s;
+			z[k + 1] = Double.POSITIVE_INFINITY;
+		}
+
+		k = 0;
+		for (int q = 0; q < n; q++) {
+			while (z[k + 1] < q)
+				k++;
+			d[q] = (q - v[k]) * (q - v[k]) + f[v[k]];
+		}
+	}
+
+	/**
+	 * Returns the k:th smallest (counting from 0) of the first length values, partially reordering them. Runs in linear
+	 * expected time by quickselect with the median of three as pivot.
+	 */
+	public static double select(double[] values, int length, int k) {
+		int left = 0, right = length - 1;
+		while (left < right) {
+			// order the first, middle and last values and use the middle one as pivot
+			int mid = (left + right) >>> 1;
+			if (values[mid] < values[left])
+				swap(values, mid, left);
+			if (values[right] < values[left])
+				swap(values, right, left);
+			if (values[right] < values[mid])
+				swap(values, right, mid);
+			double pivot = values[mid];
+
+			// partition into values <= pivot and values >= pivot
+			int i = left, j = right;
+			while (i <= j) {
+				while (values[i] < pivot)
+					i++;
+				while (values[j] > pivot)
+					j--;
+				if (i <= j)
+					swap(values, i++, j--);
+			}
+
+			// continue in the part holding k, everything between j and i equals the pivot
+			if (k <= j)
+				right = j;
+			else if (k >= i)
+				left = i;
+			else
+				return values[k];
+		}
+		return values[k];
+	}
+
+	private static void swap(double[] values, int a, int b) {
+		double tmp = values[a];
+		values[a] = values[b];
+		values[b] = tmp;
+	}
+
 	public static double[] generateGaussianKernel(double sigma, int size) {
 
 		// kernel has a middle cell and size on either side
@@ -37,12 +37,6 @@ import imgui.SliderFlag;
  *
  */
 public class ConnectionManager {
-	private static final byte COMMAND_ONCE = 0x01;
-	private static final byte COMMAND_ENABLE = 0x02;
-	private static final byte COMMAND_DISABLE = 0x04;
-	private static final byte COMMAND_HOME_SENSOR = 0x05;
-	private static final byte COMMAND_SET_RES = 0x08;
-
 	private ConnectionThread thread = null;
 
 	private int[] sensorDegreeResolutions = { 2, 3, 4, 5, 8, 10, 15, 20, 30, 45 };
@@ -75,7 +69,7 @@ public class ConnectionManager {
 			sensorDegreeResolutionNames.add(String.valueOf(sensorDegreeResolution));
 
 		// create connections
-		conn = new IConnection[] { new SerialConnection(), new NetworkConnection() };
+		conn = new IConnection[] { new SerialConnection(), new NetworkConnection(), new SimulatedConnection() };
 
 		// add their names and initialize
 		for (int i = 0; i < conn.length; i++) {
@@ -112,24 +106,24 @@ public class ConnectionManager {
 		if (imgui.begin("Controls", controlsOpen, 0)) {
 
 			if (imgui.button("Single", new Vec2())) {
-				sendCommand(COMMAND_ONCE);
+				sendCommand(IConnection.COMMAND_ONCE);
 			}
 			imgui.sameLine(0, 4);
 			if (imgui.button("Enable", new Vec2())) {
-				sendCommand(COMMAND_ENABLE);
+				sendCommand(IConnection.COMMAND_ENABLE);
 			}
 			imgui.sameLine(0, 4);
 			if (imgui.button("Disable", new Vec2())) {
-				sendCommand(COMMAND_DISABLE);
+				sendCommand(IConnection.COMMAND_DISABLE);
 			}
 			imgui.sameLine(0, 4);
 			if (imgui.button("Home", new Vec2())) {
-				sendCommand(COMMAND_HOME_SENSOR);
+				sendCommand(IConnection.COMMAND_HOME_SENSOR);
 			}
 
 			if (imgui.combo("Res", currentSelectedSensorDegreeResolution, sensorDegreeResolutionNames, 7)) {
 				int selectedResolution = sensorDegreeResolutions[currentSelectedSensorDegreeResolution[0]];
-				sendCommand(new byte[] { 0x08, (byte) selectedResolution });
+				sendCommand(new byte[] { IConnection.COMMAND_SET_RES, (byte) selectedResolution });
 			}
 
 			imgui.separator();
@@ -242,7 +236,7 @@ public class ConnectionManager {
 			thread.start();
 
 			// send the initial configuration parameters
-			sendCommand(new byte[] { COMMAND_SET_RES, (byte) sensorDegreeResolutions[currentSelectedSensorDegreeResolution[0]] });
+			sendCommand(new byte[] { IConnection.COMMAND_SET_RES, (byte) sensorDegreeResolutions[currentSelectedSensorDegreeResolution[0]] });
 			sendFloat(0x15, pidTuningP[0]);
 			sendFloat(0x16, pidTuningI[0]);
 			sendFloat(0x17, pidTuningD[0]);
@@ -259,7 +253,7 @@ public class ConnectionManager {
 		if (conn.isConnected()) {
 
 			// send disable command first
-			sendCommand(COMMAND_DISABLE);
+			sendCommand(IConnection.COMMAND_DISABLE);
 
 			// stop the reading thread
 			thread.interrupt();
@@ -6,7 +6,20 @@ import java.io.OutputStream;
 import imgui.ImGui;
 
 public interface IConnection {
-	
+	// commands understood by the robot, most followed by parameter bytes
+	public static final byte COMMAND_ONCE = 0x01;
+	public static final byte COMMAND_ENABLE = 0x02;
+	public static final byte COMMAND_DISABLE = 0x04;
+	public static final byte COMMAND_HOME_SENSOR = 0x05;
+	public static final byte COMMAND_SET_RES = 0x08;
+	/** followed by the left and right motor speeds as two floats */
+	public static final byte COMMAND_SET_SPEED = 0x10;
+	/** followed by the parameter of both motor PID controllers as a float */
+	public static final byte COMMAND_SET_KP = 0x15;
+	public static final byte COMMAND_SET_KI = 0x16;
+	public static final byte COMMAND_SET_KD = 0x17;
+	public static final byte COMMAND_SET_TF = 0x18;
+
 	/** Returns the name for this connection */
 	public String getName();
 
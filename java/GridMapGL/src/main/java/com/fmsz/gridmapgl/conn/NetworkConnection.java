@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.util.Arrays;
 
 import imgui.ImGui;
 
@@ -40,6 +41,16 @@ public class NetworkConnection implements IConnection {
 		
 	}
 
+	/** Sets the host and port to connect to, instead of entering them in the GUI */
+	public void setAddress(String host, int port) {
+		String portStr = Integer.toString(port);
+
+		Arrays.fill(hostBuff, (byte) 0);
+		Arrays.fill(portBuff, (byte) 0);
+		System.arraycopy(host.getBytes(), 0, hostBuff, 0, Math.min(host.length(), hostBuff.length));
+		System.arraycopy(portStr.getBytes(), 0, portBuff, 0, portStr.length());
+	}
+
 	@Override
 	public void connect() {
 		// get the entered host name
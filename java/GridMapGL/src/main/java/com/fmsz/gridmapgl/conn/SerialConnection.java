@@ -79,6 +79,11 @@ public class SerialConnection implements IConnection {
 			connect(availablePorts[currentSelectedPortName[0]], baudRates[currentSelectedBaudRate[0]]);
 	}
 
+	/** Connects to the port with the given system name, like "COM3" or "/dev/ttyUSB0", without using the GUI */
+	public void connect(String portName, int baudRate) {
+		connect(SerialPort.getCommPort(portName), baudRate);
+	}
+
 	private void connect(SerialPort port, int baudRate) {
 		if (currentPort != null)
 			return;
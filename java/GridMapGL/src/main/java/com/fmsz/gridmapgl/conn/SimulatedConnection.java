@@ -0,0 +1,390 @@
+/*******************************************************************************
+ *  Copyright 2018 Anton Berneving
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *******************************************************************************/
+package com.fmsz.gridmapgl.conn;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.fmsz.gridmapgl.app.Util;
+import com.fmsz.gridmapgl.math.MathUtil;
+import com.fmsz.gridmapgl.slam.GridMap;
+import com.fmsz.gridmapgl.slam.GridMap.GridMapData;
+import com.fmsz.gridmapgl.slam.GridMapLoader;
+import com.fmsz.gridmapgl.slam.RayIterator;
+import com.fmsz.gridmapgl.slam.Robot;
+import com.fmsz.gridmapgl.slam.SensorModel;
+
+import glm_.vec2.Vec2;
+import imgui.ImGui;
+import imgui.SliderFlag;
+
+/**
+ * A connection to a simulated robot, for testing the rest of the application without the physical robot. The robot drives
+ * around a scripted path in a ground truth map, either loaded from a file saved with {@link GridMapLoader} or a generated
+ * room, and streams the same packets as the real robot: one packet per sensor step with the measured distance, and an
+ * odometry packet with the encoder counts after each sensor revolution. The packets can be sent up to 1000 times faster
+ * than the real robot sends them, the simulated robot still moves as far per revolution. The amount of noise is
+ * configurable, and the noise is seeded so that every run is the same.
+ *
+ * Like the real robot it only streams after the enable command (or one revolution after the single command), and the
+ * sensor resolution command changes the number of steps per revolution. The speed and PID commands are ignored.
+ *
+ * @author Anton
+ *
+ */
+public class SimulatedConnection implements IConnection {
+	/** the size of the buffer between the simulation and the reading thread, the simulation waits when it is full */
+	private static final int PIPE_SIZE = 1 << 16;
+
+	/** the path driven by the robot, as a loop of (x, y) waypoints starting at the origin facing along x */
+	private static final float[][] PATH = { { 1.5f, 0 }, { 1.5f, 1.2f }, { -1.5f, 1.2f }, { -1.5f, -1.2f }, { 1.5f, -1.2f }, { 1.5f, 0 }, { 0, 0 } };
+
+	/** the time one sensor revolution takes on the real robot, which is the simulated time that passes per revolution */
+	private static final float REVOLUTION_TIME = 2.0f;
+
+	/** how fast the robot drives and turns, and how close to a waypoint it has to get */
+	private static final float DRIVE_SPEED = 0.1f, TURN_SPEED = 45 * (float) MathUtil.DEG_TO_RAD, WAYPOINT_TOLERANCE = 0.02f;
+
+	/** the robot only drives forward when it is facing its waypoint within this angle, otherwise it turns in place */
+	private static final float HEADING_TOLERANCE = 10 * (float) MathUtil.DEG_TO_RAD;
+
+	// GUI Stuff
+	private byte[] mapFileBuff = new byte[128];
+	private int[] speedUp = { 1 };
+	private float[] rangeNoise = { 0.01f };
+	private float[] odometryNoise = { 0.02f };
+
+	// connection stuff
+	private PipedInputStream is = null;
+	private OutputStream os = null;
+	private Thread thread = null;
+
+	// the state of the simulated robot, only touched by the simulation thread except for the values set by commands
+	private GridMap gridMap;
+	private GridMapData map;
+	private RayIterator rayIterator;
+	private Random random;
+	private float x, y, theta;
+	private int waypoint;
+	private volatile boolean enabled;
+	private volatile int revolutionsRequested;
+	private volatile int sensorResolution = 2;
+
+	@Override
+	public String getName() {
+		return "Simulated";
+	}
+
+	@Override
+	public void init() {
+
+	}
+
+	@Override
+	public void doGUI(ImGui imgui) {
+		// an empty file name uses the generated room
+		imgui.inputText("Map File", mapFileBuff, 0, null, null);
+
+		// how many times faster than the real robot the packets are sent
+		imgui.sliderInt("Speed-up", speedUp, 0, 1, 1000, "%.0f", SliderFlag.None.getI());
+		imgui.dragFloat("Range Noise", rangeNoise, 0, 0.001f, 0, 1, "%.3f m", SliderFlag.None.getI());
+		imgui.dragFloat("Odometry Noise", odometryNoise, 0, 0.001f, 0, 1, "%.3f", SliderFlag.None.getI());
+	}
+
+	/** Sets how many times faster than the real robot the packets are sent */
+	public void setSpeedUp(int speedUp) {
+		this.speedUp[0] = Math.max(speedUp, 1);
+	}
+
+	/** Sets the map file used as ground truth, an empty name uses the generated room */
+	public void setMapFile(String mapFile) {
+		Arrays.fill(mapFileBuff, (byte) 0);
+		System.arraycopy(mapFile.getBytes(), 0, mapFileBuff, 0, Math.min(mapFile.length(), mapFileBuff.length));
+	}
+
+	/** Sets the standard deviation of the range noise in meters and the relative noise of the odometry */
+	public void setNoise(float rangeNoise, float odometryNoise) {
+		this.rangeNoise[0] = rangeNoise;
+		this.odometryNoise[0] = odometryNoise;
+	}
+
+	@Override
+	public void connect() {
+		if (isConnected())
+			return;
+
+		// load or generate the ground truth
+		String mapFile = new String(mapFileBuff).trim();
+		if (mapFile.isEmpty()) {
+			generateRoom();
+		} else {
+			GridMapLoader.beginLoad(mapFile);
+			gridMap = GridMapLoader.loadGridMap();
+			map = GridMapLoader.loadGridMapData(gridMap);
+			GridMapLoader.endLoad();
+
+			if (map == null) {
+				System.err.println("[SimulatedConnection] Could not load the map " + mapFile);
+				return;
+			}
+		}
+		rayIterator = new RayIterator(map.logData.getWidth(), map.logData.getHeight());
+
+		// start from the beginning of the path with the same noise every time
+		random = new Random(0);
+		x = y = theta = 0;
+		waypoint = 0;
+		enabled = false;
+		revolutionsRequested = 0;
+
+		try {
+			is = new PipedInputStream(PIPE_SIZE);
+			PipedOutputStream pos = new PipedOutputStream(is);
+			os = new CommandStream();
+
+			thread = new Thread(() -> simulate(pos), "SimulatedRobot");
+			thread.setDaemon(true);
+			thread.start();
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+			is = null;
+			os = null;
+		}
+	}
+
+	@Override
+	public void disconnect() {
+		if (!isConnected())
+			return;
+
+		// stop the simulation
+		thread.interrupt();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+
+		thread = null;
+		is = null;
+		os = null;
+	}
+
+	@Override
+	public boolean isConnected() {
+		return thread != null;
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return is;
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return os;
+	}
+
+	// the simulation loop, run on its own thread until interrupted or the reading end goes away
+	private void simulate(OutputStream out) {
+		final byte[] packet = new byte[8];
+		long nextPacketTime = System.nanoTime();
+
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				if (!enabled && revolutionsRequested == 0) {
+					Thread.sleep(10);
+					nextPacketTime = System.nanoTime();
+					continue;
+				}
+				if (!enabled)
+					revolutionsRequested--;
+
+				// decide how to move during this revolution, turn towards the waypoint first and then drive to it
+				final int resolution = sensorResolution, steps = 360 / resolution;
+				final long packetInterval = (long) (REVOLUTION_TIME * 1e9 / (steps + 1) / Math.max(speedUp[0], 1));
+				float dx = PATH[waypoint][0] - x, dy = PATH[waypoint][1] - y;
+				float headingError = (float) MathUtil.angleConstrain(Math.atan2(dy, dx) - theta);
+				float turn = Math.max(-TURN_SPEED * REVOLUTION_TIME, Math.min(TURN_SPEED * REVOLUTION_TIME, headingError));
+				float forward = Math.abs(headingError) < HEADING_TOLERANCE ? Math.min(DRIVE_SPEED * REVOLUTION_TIME, (float) Math.hypot(dx, dy)) : 0;
+
+				// one packet per sensor step, taken while the robot moves
+				final float startX = x, startY = y, startTheta = theta;
+				for (int i = 0; i < steps; i++) {
+					float t = i / (float) steps, pathTheta = startTheta + turn * t;
+					x = startX + MathUtil.cos(startTheta + turn) * forward * t;
+					y = startY + MathUtil.sin(startTheta + turn) * forward * t;
+					theta = pathTheta;
+
+					int sensorStep = i * resolution * Robot.SENSOR_STEPS_PER_REVOLUTION / 360;
+					float angle = sensorStep / (float) Robot.SENSOR_STEPS_PER_REVOLUTION * MathUtil.PI2 + Robot.SENSOR_ANGLE_OFFSET;
+					float distance = castRay(theta + angle);
+					short millimeters = distance < 0 ? -1 : (short) Math.max(0, Math.round((distance + random.nextGaussian() * rangeNoise[0]) * 1000));
+
+					writePacket(out, packet, (short) sensorStep, millimeters, (short) -1);
+					nextPacketTime = throttle(nextPacketTime, packetInterval);
+				}
+
+				// finish the movement and report it as encoder counts, with noise on each wheel
+				theta = (float) MathUtil.angleConstrain(startTheta + turn);
+				x = startX + MathUtil.cos(theta) * forward;
+				y = startY + MathUtil.sin(theta) * forward;
+				if (Math.hypot(PATH[waypoint][0] - x, PATH[waypoint][1] - y) < WAYPOINT_TOLERANCE)
+					waypoint = (waypoint + 1) % PATH.length;
+
+				double dLeft = forward - turn * Robot.WHEEL_DISTANCE / 2, dRight = forward + turn * Robot.WHEEL_DISTANCE / 2;
+				writePacket(out, packet, (short) -1, toEncoderCount(dLeft), toEncoderCount(dRight));
+				nextPacketTime = throttle(nextPacketTime, packetInterval);
+			}
+		} catch (InterruptedException ie) {
+			// disconnected
+		} catch (IOException ioe) {
+			// the reading thread has stopped
+		}
+	}
+
+	// waits until it is time for the next packet, sleeping in whole milliseconds so that high rates send packets in bursts
+	private long throttle(long nextPacketTime, long packetInterval) throws InterruptedException {
+		nextPacketTime += packetInterval;
+
+		long wait = nextPacketTime - System.nanoTime();
+		if (wait >= 1000000)
+			Thread.sleep(wait / 1000000);
+
+		return nextPacketTime;
+	}
+
+	// converts a distance traveled by a wheel into encoder counts, as the inverse of Odometry(int, int)
+	private short toEncoderCount(double distance) {
+		distance *= 1 + random.nextGaussian() * odometryNoise[0];
+		return (short) Math.round(distance / (MathUtil.PI * Robot.WHEEL_DIAMETER) * Robot.MOTOR_STEPS_PER_REVOLUTION);
+	}
+
+	// writes the header and the three values in the little endian byte order of the robot
+	private static void writePacket(OutputStream out, byte[] packet, short steps, short front, short back) throws IOException {
+		packet[0] = (byte) 0xAA;
+		packet[1] = (byte) 0x55;
+		packet[2] = (byte) steps;
+		packet[3] = (byte) (steps >> 8);
+		packet[4] = (byte) front;
+		packet[5] = (byte) (front >> 8);
+		packet[6] = (byte) back;
+		packet[7] = (byte) (back >> 8);
+		out.write(packet);
+
+		// wakes up a reader waiting for data
+		out.flush();
+	}
+
+	// returns the distance to the first occupied cell in the given world direction from the robot, or -1 if there is none
+	// within the range of the sensor
+	private float castRay(float angle) {
+		final float resolution = gridMap.getResolution();
+		final Vec2 position = gridMap.getPosition();
+		final float cos = MathUtil.cos(angle), sin = MathUtil.sin(angle);
+
+		float startX = (x - position.getX()) / resolution, startY = (y - position.getY()) / resolution;
+		float range = SensorModel.SENSOR_MAX_RANGE / resolution;
+		rayIterator.init(startX, startY, startX + cos * range, startY + sin * range, 0);
+
+		while (rayIterator.hasNext()) {
+			rayIterator.step();
+			int cellX = rayIterator.getCellX(), cellY = rayIterator.getCellY();
+
+			if (gridMap.getRawAt(map, cellX, cellY) > 0) {
+				// the distance along the ray to the center of the cell
+				float distance = ((cellX + 0.5f - startX) * cos + (cellY + 0.5f - startY) * sin) * resolution;
+				return Math.max(distance, 0);
+			}
+		}
+
+		return -1;
+	}
+
+	// creates a room with a couple of obstacles, the same size as the map used by SLAM
+	private void generateRoom() {
+		gridMap = new GridMap(6.0f, 6.0f, 0.05f, new Vec2(-3.0f, -3.0f));
+		map = gridMap.createMapData(null);
+
+		final double occupied = Util.logOdds(SensorModel.P_OCCUPPIED);
+		final float resolution = gridMap.getResolution();
+		final Vec2 position = gridMap.getPosition();
+		for (int cy = 0; cy < map.logData.getHeight(); cy++) {
+			for (int cx = 0; cx < map.logData.getWidth(); cx++) {
+				float wx = (cx + 0.5f) * resolution + position.getX(), wy = (cy + 0.5f) * resolution + position.getY();
+
+				boolean wall = Math.abs(wx) > 2.4f && Math.abs(wx) < 2.5f && Math.abs(wy) < 2.0f
+						|| Math.abs(wy) > 1.9f && Math.abs(wy) < 2.0f && Math.abs(wx) < 2.5f;
+				boolean box = Math.abs(wx - 0.2f) < 0.3f && Math.abs(wy - 0.6f) < 0.2f || Math.hypot(wx + 0.8f, wy + 0.5f) < 0.25f;
+				if (wall || box)
+					map.logData.set(cx, cy, occupied);
+			}
+		}
+		gridMap.invalidateLikelihoodMap(map);
+	}
+
+	/** Receives the commands sent to the robot, which are a command byte followed by zero or more parameter bytes */
+	private class CommandStream extends OutputStream {
+		private int command = -1, remaining = 0;
+
+		@Override
+		public void write(int b) {
+			b &= 0xff;
+
+			// a parameter byte of the current command
+			if (remaining > 0) {
+				remaining--;
+				if (command == COMMAND_SET_RES && b > 0)
+					sensorResolution = b;
+				return;
+			}
+
+			command = b;
+			switch (command) {
+			case COMMAND_ONCE:
+				revolutionsRequested++;
+				break;
+			case COMMAND_ENABLE:
+				enabled = true;
+				break;
+			case COMMAND_DISABLE:
+				enabled = false;
+				break;
+			case COMMAND_SET_RES:
+				remaining = 1;
+				break;
+			case COMMAND_SET_SPEED:
+				// left and right speeds
+				remaining = 8;
+				break;
+			case COMMAND_SET_KP:
+			case COMMAND_SET_KI:
+			case COMMAND_SET_KD:
+			case COMMAND_SET_TF:
+				// PID parameters
+				remaining = 4;
+				break;
+			default:
+				break;
+			}
+		}
+	}
+}
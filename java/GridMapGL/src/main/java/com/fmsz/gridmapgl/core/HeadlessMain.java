@@ -0,0 +1,277 @@
+/*******************************************************************************
+ *  Copyright 2018 Anton Berneving
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *******************************************************************************/
+package com.fmsz.gridmapgl.core;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import com.fmsz.gridmapgl.app.DataEventHandler;
+import com.fmsz.gridmapgl.app.DataEventHandler.IDataSubscriber;
+import com.fmsz.gridmapgl.app.RecordingFile;
+import com.fmsz.gridmapgl.app.Util;
+import com.fmsz.gridmapgl.conn.ConnectionThread;
+import com.fmsz.gridmapgl.conn.IConnection;
+import com.fmsz.gridmapgl.conn.NetworkConnection;
+import com.fmsz.gridmapgl.conn.SerialConnection;
+import com.fmsz.gridmapgl.conn.SimulatedConnection;
+import com.fmsz.gridmapgl.slam.GridMap;
+import com.fmsz.gridmapgl.slam.GridMap.CellStorage;
+import com.fmsz.gridmapgl.slam.GridMap.GridMapData;
+import com.fmsz.gridmapgl.slam.GridMap.PoseOptimizer;
+import com.fmsz.gridmapgl.slam.GridMapLoader;
+import com.fmsz.gridmapgl.slam.Observation;
+import com.fmsz.gridmapgl.slam.Pose;
+import com.fmsz.gridmapgl.slam.SLAM;
+import com.fmsz.gridmapgl.slam.TimeFrame;
+
+/**
+ * Runs SLAM without any window, for servers and batch runs. The data comes from a recording saved by the DataRecorder or
+ * from one of the connections, and goes through the DataEventHandler just like in the application. When done, the
+ * trajectory of the weighted pose is written to trajectory.csv and the map of the strongest particle to map.bin (readable
+ * by {@link GridMapLoader}) and map.pgm in the output directory.
+ *
+ * Nothing in here uses the graphics package, so it runs with only the headless source set on the classpath, see the
+ * runHeadless task in build.gradle.
+ *
+ * <pre>
+ * HeadlessMain (--recording FILE | --simulated SPEEDUP | --network HOST:PORT | --serial PORT:BAUD)
+ *              [--frames N] [--res DEGREES] [--threads N] [--storage DOUBLE|FLOAT|INT16] [--size METERS]
+ *              [--optimizer BOBYQA|GAUSS_NEWTON|CORRELATIVE] [--out DIR]
+ * </pre>
+ *
+ * The map is a square of --size meters (6 by default) centered around the start, with 5 cm cells stored as --storage.
+ *
+ * @author Anton
+ *
+ */
+public class HeadlessMain implements IDataSubscriber {
+	private final SLAM slam;
+	private final Observation correctedObservation = new Observation();
+	private final PrintWriter trajectory;
+
+	private int frameCounter = 0;
+	private long updateTime = 0;
+
+	private HeadlessMain(PrintWriter trajectory, SLAM slam) {
+		this.trajectory = trajectory;
+		this.slam = slam;
+		trajectory.println("frame,x,y,theta,neff,update_ms");
+	}
+
+	@Override
+	public void onHandleData(TimeFrame frame) {
+		// same processing as in the application, compensate for the motion and update the particles
+		correctedObservation.reset();
+		frame.u.compensateMotion(frame.z, correctedObservation);
+
+		long start = System.nanoTime();
+		double neff = slam.update(correctedObservation, frame.u);
+		if (neff < slam.getParticles().size() / 2)
+			slam.resample();
+		long timeTaken = System.nanoTime() - start;
+		updateTime += timeTaken;
+
+		Pose pose = slam.getWeightedPose();
+		trajectory.printf("%d,%.4f,%.4f,%.4f,%.3f,%.3f%n", frameCounter, pose.x, pose.y, pose.theta, neff, timeTaken / 1e6);
+		frameCounter++;
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		String recording = null, network = null, serial = null;
+		int simulated = 0, maxFrames = Integer.MAX_VALUE, resolution = 4, threads = SLAM.getDefaultParallelism();
+		CellStorage storage = CellStorage.DOUBLE;
+		float size = 6.0f;
+		PoseOptimizer optimizer = PoseOptimizer.BOBYQA;
+		Path out = Paths.get("out");
+
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (i + 1 >= args.length)
+				usage("Missing value for " + arg);
+
+			String value = args[++i];
+			switch (arg) {
+			case "--recording":
+				recording = value;
+				break;
+			case "--simulated":
+				simulated = Integer.parseInt(value);
+				break;
+			case "--network":
+				network = value;
+				break;
+			case "--serial":
+				serial = value;
+				break;
+			case "--frames":
+				maxFrames = Integer.parseInt(value);
+				break;
+			case "--res":
+				resolution = Integer.parseInt(value);
+				break;
+			case "--threads":
+				threads = Integer.parseInt(value);
+				break;
+			case "--storage":
+				try {
+					storage = CellStorage.valueOf(value.toUpperCase());
+				} catch (IllegalArgumentException e) {
+					usage("Unknown cell storage " + value);
+				}
+				break;
+			case "--size":
+				size = Float.parseFloat(value);
+				break;
+			case "--optimizer":
+				try {
+					optimizer = PoseOptimizer.valueOf(value.toUpperCase());
+				} catch (IllegalArgumentException e) {
+					usage("Unknown pose optimizer " + value);
+				}
+				break;
+			case "--out":
+				out = Paths.get(value);
+				break;
+			default:
+				usage("Unknown argument " + arg);
+			}
+		}
+
+		Files.createDirectories(out);
+		long start = System.nanoTime();
+
+		try (PrintWriter trajectory = new PrintWriter(Files.newBufferedWriter(out.resolve("trajectory.csv")))) {
+			HeadlessMain main = new HeadlessMain(trajectory, new SLAM(size, size, 0.05f, storage));
+			main.slam.setParallelism(threads);
+			main.slam.getGridMap().setPoseOptimizer(optimizer);
+			DataEventHandler.getInstance().subscribe(main);
+
+			if (recording != null) {
+				main.replay(recording, maxFrames);
+			} else {
+				IConnection conn = null;
+				if (simulated > 0) {
+					SimulatedConnection sim = new SimulatedConnection();
+					sim.setSpeedUp(simulated);
+					conn = sim;
+				} else if (network != null) {
+					NetworkConnection net = new NetworkConnection();
+					net.init();
+					net.setAddress(network.substring(0, network.lastIndexOf(':')), Integer.parseInt(network.substring(network.lastIndexOf(':') + 1)));
+					conn = net;
+				} else if (serial != null) {
+					SerialConnection ser = new SerialConnection();
+					ser.init();
+					ser.connect(serial.substring(0, serial.lastIndexOf(':')), Integer.parseInt(serial.substring(serial.lastIndexOf(':') + 1)));
+					conn = ser;
+				} else {
+					usage("No data source given");
+				}
+
+				main.receive(conn, maxFrames, resolution);
+			}
+
+			main.save(out);
+
+			long timeTaken = System.nanoTime() - start;
+			Runtime rt = Runtime.getRuntime();
+			System.out.printf("%d frames in %.2f s (%.2f ms per update), %d MB used%n", main.frameCounter, timeTaken / 1e9,
+					main.updateTime / 1e6 / Math.max(main.frameCounter, 1), (rt.totalMemory() - rt.freeMemory()) >> 20);
+
+			main.slam.dispose();
+		}
+	}
+
+	// publishes the frames of a recording as fast as they can be processed
+	private void replay(String file, int maxFrames) throws IOException {
+		try (RecordingFile.Reader reader = RecordingFile.open(Paths.get(file))) {
+			while (reader.hasNext() && frameCounter < maxFrames) {
+				DataEventHandler.getInstance().publish(reader.next());
+				DataEventHandler.getInstance().handleEvents(1);
+			}
+		}
+	}
+
+	// reads frames from the connection until maxFrames have been processed or the connection is lost
+	private void receive(IConnection conn, int maxFrames, int resolution) throws IOException, InterruptedException {
+		if (!conn.isConnected())
+			conn.connect();
+		if (!conn.isConnected()) {
+			System.err.println("[HeadlessMain] Could not connect to " + conn.getName());
+			return;
+		}
+
+		ConnectionThread thread = new ConnectionThread(conn.getInputStream());
+		thread.start();
+
+		// configure the robot and let it stream
+		OutputStream os = conn.getOutputStream();
+		os.write(new byte[] { IConnection.COMMAND_SET_RES, (byte) resolution, IConnection.COMMAND_ENABLE });
+		os.flush();
+
+		while (frameCounter < maxFrames && thread.isAlive()) {
+			int before = frameCounter;
+			DataEventHandler.getInstance().handleEvents(1);
+
+			// nothing to do, wait for the connection
+			if (frameCounter == before)
+				Thread.sleep(1);
+		}
+
+		os.write(IConnection.COMMAND_DISABLE);
+		os.flush();
+		thread.interrupt();
+		thread.join();
+		conn.disconnect();
+	}
+
+	// writes the map of the strongest particle
+	private void save(Path out) throws IOException {
+		GridMap gridMap = slam.getGridMap();
+		GridMapData map = slam.getStrongestParticle().m;
+
+		GridMapLoader.beginSave(out.resolve("map.bin").toString());
+		GridMapLoader.saveGridMap(gridMap);
+		GridMapLoader.saveGridMapData(map);
+		GridMapLoader.endSave();
+
+		// an 8 bit grayscale image, occupied cells are black and the first row in the file is the top of the map
+		int width = map.logData.getWidth(), height = map.logData.getHeight();
+		try (OutputStream os = new FileOutputStream(out.resolve("map.pgm").toFile())) {
+			os.write(String.format("P5\n%d %d\n255\n", width, height).getBytes());
+
+			byte[] row = new byte[width];
+			for (int y = height - 1; y >= 0; y--) {
+				for (int x = 0; x < width; x++)
+					row[x] = (byte) Math.round(255 * (1 - Util.invLogOdds(map.logData.get(x, y))));
+				os.write(row);
+			}
+		}
+	}
+
+	private static void usage(String error) {
+		System.err.println(error);
+		System.err.println("Usage: HeadlessMain (--recording FILE | --simulated SPEEDUP | --network HOST:PORT | --serial PORT:BAUD)");
+		System.err.println("                    [--frames N] [--res DEGREES] [--threads N] [--storage DOUBLE|FLOAT|INT16] [--size METERS]");
+		System.err.println("                    [--optimizer BOBYQA|GAUSS_NEWTON|CORRELATIVE] [--out DIR]");
+		System.exit(1);
+	}
+}
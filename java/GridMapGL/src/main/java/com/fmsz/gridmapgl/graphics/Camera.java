@@ -108,6 +108,23 @@ public class Camera {
 		return screenCoords;
 	}
 
+	/** Stores the lower left corner of the part of the world visible on screen in out and returns it */
+	public Vec2 getVisibleMin(Vec2 out) {
+		out.put(-position.getX() - zoom * viewportWidth / 2, -position.getY() - zoom * viewportHeight / 2);
+		return out;
+	}
+
+	/** Stores the upper right corner of the part of the world visible on screen in out and returns it */
+	public Vec2 getVisibleMax(Vec2 out) {
+		out.put(-position.getX() + zoom * viewportWidth / 2, -position.getY() + zoom * viewportHeight / 2);
+		return out;
+	}
+
+	/** Returns the size of one screen pixel in world units */
+	public float getPixelSize() {
+		return zoom * viewportWidth / currentScreenSize.getX();
+	}
+
 	public void update() {
 		if (!hasChanged)
 			return;
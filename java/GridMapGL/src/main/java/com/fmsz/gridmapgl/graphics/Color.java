@@ -64,4 +64,32 @@ public class Color {
 
 		return Float.intBitsToFloat(colorI & 0xfeffffff);
 	}
+
+	private static float[] grayscaleLUT;
+	private static byte[] grayscaleByteLUT;
+	static {
+		grayscaleLUT = new float[256];
+		grayscaleByteLUT = new byte[256];
+		for (int i = 0; i < grayscaleLUT.length; i++) {
+			float ratio = i / (float) grayscaleLUT.length;
+			grayscaleLUT[i] = colorToFloatBits(ratio, ratio, ratio, 1.0f);
+			grayscaleByteLUT[i] = (byte) (255 * ratio);
+		}
+	}
+
+	/**
+	 * Converts a value from 0.0f - 1.0f to the corresponding grayscale color bits where 0.0f = black
+	 * 
+	 * @param p
+	 *            the grayscale value
+	 * @return the colorbits
+	 */
+	public static float grayscaleToFloatBits(float p) {
+		return grayscaleLUT[(int) (p * 255)];
+	}
+
+	/** Returns the 8 bit gray level of p in [0, 1], the same level as {@link #grayscaleToFloatBits(float)} gives */
+	public static byte grayscaleToByte(float p) {
+		return grayscaleByteLUT[(int) (p * 255)];
+	}
 }
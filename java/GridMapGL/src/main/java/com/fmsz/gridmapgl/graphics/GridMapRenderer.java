@@ -0,0 +1,276 @@
+/*******************************************************************************
+ *  Copyright 2018 Anton Berneving
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *******************************************************************************/
+package com.fmsz.gridmapgl.graphics;
+
+import static org.lwjgl.opengl.GL11.GL_FLOAT;
+import static org.lwjgl.opengl.GL11.GL_TRIANGLES;
+import static org.lwjgl.opengl.GL11.glDrawArrays;
+
+import java.nio.ByteBuffer;
+
+import org.lwjgl.BufferUtils;
+
+import com.fmsz.gridmapgl.app.Util;
+import com.fmsz.gridmapgl.graphics.ShapeRenderer.ShapeType;
+import com.fmsz.gridmapgl.graphics.gl.Shader;
+import com.fmsz.gridmapgl.graphics.gl.Texture;
+import com.fmsz.gridmapgl.graphics.gl.VertexArray;
+import com.fmsz.gridmapgl.graphics.gl.VertexBuffer;
+import com.fmsz.gridmapgl.graphics.gl.VertexBufferLayout;
+import com.fmsz.gridmapgl.slam.GridMap;
+import com.fmsz.gridmapgl.slam.GridMap.GridMapData;
+import com.fmsz.gridmapgl.slam.TiledGrid;
+
+import glm_.vec2.Vec2;
+import glm_.vec2.Vec2i;
+
+/**
+ * Draws a {@link GridMap}. Kept apart from GridMap so that the SLAM classes do not depend on OpenGL.
+ *
+ * The cells are stored as gray levels in a texture with one texel per cell, which is drawn as a single quad. Between
+ * frames only the tiles of the {@link TiledGrid} that changed and are visible are uploaded again, so drawing a large map
+ * where the robot only sees a small part costs about the same as drawing a small one.
+ *
+ * Each uploaded tile also updates the mip levels of the texture, reduced down to one texel per tile by averaging 2x2
+ * texels, which are drawn instead of the full map when several cells fall within one pixel.
+ */
+public class GridMapRenderer {
+	private static final int TILE_SIZE = TiledGrid.TILE_SIZE;
+
+	/** the texture is reduced until each tile is a single texel */
+	private static final int LEVELS = TiledGrid.TILE_SHIFT + 1;
+
+	/** grid lines are only drawn when the cells are at least this many pixels wide */
+	private static final float MIN_LINE_PIXELS = 4;
+
+	// the layout of the quad, position and texture coordinate
+	private final VertexBufferLayout layout = new VertexBufferLayout().push(GL_FLOAT, 3, false).push(GL_FLOAT, 2, false);
+
+	private VertexArray va;
+	private VertexBuffer vb;
+	private Shader shader;
+	private final float[] vertices = new float[6 * 5];
+
+	// the texture holding the map, created when the size of the map is known
+	private Texture texture;
+
+	// the tile keys and versions currently in the texture, see TiledGrid.getTileKey
+	private Object[] uploadedTiles;
+	private int[] uploadedVersions;
+
+	// the gray levels of one tile, stored row by row, and the tile reduced to the current and next level
+	private final ByteBuffer tileBuffer = BufferUtils.createByteBuffer(TILE_SIZE * TILE_SIZE);
+	private int[] levelData = new int[TILE_SIZE * TILE_SIZE], nextLevelData = new int[TILE_SIZE * TILE_SIZE];
+
+	// the visible part of the world
+	private final Vec2 visibleMin = new Vec2(), visibleMax = new Vec2();
+
+	// the number of tiles uploaded during the last call to render
+	private int lastUploadedTiles = 0;
+
+	public GridMapRenderer() {
+		shader = new Shader("res/shaders/texture.shader");
+		vb = new VertexBuffer(vertices.length * 4);
+
+		va = new VertexArray();
+		va.addBuffer(vb, layout);
+	}
+
+	/**
+	 * Draws the cells of the map visible by the camera in gray, showing either the occupancy probability or the likelihood
+	 * field, together with the cells of the last rays and optionally the grid lines
+	 */
+	public void render(ShapeRenderer rend, Camera cam, GridMap gridMap, GridMapData map, boolean renderLines, boolean renderLikelihood) {
+		final TiledGrid grid = renderLikelihood ? map.likelihoodData : map.logData;
+		final int width = grid.getWidth(), height = grid.getHeight();
+		final float resolution = gridMap.getResolution();
+		final Vec2 position = gridMap.getPosition();
+
+		// the range of cells visible on screen, nothing to do if the map is outside of it
+		cam.getVisibleMin(visibleMin);
+		cam.getVisibleMax(visibleMax);
+		int minX = Math.max(0, (int) Math.floor((visibleMin.getX() - position.getX()) / resolution));
+		int minY = Math.max(0, (int) Math.floor((visibleMin.getY() - position.getY()) / resolution));
+		int maxX = Math.min(width - 1, (int) Math.floor((visibleMax.getX() - position.getX()) / resolution));
+		int maxY = Math.min(height - 1, (int) Math.floor((visibleMax.getY() - position.getY()) / resolution));
+		if (minX > maxX || minY > maxY)
+			return;
+
+		updateTexture(grid, renderLikelihood, minX >> TiledGrid.TILE_SHIFT, minY >> TiledGrid.TILE_SHIFT, maxX >> TiledGrid.TILE_SHIFT,
+				maxY >> TiledGrid.TILE_SHIFT);
+
+		// draw the texture as one quad covering the whole map, the first row of the texture is at the bottom
+		float x0 = position.getX(), y0 = position.getY();
+		float x1 = x0 + width * resolution, y1 = y0 + height * resolution;
+		int i = 0;
+		i = vertex(i, x0, y0, 0, 0);
+		i = vertex(i, x1, y0, 1, 0);
+		i = vertex(i, x1, y1, 1, 1);
+		i = vertex(i, x1, y1, 1, 1);
+		i = vertex(i, x0, y1, 0, 1);
+		i = vertex(i, x0, y0, 0, 0);
+
+		shader.bind();
+		shader.setUniformMat4("u_projModelView", cam.combined);
+		texture.bind();
+
+		vb.bind();
+		vb.setVertices(vertices, 0, i);
+
+		va.bind();
+		glDrawArrays(GL_TRIANGLES, 0, 6);
+
+		rend.begin(ShapeType.FILLED);
+		for (Vec2i v : gridMap.rays) {
+			rend.rect(v.getX() * resolution + position.getX(), v.getY() * resolution + position.getY(), resolution, resolution, Color.colorToFloatBits(1, 0, 0, 1));
+		}
+		rend.end();
+
+		// the lines of the visible cells, unless they are so small that the lines would cover them
+		if (renderLines && resolution >= MIN_LINE_PIXELS * cam.getPixelSize()) {
+			rend.begin(ShapeType.LINE);
+
+			float bottom = minY * resolution + position.getY(), top = (maxY + 1) * resolution + position.getY();
+			for (int x = minX; x <= maxX + 1; x++)
+				rend.line(x * resolution + position.getX(), bottom, x * resolution + position.getX(), top, Color.BLACK);
+
+			float left = minX * resolution + position.getX(), right = (maxX + 1) * resolution + position.getX();
+			for (int y = minY; y <= maxY + 1; y++)
+				rend.line(left, y * resolution + position.getY(), right, y * resolution + position.getY(), Color.BLACK);
+
+			rend.end();
+		}
+	}
+
+	/** Returns the number of tiles uploaded to the texture during the last call to render */
+	public int getLastUploadedTiles() {
+		return lastUploadedTiles;
+	}
+
+	public void dispose() {
+		if (texture != null)
+			texture.dispose();
+		va.dispose();
+		vb.dispose();
+		shader.dispose();
+	}
+
+	// uploads the tiles of the grid inside (minTX, minTY) - (maxTX, maxTY) that differ from what is in the texture, the
+	// others are uploaded once they become visible
+	private void updateTexture(TiledGrid grid, boolean likelihood, int minTX, int minTY, int maxTX, int maxTY) {
+		final int width = grid.getWidth(), height = grid.getHeight();
+		final int tilesX = grid.getTilesX(), tilesY = grid.getTilesY();
+
+		// (re)create the texture if the map changed size, everything has to be uploaded then
+		if (texture == null || texture.getWidth() != width || texture.getHeight() != height) {
+			if (texture != null)
+				texture.dispose();
+			texture = new Texture(width, height, LEVELS);
+			uploadedTiles = new Object[tilesX * tilesY];
+			uploadedVersions = new int[tilesX * tilesY];
+		}
+
+		lastUploadedTiles = 0;
+		for (int ty = minTY; ty <= maxTY; ty++) {
+			for (int tx = minTX; tx <= maxTX; tx++) {
+				int index = tx + ty * tilesX;
+				Object key = grid.getTileKey(tx, ty);
+				int version = grid.getTileVersion(tx, ty);
+
+				// the values in the tile are the same as last time
+				if (uploadedTiles[index] == key && uploadedVersions[index] == version)
+					continue;
+
+				// the tiles at the right and top edges may be partly outside of the grid
+				int x0 = tx * TILE_SIZE, y0 = ty * TILE_SIZE;
+				int w = Math.min(TILE_SIZE, width - x0), h = Math.min(TILE_SIZE, height - y0);
+
+				int i = 0;
+				for (int y = y0; y < y0 + h; y++) {
+					for (int x = x0; x < x0 + w; x++) {
+						float value;
+						if (likelihood)
+							value = (float) grid.get(x, y);
+						else
+							value = (float) (1.0f - Util.invLogOdds(grid.get(x, y)));
+
+						levelData[i++] = Color.grayscaleToByte(value) & 0xff;
+					}
+				}
+				uploadLevel(0, x0, y0, w, h);
+
+				// reduce the tile level by level, the last levels of a tile at the edge may be outside of the texture
+				for (int level = 1; level < LEVELS; level++) {
+					int lx = x0 >> level, ly = y0 >> level;
+					int lw = Math.min(TILE_SIZE >> level, texture.getWidth(level) - lx);
+					int lh = Math.min(TILE_SIZE >> level, texture.getHeight(level) - ly);
+					if (lw <= 0 || lh <= 0)
+						break;
+
+					reduce(w, h, lw, lh);
+					w = lw;
+					h = lh;
+					uploadLevel(level, lx, ly, w, h);
+				}
+
+				uploadedTiles[index] = key;
+				uploadedVersions[index] = version;
+				lastUploadedTiles++;
+			}
+		}
+	}
+
+	// uploads the w * h values in levelData to the rectangle starting at (x, y) of a level of the texture
+	private void uploadLevel(int level, int x, int y, int w, int h) {
+		tileBuffer.clear();
+		for (int i = 0; i < w * h; i++)
+			tileBuffer.put((byte) levelData[i]);
+		tileBuffer.flip();
+
+		texture.setSubImage(level, x, y, w, h, tileBuffer);
+	}
+
+	// replaces the w * h values in levelData by the nw * nh averages of 2x2 of them, leaving out those outside of w * h (each
+	// level of the texture is at most half the size of the previous one, so there is always at least one)
+	private void reduce(int w, int h, int nw, int nh) {
+		for (int y = 0; y < nh; y++) {
+			for (int x = 0; x < nw; x++) {
+				int sum = 0, count = 0;
+				for (int sy = 2 * y; sy < Math.min(2 * y + 2, h); sy++) {
+					for (int sx = 2 * x; sx < Math.min(2 * x + 2, w); sx++) {
+						sum += levelData[sx + sy * w];
+						count++;
+					}
+				}
+				nextLevelData[x + y * nw] = sum / count;
+			}
+		}
+
+		int[] tmp = levelData;
+		levelData = nextLevelData;
+		nextLevelData = tmp;
+	}
+
+	// stores a vertex of the quad at index i in the vertex array and returns the index of the next one
+	private int vertex(int i, float x, float y, float u, float v) {
+		vertices[i++] = x;
+		vertices[i++] = y;
+		vertices[i++] = 0;
+		vertices[i++] = u;
+		vertices[i++] = v;
+		return i;
+	}
+}
@@ -0,0 +1,147 @@
+/*******************************************************************************
+ *  Copyright 2018 Anton Berneving
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *******************************************************************************/
+package com.fmsz.gridmapgl.graphics;
+
+import static org.lwjgl.opengl.GL11.GL_FLOAT;
+import static org.lwjgl.opengl.GL11.GL_TRIANGLES;
+import static org.lwjgl.opengl.GL31.glDrawArraysInstanced;
+
+import com.fmsz.gridmapgl.graphics.gl.Shader;
+import com.fmsz.gridmapgl.graphics.gl.VertexArray;
+import com.fmsz.gridmapgl.graphics.gl.VertexBuffer;
+import com.fmsz.gridmapgl.graphics.gl.VertexBufferLayout;
+import com.fmsz.gridmapgl.math.MathUtil;
+
+import glm_.mat4x4.Mat4;
+
+/**
+ * Draws the particles of the SLAM as small arrows with one instanced draw call. The poses and weights of the particles are
+ * uploaded as a packed buffer when they change (once per SLAM update), and the arrow is rotated, moved and colored by its weight
+ * in the vertex shader, so nothing is generated per frame.
+ */
+public class ParticleRenderer {
+	/** the number of floats per particle, x, y, theta and the weight */
+	public static final int FLOATS_PER_PARTICLE = 4;
+
+	// the arrow of ShapeRenderer.arrow with radius 1, pointing along the x axis
+	private static final float aSin = MathUtil.sin((float) (MathUtil.DEG_TO_RAD * 45));
+	private static final float aCos = MathUtil.cos((float) (MathUtil.DEG_TO_RAD * 45));
+	private static final float[] ARROW = new float[] {
+			1, 0, -aCos, aSin, -1 / 3f, 0, // front, back left, back middle
+			-1 / 3f, 0, -aCos, -aSin, 1, 0 // back middle, back right, front
+	};
+
+	// the layouts of the arrow and of the particles
+	private final VertexBufferLayout arrowLayout = new VertexBufferLayout().push(GL_FLOAT, 2, false);
+	private final VertexBufferLayout particleLayout = new VertexBufferLayout().push(GL_FLOAT, FLOATS_PER_PARTICLE, false);
+
+	private Shader shader;
+
+	// created when the first particles are uploaded, and again if there are more particles than fit
+	private VertexArray va;
+	private VertexBuffer arrowVb, particleVb;
+	private int capacity = 0;
+
+	// the packed particles and whether they have changed since they were uploaded
+	private float[] particleData = new float[0];
+	private int particleCount = 0;
+	private boolean changed = false;
+
+	// the number of times the particles have been uploaded
+	private int uploads = 0;
+
+	public ParticleRenderer() {
+		shader = new Shader("res/shaders/particle.shader");
+	}
+
+	/**
+	 * Sets the particles to draw from count packed particles (x, y, theta and the weight), to be uploaded at the next
+	 * render. The weights are stored relative to the strongest particle. Should be called every time the particles have
+	 * changed.
+	 */
+	public void setParticles(float[] particles, int count) {
+		particleCount = count;
+		if (particleData.length < particleCount * FLOATS_PER_PARTICLE)
+			particleData = new float[particleCount * FLOATS_PER_PARTICLE];
+
+		float maxWeight = 0;
+		for (int i = 0; i < count; i++)
+			maxWeight = Math.max(maxWeight, particles[i * FLOATS_PER_PARTICLE + 3]);
+
+		System.arraycopy(particles, 0, particleData, 0, count * FLOATS_PER_PARTICLE);
+		for (int i = 0; i < count; i++)
+			particleData[i * FLOATS_PER_PARTICLE + 3] = maxWeight > 0 ? particles[i * FLOATS_PER_PARTICLE + 3] / maxWeight : 0;
+
+		changed = true;
+	}
+
+	/** Draws all particles as arrows with the given radius */
+	public void render(Mat4 projModelView, float size) {
+		if (particleCount == 0)
+			return;
+
+		if (changed) {
+			upload();
+			changed = false;
+		}
+
+		shader.bind();
+		shader.setUniformMat4("u_projModelView", projModelView);
+		shader.setUniform1f("u_size", size);
+
+		va.bind();
+		glDrawArraysInstanced(GL_TRIANGLES, 0, ARROW.length / 2, particleCount);
+	}
+
+	/** Returns the number of times the particles have been uploaded */
+	public int getUploads() {
+		return uploads;
+	}
+
+	public void dispose() {
+		disposeBuffers();
+		shader.dispose();
+	}
+
+	// sends the packed particles to the GPU, creating larger buffers if needed
+	private void upload() {
+		if (particleCount > capacity) {
+			disposeBuffers();
+			capacity = particleCount;
+
+			arrowVb = new VertexBuffer(ARROW.length * 4);
+			arrowVb.setVertices(ARROW);
+			particleVb = new VertexBuffer(capacity * particleLayout.getStride());
+
+			va = new VertexArray();
+			va.addBuffer(arrowVb, arrowLayout);
+			va.addInstancedBuffer(particleVb, particleLayout);
+		}
+
+		particleVb.bind();
+		particleVb.setVertices(particleData, 0, particleCount * FLOATS_PER_PARTICLE);
+		uploads++;
+	}
+
+	private void disposeBuffers() {
+		if (va == null)
+			return;
+
+		va.dispose();
+		arrowVb.dispose();
+		particleVb.dispose();
+	}
+}
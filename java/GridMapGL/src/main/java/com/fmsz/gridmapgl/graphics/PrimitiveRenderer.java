@@ -23,19 +23,32 @@ import static org.lwjgl.opengl.GL11.*;
 //import static org.lwjgl.opengl.GL15.*;
 
 import com.fmsz.gridmapgl.graphics.gl.Shader;
+import com.fmsz.gridmapgl.graphics.gl.StreamingVertexBuffer;
 import com.fmsz.gridmapgl.graphics.gl.VertexArray;
-import com.fmsz.gridmapgl.graphics.gl.VertexBuffer;
 import com.fmsz.gridmapgl.graphics.gl.VertexBufferLayout;
 
+/**
+ * Collects vertices (a position and a packed color) into batches, which are handed to an {@link IBatchSink} when end is
+ * called or the batch is full. The default sink draws them with OpenGL, appending them to a large
+ * {@link StreamingVertexBuffer}, but any sink can be used so that the vertex generation runs without a GL context.
+ */
 public class PrimitiveRenderer {
+	/** the number of floats per vertex, x, y, z and the packed color */
+	public static final int FLOATS_PER_VERTEX = 4;
 
-	// the layout used by this renderer
-	private final VertexBufferLayout layout = new VertexBufferLayout().push(GL_FLOAT, 3, false).push(GL_UNSIGNED_BYTE, 4, true);
+	/** the number of full batches that fit in the streaming buffer before it wraps */
+	private static final int RING_BATCHES = 8;
 
-	// the vertex array, vertex buffer and shader used by this renderer
-	private VertexArray va;
-	private VertexBuffer vb;
-	private Shader shader;
+	/** Receives the batches of vertices collected by a PrimitiveRenderer */
+	public static interface IBatchSink {
+		/** Draws vertexCount vertices of primitiveType, stored in vertices with FLOATS_PER_VERTEX floats each */
+		void draw(int primitiveType, float[] vertices, int vertexCount, Mat4 projModelView);
+
+		void dispose();
+	}
+
+	// receives the finished batches
+	private final IBatchSink sink;
 
 	// stores and keeps track of vertices to draw
 	private float vertices[];
@@ -49,23 +62,22 @@ public class PrimitiveRenderer {
 	// the primitive type being drawn
 	private int primitiveType = 0;
 
-	public PrimitiveRenderer(int maxVertices) {
-		this.maxVertices = maxVertices;
+	// statistics, the number of batches and vertices handed to the sink
+	private int batches = 0;
+	private long batchedVertices = 0;
 
-		// load our shader
-		shader = new Shader("res/shaders/basic.shader");
-		shader.bind();
-
-		// create a vertex buffer to hold our data (size in bytes)
-		vb = new VertexBuffer(maxVertices * layout.getStride());
-
-		// create our view of the vertices (size in float = size in bytes / 4)
-		vertices = new float[maxVertices * 4];
+	/** Creates a renderer drawing batches of at most maxVertices vertices with OpenGL */
+	public PrimitiveRenderer(int maxVertices) {
+		this(maxVertices, new StreamingSink(maxVertices * RING_BATCHES));
+	}
 
-		// create vertex array and combine our vertex buffer with the layout
-		va = new VertexArray();
-		va.addBuffer(vb, layout);
+	/** Creates a renderer handing batches of at most maxVertices vertices to sink */
+	public PrimitiveRenderer(int maxVertices, IBatchSink sink) {
+		this.maxVertices = maxVertices;
+		this.sink = sink;
 
+		// create our view of the vertices
+		vertices = new float[maxVertices * FLOATS_PER_VERTEX];
 	}
 
 	public void setMVP(Mat4 projModelView) {
@@ -92,7 +104,7 @@ public class PrimitiveRenderer {
 		vertices[index + 1] = y;
 		vertices[index + 2] = z;
 
-		index += 4;// 7;
+		index += FLOATS_PER_VERTEX;
 		vertexCount++;
 	}
 
@@ -127,19 +139,11 @@ public class PrimitiveRenderer {
 	}
 
 	public void end() {
-
-		// use our shader
-		shader.bind();
-		if (projModelView != null)
-			shader.setUniformMat4("u_projModelView", projModelView);
-
-		// upload our data
-		vb.bind();
-		vb.setVertices(vertices, 0, index);
-
-		// do the actual drawing using a draw call
-		va.bind();
-		glDrawArrays(primitiveType, 0, vertexCount);
+		if (vertexCount > 0) {
+			sink.draw(primitiveType, vertices, vertexCount, projModelView);
+			batches++;
+			batchedVertices += vertexCount;
+		}
 
 		// reset state
 		vertexCount = 0;
@@ -154,10 +158,63 @@ public class PrimitiveRenderer {
 		return maxVertices;
 	}
 
+	/** Returns the number of batches handed to the sink */
+	public int getBatches() {
+		return batches;
+	}
+
+	/** Returns the total number of vertices handed to the sink */
+	public long getBatchedVertices() {
+		return batchedVertices;
+	}
+
 	public void dispose() {
-		va.dispose();
-		vb.dispose();
-		shader.dispose();
+		sink.dispose();
+	}
+
+	/** Draws the batches with the basic shader, appending them to a streaming vertex buffer */
+	private static class StreamingSink implements IBatchSink {
+		// the layout of the vertices
+		private final VertexBufferLayout layout = new VertexBufferLayout().push(GL_FLOAT, 3, false).push(GL_UNSIGNED_BYTE, 4, true);
+
+		// the vertex array, vertex buffer and shader used by this renderer
+		private VertexArray va;
+		private StreamingVertexBuffer vb;
+		private Shader shader;
+
+		StreamingSink(int capacity) {
+			// load our shader
+			shader = new Shader("res/shaders/basic.shader");
+			shader.bind();
+
+			// create a vertex buffer to hold our data
+			vb = new StreamingVertexBuffer(capacity, layout.getStride());
+
+			// create vertex array and combine our vertex buffer with the layout
+			va = new VertexArray();
+			va.addBuffer(vb, layout);
+		}
+
+		@Override
+		public void draw(int primitiveType, float[] vertices, int vertexCount, Mat4 projModelView) {
+			// use our shader
+			shader.bind();
+			shader.setUniformMat4("u_projModelView", projModelView);
+
+			// upload our data after the previous batches
+			int first = vb.append(vertices, 0, vertexCount);
+
+			// do the actual drawing using a draw call
+			va.bind();
+			glDrawArrays(primitiveType, first, vertexCount);
+		}
+
+		@Override
+		public void dispose() {
+			va.dispose();
+			vb.dispose();
+			shader.dispose();
+		}
 	}
 
 }
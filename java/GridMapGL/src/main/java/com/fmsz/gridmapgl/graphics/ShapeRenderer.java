@@ -47,7 +47,12 @@ public class ShapeRenderer {
 	private PrimitiveRenderer renderer;
 
 	public ShapeRenderer() {
-		renderer = new PrimitiveRenderer(1000);
+		this(new PrimitiveRenderer(16384));
+	}
+
+	/** Creates a shape renderer generating its vertices into renderer */
+	public ShapeRenderer(PrimitiveRenderer renderer) {
+		this.renderer = renderer;
 	}
 
 	public void line(Vec2 start, Vec2 end, Color color) {
@@ -102,6 +102,10 @@ public class Shader {
 		return id;
 	}
 
+	public void setUniform1f(String name, float v0) {
+		glUniform1f(getUniformLocation(name), v0);
+	}
+
 	public void setUniform4f(String name, float v0, float v1, float v2, float v3) {
 		glUniform4f(getUniformLocation(name), v0, v1, v2, v3);
 	}
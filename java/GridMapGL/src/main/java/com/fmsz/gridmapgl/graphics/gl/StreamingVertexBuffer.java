@@ -0,0 +1,96 @@
+/*******************************************************************************
+ *  Copyright 2018 Anton Berneving
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *******************************************************************************/
+package com.fmsz.gridmapgl.graphics.gl;
+
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A vertex buffer for data that changes every time it is drawn. Instead of replacing the whole buffer for each batch like
+ * {@link VertexBuffer}, the batches are appended after each other in a large buffer used as a ring (see
+ * {@link VertexRing}), and are drawn by passing the index returned by {@link #append(float[], int, int)} as the first
+ * vertex to glDrawArrays.
+ *
+ * The batches are written through unsynchronized mappings, which never wait for the GPU since the written range has not
+ * been used by any draw call since the storage was last replaced. When the ring wraps the storage is orphaned, the driver
+ * then hands out new storage and frees the old one when the draws using it are done.
+ *
+ */
+public class StreamingVertexBuffer {
+	private final int stride;
+	private final VertexRing ring;
+
+	private int bufferId = -1;
+
+	// the number of wraps of the ring when the storage was last replaced
+	private int orphanedWraps = 0;
+
+	/** Creates a buffer holding capacity vertices of stride bytes each */
+	public StreamingVertexBuffer(int capacity, int stride) {
+		this.stride = stride;
+		this.ring = new VertexRing(capacity);
+
+		// generate buffer and allocate its storage
+		bufferId = glGenBuffers();
+		bind();
+		glBufferData(GL_ARRAY_BUFFER, (long) capacity * stride, GL_STREAM_DRAW);
+	}
+
+	/**
+	 * Appends vertexCount vertices, stored in vertices starting at offset, and returns the index of the first of them in the
+	 * buffer. Binds the buffer.
+	 */
+	public int append(float[] vertices, int offset, int vertexCount) {
+		bind();
+
+		int first = ring.allocate(vertexCount);
+		if (ring.getWraps() != orphanedWraps) {
+			// the GPU may still draw from the beginning of the buffer, get new storage instead of waiting for it
+			glBufferData(GL_ARRAY_BUFFER, (long) ring.getCapacity() * stride, GL_STREAM_DRAW);
+			orphanedWraps = ring.getWraps();
+		}
+
+		if (vertexCount == 0)
+			return first;
+
+		ByteBuffer mapped = glMapBufferRange(GL_ARRAY_BUFFER, (long) first * stride, (long) vertexCount * stride,
+				GL_MAP_WRITE_BIT | GL_MAP_INVALIDATE_RANGE_BIT | GL_MAP_UNSYNCHRONIZED_BIT);
+		mapped.order(ByteOrder.nativeOrder()).asFloatBuffer().put(vertices, offset, vertexCount * stride / 4);
+		glUnmapBuffer(GL_ARRAY_BUFFER);
+
+		return first;
+	}
+
+	/** Returns the ring keeping track of the batches in this buffer */
+	public VertexRing getRing() {
+		return ring;
+	}
+
+	public void bind() {
+		glBindBuffer(GL_ARRAY_BUFFER, bufferId);
+	}
+
+	public void unbind() {
+		glBindBuffer(GL_ARRAY_BUFFER, 0);
+	}
+
+	public void dispose() {
+		glDeleteBuffers(bufferId);
+	}
+}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ *  Copyright 2018 Anton Berneving
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *******************************************************************************/
+package com.fmsz.gridmapgl.graphics.gl;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.GL_CLAMP_TO_EDGE;
+import static org.lwjgl.opengl.GL12.GL_TEXTURE_MAX_LEVEL;
+import static org.lwjgl.opengl.GL30.GL_R8;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A class wrapping a single channel OpenGL texture with 8 bits per texel, which can be updated a part at a time. It is
+ * sampled without filtering, so every texel is drawn as a sharp square. It may have mip levels, reduced copies of the
+ * texture used when it is drawn smaller than its size, which the user must fill as well.
+ *
+ */
+public class Texture {
+
+	private int textureId = -1;
+	private final int width, height, levels;
+
+	public Texture(int width, int height) {
+		this(width, height, 1);
+	}
+
+	/** Creates a texture with the given number of levels, level 0 being the full size one */
+	public Texture(int width, int height, int levels) {
+		this.width = width;
+		this.height = height;
+		this.levels = levels;
+
+		// generate texture
+		textureId = glGenTextures();
+		bind();
+
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, levels > 1 ? GL_NEAREST_MIPMAP_NEAREST : GL_NEAREST);
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL, levels - 1);
+
+		// allocate the storage of all levels, the content is uploaded with setSubImage
+		for (int level = 0; level < levels; level++)
+			glTexImage2D(GL_TEXTURE_2D, level, GL_R8, getWidth(level), getHeight(level), 0, GL_RED, GL_UNSIGNED_BYTE, (ByteBuffer) null);
+	}
+
+	/** Replaces the texels in the rectangle starting at (x, y) with the given size by data, stored row by row */
+	public void setSubImage(int x, int y, int width, int height, ByteBuffer data) {
+		setSubImage(0, x, y, width, height, data);
+	}
+
+	/** Replaces the texels of a level in the rectangle starting at (x, y) with the given size by data, stored row by row */
+	public void setSubImage(int level, int x, int y, int width, int height, ByteBuffer data) {
+		bind();
+
+		// the rows are tightly packed, not aligned to 4 bytes
+		glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+		glTexSubImage2D(GL_TEXTURE_2D, level, x, y, width, height, GL_RED, GL_UNSIGNED_BYTE, data);
+		glPixelStorei(GL_UNPACK_ALIGNMENT, 4);
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/** Returns the width of a level, each level is half the size of the previous one */
+	public int getWidth(int level) {
+		return Math.max(1, width >> level);
+	}
+
+	/** Returns the height of a level, each level is half the size of the previous one */
+	public int getHeight(int level) {
+		return Math.max(1, height >> level);
+	}
+
+	public int getLevels() {
+		return levels;
+	}
+
+	public void bind() {
+		glBindTexture(GL_TEXTURE_2D, textureId);
+	}
+
+	public void unbind() {
+		glBindTexture(GL_TEXTURE_2D, 0);
+	}
+
+	public void dispose() {
+		glDeleteTextures(textureId);
+	}
+}
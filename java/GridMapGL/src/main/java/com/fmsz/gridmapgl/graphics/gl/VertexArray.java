@@ -19,6 +19,7 @@ package com.fmsz.gridmapgl.graphics.gl;
 //import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL33.glVertexAttribDivisor;
 
 import java.util.ArrayList;
 
@@ -28,6 +29,9 @@ public class VertexArray {
 
 	private int vaoId = -1;
 
+	// the index of the next vertex attribute, the attributes of each added buffer follow the previous ones
+	private int nextAttribute = 0;
+
 	public VertexArray() {
 		// generate buffer
 		vaoId = glGenVertexArrays();
@@ -44,15 +48,44 @@ public class VertexArray {
 		vb.bind();
 
 		// attach the layout (this binds the layout and VBO to the VAO)
+		attachLayout(layout, 0);
+	}
+
+	/**
+	 * Adds a buffer with per instance data to this VertexArray together with the specified layout. The attributes advance
+	 * once per instance instead of once per vertex when drawing with glDrawArraysInstanced.
+	 * 
+	 */
+	public void addInstancedBuffer(VertexBuffer vb, VertexBufferLayout layout) {
+		bind();
+		vb.bind();
+
+		attachLayout(layout, 1);
+	}
+
+	/**
+	 * Adds a streaming buffer to this VertexArray together with the specified layout
+	 * 
+	 */
+	public void addBuffer(StreamingVertexBuffer vb, VertexBufferLayout layout) {
+		bind();
+		vb.bind();
+
+		attachLayout(layout, 0);
+	}
 
+	private void attachLayout(VertexBufferLayout layout, int divisor) {
 		int offset = 0;
 
 		ArrayList<LayoutElement> elements = layout.getElements();
 		for (int i = 0; i < elements.size(); i++) {
 			LayoutElement element = elements.get(i);
+			int attribute = nextAttribute++;
 
-			glEnableVertexAttribArray(i);
-			glVertexAttribPointer(i, element.count, element.type, element.normalized, layout.getStride(), offset);
+			glEnableVertexAttribArray(attribute);
+			glVertexAttribPointer(attribute, element.count, element.type, element.normalized, layout.getStride(), offset);
+			if (divisor != 0)
+				glVertexAttribDivisor(attribute, divisor);
 
 			offset += element.count * LayoutElement.getGLSize(element.type);
 		}
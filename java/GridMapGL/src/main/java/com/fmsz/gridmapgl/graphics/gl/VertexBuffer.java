@@ -59,7 +59,10 @@ public class VertexBuffer {
 		buffer.position(0);
 		buffer.limit(count);
 		buffer.put(vertices, offset, count);
-		
+
+		// only send the vertices that were set
+		byteBuffer.position(0);
+		byteBuffer.limit(count * 4);
 
 		// send new vertices to GPU
 		if (!isBound)
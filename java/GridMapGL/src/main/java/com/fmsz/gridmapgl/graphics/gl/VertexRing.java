@@ -0,0 +1,86 @@
+/*******************************************************************************
+ *  Copyright 2018 Anton Berneving
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *******************************************************************************/
+package com.fmsz.gridmapgl.graphics.gl;
+
+/**
+ * Keeps track of where batches of vertices go in a ring buffer holding a fixed number of vertices. Batches are placed
+ * after each other until the next one does not fit, then the ring wraps and starts over from the beginning. A wrap is the
+ * only time the storage of the buffer has to be replaced, as the GPU may still be drawing from the old content.
+ *
+ * Does not use OpenGL, see {@link StreamingVertexBuffer} for the buffer using it.
+ *
+ */
+public class VertexRing {
+	private final int capacity;
+
+	// the index of the first free vertex
+	private int head = 0;
+
+	// statistics
+	private int wraps = 0, allocations = 0;
+	private long allocatedVertices = 0;
+
+	public VertexRing(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("The capacity must be positive, was " + capacity);
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Reserves room for count vertices after the previously reserved ones and returns the index of the first. If they do not
+	 * fit, the ring wraps first and they are placed at the beginning.
+	 */
+	public int allocate(int count) {
+		if (count < 0 || count > capacity)
+			throw new IllegalArgumentException("Cannot allocate " + count + " vertices in a ring of " + capacity);
+
+		if (head + count > capacity) {
+			head = 0;
+			wraps++;
+		}
+
+		int first = head;
+		head += count;
+		allocations++;
+		allocatedVertices += count;
+		return first;
+	}
+
+	/** Returns the number of vertices the ring can hold */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/** Returns the index of the vertex where the next batch is placed if it fits */
+	public int getHead() {
+		return head;
+	}
+
+	/** Returns the number of times the ring has wrapped */
+	public int getWraps() {
+		return wraps;
+	}
+
+	/** Returns the number of batches allocated */
+	public int getAllocations() {
+		return allocations;
+	}
+
+	/** Returns the total number of vertices allocated */
+	public long getAllocatedVertices() {
+		return allocatedVertices;
+	}
+}
@@ -0,0 +1,305 @@
+/*******************************************************************************
+ *  Copyright 2018 Anton Berneving
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *******************************************************************************/
+package com.fmsz.gridmapgl.slam;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+
+import com.fmsz.gridmapgl.math.MathUtil;
+import com.fmsz.gridmapgl.slam.GridMap.GridMapData;
+
+import glm_.vec2.Vec2;
+
+/**
+ * A correlative scan matcher finding the pose that maximizes the likelihood of an observation within a search window
+ * around a start pose, using branch-and-bound over a pyramid of max-pooled likelihood grids (in the style of Cartographer's
+ * fast correlative scan matcher). The result is the exact best pose among all rotations in steps of roughly one cell at the
+ * end of the longest measurement and all translations in steps of one cell, while only a small part of them are scored.
+ *
+ * The score of a pose is the sum of the logarithms of the measurement probabilities, the same as
+ * {@link GridMap#logProbabilityOf(GridMapData, Observation, Pose)}, except that measurements ending outside of the map get
+ * the worst score of any cell instead of being ignored, so that moving the observation off the map is never rewarded.
+ * Level h of the pyramid holds, for each cell, the best score of any cell in the 2^h by 2^h block starting at it, which
+ * gives an upper bound for all translations in that block.
+ *
+ * The pyramid of a map is kept with the map (see {@link Pyramid}), so only the part where the likelihood field changed
+ * since the last match is rebuilt. A matcher holds scratch data and must only be used by one thread at a time.
+ *
+ * @author Anton
+ *
+ */
+public class CorrelativeScanMatcher {
+	/** the number of pyramid levels above the full resolution, the top level blocks are 2^DEPTH cells wide */
+	public static final int DEPTH = 5;
+
+	/** A set of poses sharing rotation, and translations in a block of cells */
+	private static class Candidate {
+		final int angle, dx, dy;
+		final double score;
+
+		Candidate(int angle, int dx, int dy, double score) {
+			this.angle = angle;
+			this.dx = dx;
+			this.dy = dy;
+			this.score = score;
+		}
+	}
+
+	/**
+	 * The max-pooled scores of one map, level 0 is the score of each cell. The levels are stored in copy-on-write tiles like
+	 * the map itself, so copies of a map share the pyramid until one of them changes, and the bounding box of the cells whose
+	 * likelihood changed since the last rebuild is tracked the same way as for the likelihood field.
+	 */
+	static class Pyramid {
+		final TiledGrid[] levels = new TiledGrid[DEPTH + 1];
+
+		/** the bounding box (inclusive) of the level 0 cells to rebuild, empty if min > max */
+		private int dirtyMinX, dirtyMinY, dirtyMaxX, dirtyMaxY;
+
+		// creates a pyramid where everything needs to be built
+		Pyramid(int width, int height) {
+			for (int h = 0; h <= DEPTH; h++)
+				levels[h] = new FloatTiledGrid(width, height, 0);
+			dirtyMinX = dirtyMinY = 0;
+			dirtyMaxX = width - 1;
+			dirtyMaxY = height - 1;
+		}
+
+		// shares the tiles of other
+		Pyramid(Pyramid other) {
+			for (int h = 0; h <= DEPTH; h++)
+				levels[h] = other.levels[h].copy();
+			dirtyMinX = other.dirtyMinX;
+			dirtyMinY = other.dirtyMinY;
+			dirtyMaxX = other.dirtyMaxX;
+			dirtyMaxY = other.dirtyMaxY;
+		}
+
+		/** Grows the area to rebuild to include the cells (minX, minY) - (maxX, maxY) */
+		void markDirty(int minX, int minY, int maxX, int maxY) {
+			dirtyMinX = Math.min(dirtyMinX, minX);
+			dirtyMinY = Math.min(dirtyMinY, minY);
+			dirtyMaxX = Math.max(dirtyMaxX, maxX);
+			dirtyMaxY = Math.max(dirtyMaxY, maxY);
+		}
+
+		void release() {
+			for (TiledGrid level : levels)
+				level.release();
+		}
+	}
+
+	private final GridMap gridMap;
+
+	/** the levels of the pyramid of the map being matched */
+	private TiledGrid[] levels;
+	private int width, height;
+
+	/** the score of a measurement ending outside of the map, the lowest score of any cell */
+	private double outsideScore;
+
+	/** the end points of the hits in the robot's frame, and their cells for each rotation */
+	private float[] hitX = new float[0], hitY = new float[0];
+	private int[][] cellsX = new int[0][], cellsY = new int[0][];
+	private int hits;
+
+	/** the number of candidates scored during the last match, and the step between its rotations */
+	private int evaluations;
+	private double angleStep;
+
+	public CorrelativeScanMatcher(GridMap gridMap) {
+		this.gridMap = gridMap;
+	}
+
+	/**
+	 * Returns the pose within +-linearWindow meters and +-angularWindow radians of startPose that best explains obs given the
+	 * map. The likelihood field of the map must be up to date.
+	 */
+	public Pose match(GridMapData map, Observation obs, Pose startPose, double linearWindow, double angularWindow) {
+		evaluations = 0;
+		angleStep = 0;
+		collectHits(obs);
+		if (hits == 0)
+			return startPose;
+
+		buildPyramid(map);
+
+		// the angle step moves the end of the longest measurement by at most one cell
+		final float resolution = gridMap.getResolution();
+		double maxRange = 0;
+		for (int i = 0; i < hits; i++)
+			maxRange = Math.max(maxRange, Math.sqrt(hitX[i] * hitX[i] + hitY[i] * hitY[i]));
+		angleStep = maxRange > resolution ? Math.acos(1 - resolution * resolution / (2 * maxRange * maxRange)) : angularWindow;
+		final int angles = (int) Math.ceil(angularWindow / angleStep), window = (int) Math.ceil(linearWindow / resolution);
+
+		// the cells of the hits for each rotation, when placed at the start position
+		if (cellsX.length < 2 * angles + 1 || cellsX[0].length < hits) {
+			cellsX = new int[2 * angles + 1][hits];
+			cellsY = new int[2 * angles + 1][hits];
+		}
+		final Vec2 position = gridMap.getPosition();
+		for (int a = -angles; a <= angles; a++) {
+			double theta = startPose.theta + a * angleStep, cos = MathUtil.cos(theta), sin = MathUtil.sin(theta);
+			int[] cx = cellsX[a + angles], cy = cellsY[a + angles];
+			for (int i = 0; i < hits; i++) {
+				cx[i] = (int) Math.floor((hitX[i] * cos - hitY[i] * sin + startPose.x - position.getX()) / resolution);
+				cy[i] = (int) Math.floor((hitX[i] * sin + hitY[i] * cos + startPose.y - position.getY()) / resolution);
+			}
+		}
+
+		// score the top level blocks covering the whole window
+		ArrayList<Candidate> candidates = new ArrayList<>();
+		for (int a = 0; a <= 2 * angles; a++)
+			for (int dx = -window; dx <= window; dx += 1 << DEPTH)
+				for (int dy = -window; dy <= window; dy += 1 << DEPTH)
+					candidates.add(new Candidate(a, dx, dy, score(DEPTH, a, dx, dy)));
+
+		Candidate best = search(candidates, DEPTH, window, null);
+		return best == null ? startPose
+				: new Pose(startPose.x + best.dx * resolution, startPose.y + best.dy * resolution, (float) (startPose.theta + (best.angle - angles) * angleStep));
+	}
+
+	/** Returns the number of candidates scored during the last match */
+	public int getEvaluations() {
+		return evaluations;
+	}
+
+	/** Returns the step between the rotations tried during the last match, in radians, or 0 if nothing was tried */
+	public double getAngleStep() {
+		return angleStep;
+	}
+
+	// goes through the candidates in order of decreasing score, splitting them into smaller blocks until a single pose is
+	// reached. Blocks that can not beat the best pose found so far are skipped
+	private Candidate search(ArrayList<Candidate> candidates, int level, int window, Candidate best) {
+		candidates.sort((c1, c2) -> Double.compare(c2.score, c1.score));
+
+		for (Candidate c : candidates) {
+			if (best != null && c.score <= best.score)
+				break;
+
+			if (level == 0) {
+				best = c;
+				continue;
+			}
+
+			// split into the four sub-blocks inside the window
+			int half = 1 << (level - 1);
+			ArrayList<Candidate> children = new ArrayList<>(4);
+			for (int ox = 0; ox <= half; ox += half)
+				for (int oy = 0; oy <= half; oy += half)
+					if (c.dx + ox <= window && c.dy + oy <= window)
+						children.add(new Candidate(c.angle, c.dx + ox, c.dy + oy, score(level - 1, c.angle, c.dx + ox, c.dy + oy)));
+
+			best = search(children, level - 1, window, best);
+		}
+
+		return best;
+	}
+
+	// the score of the hits rotated by angle and moved dx, dy cells, at the given level of the pyramid
+	private double score(int level, int angle, int dx, int dy) {
+		evaluations++;
+
+		final TiledGrid grid = levels[level];
+		final int[] cx = cellsX[angle], cy = cellsY[angle];
+		final int size = 1 << level;
+		double sum = 0;
+		for (int i = 0; i < hits; i++) {
+			int x = cx[i] + dx, y = cy[i] + dy;
+
+			// a block starting before the map still covers the cells at its beginning, which the block starting at 0 covers
+			// as well, so its score stays an upper bound
+			if (x < 0 && x + size > 0)
+				x = 0;
+			if (y < 0 && y + size > 0)
+				y = 0;
+
+			// measurements outside of the map get the worst score
+			if (x >= 0 && y >= 0 && x < width && y < height)
+				sum += grid.get(x, y);
+			else
+				sum += outsideScore;
+		}
+		return sum;
+	}
+
+	// copies the end points of all hits into hitX and hitY
+	private void collectHits(Observation obs) {
+		final int n = obs.getNumberOfMeasurements();
+		if (hitX.length < n) {
+			hitX = new float[n];
+			hitY = new float[n];
+		}
+
+		final float[] localX = obs.getLocalXs(), localY = obs.getLocalYs();
+		final BitSet hitSet = obs.getHits();
+		hits = 0;
+		for (int i = hitSet.nextSetBit(0); i >= 0; i = hitSet.nextSetBit(i + 1)) {
+			hitX[hits] = localX[i];
+			hitY[hits] = localY[i];
+			hits++;
+		}
+	}
+
+	// brings the pyramid of the map up to date, creating it the first time the map is matched
+	private void buildPyramid(GridMapData map) {
+		width = map.likelihoodData.getWidth();
+		height = map.likelihoodData.getHeight();
+		outsideScore = Math.log(gridMap.measurementProbability(0));
+
+		if (map.pyramid == null)
+			map.pyramid = new Pyramid(width, height);
+		Pyramid pyramid = map.pyramid;
+		levels = pyramid.levels;
+
+		// nothing changed since the last match
+		if (pyramid.dirtyMinX > pyramid.dirtyMaxX)
+			return;
+
+		int minX = pyramid.dirtyMinX, minY = pyramid.dirtyMinY, maxX = pyramid.dirtyMaxX, maxY = pyramid.dirtyMaxY;
+		pyramid.dirtyMinX = pyramid.dirtyMinY = Integer.MAX_VALUE;
+		pyramid.dirtyMaxX = pyramid.dirtyMaxY = Integer.MIN_VALUE;
+
+		final TiledGrid scores = levels[0];
+		for (int y = minY; y <= maxY; y++)
+			for (int x = minX; x <= maxX; x++)
+				scores.set(x, y, Math.log(gridMap.measurementProbability(map.likelihoodData.get(x, y))));
+
+		// each level is the max of four blocks of the level below. The parts of a block outside of the map score worse than
+		// any cell inside, so only the blocks inside count. A changed cell affects the blocks starting up to offset cells
+		// before it, which grows the area to rebuild by offset on each level
+		for (int h = 1; h <= DEPTH; h++) {
+			final TiledGrid below = levels[h - 1], level = levels[h];
+			final int offset = 1 << (h - 1);
+			minX = Math.max(minX - offset, 0);
+			minY = Math.max(minY - offset, 0);
+			for (int y = minY; y <= maxY; y++) {
+				for (int x = minX; x <= maxX; x++) {
+					double best = below.get(x, y);
+					boolean right = x + offset < width, up = y + offset < height;
+					if (right)
+						best = Math.max(best, below.get(x + offset, y));
+					if (up)
+						best = Math.max(best, below.get(x, y + offset));
+					if (right && up)
+						best = Math.max(best, below.get(x + offset, y + offset));
+					level.set(x, y, best);
+				}
+			}
+		}
+	}
+}
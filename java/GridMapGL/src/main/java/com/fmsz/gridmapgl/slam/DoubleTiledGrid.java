@@ -0,0 +1,93 @@
+/*******************************************************************************
+ *  Copyright 2018 Anton Berneving
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *******************************************************************************/
+package com.fmsz.gridmapgl.slam;
+
+import java.util.Arrays;
+
+/**
+ * A TiledGrid storing each cell as a double, using 8 bytes per cell.
+ *
+ * @author Anton
+ *
+ */
+public class DoubleTiledGrid extends TiledGrid {
+
+	/** Creates a new grid with the given size in cells where all cells are set to value */
+	public DoubleTiledGrid(int width, int height, double value) {
+		super(width, height);
+		fillTiles(value);
+	}
+
+	private DoubleTiledGrid(DoubleTiledGrid other) {
+		super(other);
+	}
+
+	@Override
+	public TiledGrid copy() {
+		return new DoubleTiledGrid(this);
+	}
+
+	@Override
+	public double get(int x, int y) {
+		return ((double[]) tiles[tileIndex(x, y)].data)[cellIndex(x, y)];
+	}
+
+	@Override
+	public void set(int x, int y, double value) {
+		((double[]) writableData(x, y))[cellIndex(x, y)] = value;
+	}
+
+	@Override
+	public void add(int x, int y, double value) {
+		((double[]) writableData(x, y))[cellIndex(x, y)] += value;
+	}
+
+	@Override
+	public void add(int x0, int y0, short[] offsetsX, short[] offsetsY, int from, int to, double value) {
+		int tile = -1;
+		double[] data = null;
+		for (int i = from; i < to; i++) {
+			int x = x0 + offsetsX[i], y = y0 + offsetsY[i];
+			if (tileIndex(x, y) != tile) {
+				tile = tileIndex(x, y);
+				data = (double[]) writableData(x, y);
+			}
+			data[cellIndex(x, y)] += value;
+		}
+	}
+
+	@Override
+	public int getBytesPerCell() {
+		return Double.BYTES;
+	}
+
+	@Override
+	protected Object createTileData(double value) {
+		double[] data = new double[TILE_SIZE * TILE_SIZE];
+		Arrays.fill(data, value);
+		return data;
+	}
+
+	@Override
+	protected Object cloneTileData(Object data) {
+		return ((double[]) data).clone();
+	}
+
+	@Override
+	protected void copyIntoTileData(double[] src, int srcIndex, Object data, int dstIndex, int length) {
+		System.arraycopy(src, srcIndex, data, dstIndex, length);
+	}
+}
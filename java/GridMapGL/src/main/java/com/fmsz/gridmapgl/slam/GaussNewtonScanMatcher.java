@@ -0,0 +1,266 @@
+/*******************************************************************************
+ *  Copyright 2018 Anton Berneving
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *******************************************************************************/
+package com.fmsz.gridmapgl.slam;
+
+import java.util.BitSet;
+
+import com.fmsz.gridmapgl.math.MathUtil;
+import com.fmsz.gridmapgl.slam.GridMap.GridMapData;
+
+import glm_.vec2.Vec2;
+
+/**
+ * A scan matcher refining a pose by maximizing the likelihood of an observation together with the odometry motion prior,
+ * using Levenberg-Marquardt steps on a bilinearly interpolated likelihood field. The gradient of each measurement
+ * probability with respect to the pose is computed analytically, and the Hessian is approximated by the sum of the outer
+ * products of the gradients (Gauss-Newton), so it usually converges in a few iterations.
+ *
+ * The objective is the sum of the logarithms of the measurement probabilities, as in
+ * {@link GridMap#logProbabilityOf(GridMapData, Observation, Pose)} but with the likelihood interpolated between the cell
+ * centers, plus {@link Odometry#logProbabilityOf(Pose, Pose)}.
+ *
+ * A matcher holds scratch data and must only be used by one thread at a time.
+ *
+ * @author Anton
+ *
+ */
+public class GaussNewtonScanMatcher {
+	/** the maximum number of Levenberg-Marquardt iterations per match */
+	public static final int MAX_ITERATIONS = 10;
+
+	/** the matching stops when a step moves less than this, in meters and radians */
+	private static final double CONVERGED_STEP = 1e-4;
+
+	private final GridMap gridMap;
+
+	/** the end points of the hits in the robot's frame */
+	private float[] hitX = new float[0], hitY = new float[0];
+	private int hits;
+
+	/** the normal equations of the last evaluated pose, H is stored row by row */
+	private final double[] hessian = new double[9], gradient = new double[3];
+
+	/** the normal equations of the pose being tried */
+	private final double[] trialHessian = new double[9], trialGradient = new double[3];
+
+	/** the number of times the objective was evaluated during the last match */
+	private int evaluations;
+
+	public GaussNewtonScanMatcher(GridMap gridMap) {
+		this.gridMap = gridMap;
+	}
+
+	/**
+	 * Returns the pose near startPose that best explains obs given the map, where startPose is the pose predicted by the
+	 * odometry u. The likelihood field of the map must be up to date.
+	 */
+	public Pose match(GridMapData map, Observation obs, Odometry u, Pose startPose) {
+		return match(map, obs, u, startPose, null);
+	}
+
+	/**
+	 * Like {@link #match(GridMapData, Observation, Odometry, Pose)}, but starts from initialPose (for example the result of
+	 * a {@link CorrelativeScanMatcher}) if it explains obs and the odometry better than startPose. The motion prior is still
+	 * centered at startPose.
+	 */
+	public Pose match(GridMapData map, Observation obs, Odometry u, Pose startPose, Pose initialPose) {
+		evaluations = 0;
+		collectHits(obs);
+
+		final double maxStep = gridMap.getResolution();
+		double maxRange = 0;
+		for (int i = 0; i < hits; i++)
+			maxRange = Math.max(maxRange, Math.sqrt(hitX[i] * hitX[i] + hitY[i] * hitY[i]));
+
+		double x = startPose.x, y = startPose.y, theta = startPose.theta;
+		double cost = evaluate(map, u, startPose, x, y, theta, hessian, gradient);
+		if (initialPose != null) {
+			double initialCost = evaluate(map, u, startPose, initialPose.x, initialPose.y, initialPose.theta, trialHessian, trialGradient);
+			if (initialCost < cost) {
+				x = initialPose.x;
+				y = initialPose.y;
+				theta = initialPose.theta;
+				cost = initialCost;
+				System.arraycopy(trialHessian, 0, hessian, 0, 9);
+				System.arraycopy(trialGradient, 0, gradient, 0, 3);
+			}
+		}
+
+		final double[] step = new double[3];
+		double lambda = 1e-3;
+		for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+			// solve (H + lambda * diag(H)) * step = -gradient, giving up if the system is singular
+			if (!solve(hessian, gradient, lambda, step))
+				break;
+
+			// the likelihood field is only a few cells wide, limit the step to move no point more than about one cell
+			double move = Math.max(Math.hypot(step[0], step[1]), Math.abs(step[2]) * maxRange);
+			if (move > maxStep) {
+				step[0] *= maxStep / move;
+				step[1] *= maxStep / move;
+				step[2] *= maxStep / move;
+			}
+
+			double nx = x + step[0], ny = y + step[1], ntheta = MathUtil.angleConstrain(theta + step[2]);
+			double newCost = evaluate(map, u, startPose, nx, ny, ntheta, trialHessian, trialGradient);
+
+			if (newCost < cost) {
+				// accept the step and move towards Gauss-Newton
+				x = nx;
+				y = ny;
+				theta = ntheta;
+				cost = newCost;
+				System.arraycopy(trialHessian, 0, hessian, 0, 9);
+				System.arraycopy(trialGradient, 0, gradient, 0, 3);
+				lambda *= 0.1;
+
+				if (Math.abs(step[0]) < CONVERGED_STEP && Math.abs(step[1]) < CONVERGED_STEP && Math.abs(step[2]) < CONVERGED_STEP)
+					break;
+			} else {
+				// reject the step and move towards gradient descent
+				lambda *= 10;
+			}
+		}
+
+		return new Pose((float) x, (float) y, (float) theta);
+	}
+
+	/** Returns the number of times the objective was evaluated during the last match */
+	public int getEvaluations() {
+		return evaluations;
+	}
+
+	// returns the negative logarithm of the objective at the pose (x, y, theta) and stores the gradient and the approximated
+	// Hessian of it in gradient and hessian
+	private double evaluate(GridMapData map, Odometry u, Pose startPose, double x, double y, double theta, double[] hessian,
+			double[] gradient) {
+		evaluations++;
+
+		final TiledGrid likelihood = map.likelihoodData;
+		final int width = likelihood.getWidth(), height = likelihood.getHeight();
+		final Vec2 position = gridMap.getPosition();
+		final float resolution = gridMap.getResolution();
+		final double posX = position.getX(), posY = position.getY(), zHit = gridMap.getZHit();
+		final double cos = MathUtil.cos(theta), sin = MathUtil.sin(theta);
+
+		double h00 = 0, h01 = 0, h02 = 0, h11 = 0, h12 = 0, h22 = 0, g0 = 0, g1 = 0, g2 = 0;
+		double cost = 0;
+		for (int i = 0; i < hits; i++) {
+			double rx = hitX[i] * cos - hitY[i] * sin, ry = hitX[i] * sin + hitY[i] * cos;
+
+			// grid coordinates relative to the cell centers, so that (x0, y0) is the lower left of the four cells around the point
+			double gx = (rx + x - posX) / resolution - 0.5, gy = (ry + y - posY) / resolution - 0.5;
+			int x0 = (int) Math.floor(gx), y0 = (int) Math.floor(gy);
+
+			// measurements outside of the map are ignored, like in GridMap.logProbabilityOf
+			if (x0 < 0 || y0 < 0 || x0 + 1 >= width || y0 + 1 >= height)
+				continue;
+
+			double fx = gx - x0, fy = gy - y0;
+			double v00 = likelihood.get(x0, y0), v10 = likelihood.get(x0 + 1, y0);
+			double v01 = likelihood.get(x0, y0 + 1), v11 = likelihood.get(x0 + 1, y0 + 1);
+
+			// a measurement between four unexplored cells is uniformly distributed and pulls nowhere. The interpolated value
+			// can't be compared to the unexplored likelihood, it may equal it between explored cells
+			if (gridMap.isUnexplored(v00) && gridMap.isUnexplored(v10) && gridMap.isUnexplored(v01) && gridMap.isUnexplored(v11)) {
+				cost -= Math.log(1.0 / SensorModel.SENSOR_MAX_RANGE);
+				continue;
+			}
+
+			double value = (1 - fy) * ((1 - fx) * v00 + fx * v10) + fy * ((1 - fx) * v01 + fx * v11);
+			double p = gridMap.hitProbability(value);
+			cost -= Math.log(p);
+
+			// d(-log p)/d(world point), the likelihood gradient is constant inside the four cells
+			double scale = -zHit / (p * resolution);
+			double dx = scale * ((1 - fy) * (v10 - v00) + fy * (v11 - v01));
+			double dy = scale * ((1 - fx) * (v01 - v00) + fx * (v11 - v10));
+
+			// chain rule with d(world point)/d(x, y, theta) = [1, 0, -ry; 0, 1, rx]
+			double dtheta = -dx * ry + dy * rx;
+			g0 += dx;
+			g1 += dy;
+			g2 += dtheta;
+
+			h00 += dx * dx;
+			h01 += dx * dy;
+			h02 += dx * dtheta;
+			h11 += dy * dy;
+			h12 += dy * dtheta;
+			h22 += dtheta * dtheta;
+		}
+
+		// the motion prior is gaussian, so its part of the Hessian is exact
+		double centerVar = u.getCenterStdDev() * u.getCenterStdDev(), thetaVar = u.getThetaStdDev() * u.getThetaStdDev();
+		cost -= u.logProbabilityOf(startPose, new Pose((float) x, (float) y, (float) theta));
+		g0 += (x - startPose.x) / centerVar;
+		g1 += (y - startPose.y) / centerVar;
+		g2 += MathUtil.angleConstrain(theta - startPose.theta) / thetaVar;
+		h00 += 1 / centerVar;
+		h11 += 1 / centerVar;
+		h22 += 1 / thetaVar;
+
+		hessian[0] = h00;
+		hessian[1] = hessian[3] = h01;
+		hessian[2] = hessian[6] = h02;
+		hessian[4] = h11;
+		hessian[5] = hessian[7] = h12;
+		hessian[8] = h22;
+		gradient[0] = g0;
+		gradient[1] = g1;
+		gradient[2] = g2;
+
+		return cost;
+	}
+
+	// solves (H + lambda * diag(H)) * step = -gradient with Cramer's rule, returns false if the system is singular
+	private static boolean solve(double[] h, double[] gradient, double lambda, double[] step) {
+		double a = h[0] * (1 + lambda), b = h[1], c = h[2];
+		double e = h[4] * (1 + lambda), f = h[5];
+		double i = h[8] * (1 + lambda);
+
+		// cofactors of the symmetric matrix [a b c; b e f; c f i]
+		double A = e * i - f * f, B = c * f - b * i, C = b * f - c * e;
+		double E = a * i - c * c, F = b * c - a * f, I = a * e - b * b;
+		double det = a * A + b * B + c * C;
+		if (!(Math.abs(det) > 1e-300))
+			return false;
+
+		double g0 = -gradient[0], g1 = -gradient[1], g2 = -gradient[2];
+		step[0] = (A * g0 + B * g1 + C * g2) / det;
+		step[1] = (B * g0 + E * g1 + F * g2) / det;
+		step[2] = (C * g0 + F * g1 + I * g2) / det;
+		return true;
+	}
+
+	// copies the end points of all hits into hitX and hitY
+	private void collectHits(Observation obs) {
+		final int n = obs.getNumberOfMeasurements();
+		if (hitX.length < n) {
+			hitX = new float[n];
+			hitY = new float[n];
+		}
+
+		final float[] localX = obs.getLocalXs(), localY = obs.getLocalYs();
+		final BitSet hitSet = obs.getHits();
+		hits = 0;
+		for (int i = hitSet.nextSetBit(0); i >= 0; i = hitSet.nextSetBit(i + 1)) {
+			hitX[hits] = localX[i];
+			hitY[hits] = localY[i];
+			hits++;
+		}
+	}
+}
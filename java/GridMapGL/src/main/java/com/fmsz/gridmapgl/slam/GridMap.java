@@ -16,16 +16,15 @@
 package com.fmsz.gridmapgl.slam;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 
 import com.fmsz.gridmapgl.app.Util;
-import com.fmsz.gridmapgl.graphics.Color;
-import com.fmsz.gridmapgl.graphics.ShapeRenderer;
-import com.fmsz.gridmapgl.graphics.ShapeRenderer.ShapeType;
 import com.fmsz.gridmapgl.math.MathUtil;
 import com.fmsz.gridmapgl.math.Transform;
-import com.fmsz.gridmapgl.slam.Observation.Measurement;
 
 import org.apache.commons.math3.analysis.MultivariateFunction;
+import org.apache.commons.math3.exception.MathIllegalStateException;
 import org.apache.commons.math3.optim.InitialGuess;
 import org.apache.commons.math3.optim.MaxEval;
 import org.apache.commons.math3.optim.MaxIter;
@@ -55,30 +54,181 @@ public class GridMap {
 	/** the size of the map in cells */
 	private Vec2i gridSize = new Vec2i();
 
-	/** array for storing the probability data */
-	private double[] probData;
-
 	/** the resolution of this GridMap, given in meters per cell */
 	private float resolution;
 
-	/** The RayIterator for finding all cells that overlap with the measurement ray */
-	private static RayIterator rayIterator;
-
 	public ArrayList<Vec2i> rays = new ArrayList<>();
-	private final Vec2 tmp = new Vec2();
+
+	/** The ways of computing the likelihood field from the map */
+	public static enum LikelihoodField {
+		/** a separable gaussian blur of the thresholded map, the cost grows with the size of the kernel */
+		GAUSSIAN_BLUR,
+		/** a gaussian of the distance to the nearest obstacle, computed with a distance transform that does not depend on sigma */
+		DISTANCE_TRANSFORM
+	}
+
+	private LikelihoodField likelihoodField = LikelihoodField.GAUSSIAN_BLUR;
+
+	/** the standard deviation of the likelihood field, given in cells */
+	private double likelihoodSigma;
 
 	private double[] likelihoodKernel;
 
+	/** incremented whenever the likelihood settings change, making all maps computed with older settings recompute their field */
+	private int likelihoodVersion = 0;
+
+	/** The ways of storing the cells of a GridMapData, trading precision for memory */
+	public static enum CellStorage {
+		/** 8 bytes per cell */
+		DOUBLE,
+		/** 4 bytes per cell */
+		FLOAT,
+		/** 2 bytes per cell, fixed-point with the log-odds clamped to about +-32 and updated with precomputed tables */
+		INT16
+	}
+
+	/** The ways findBestPoseOptim refines the pose of a particle */
+	public static enum PoseOptimizer {
+		/** derivative-free optimization of the likelihood with nearest cell lookups, up to 500 evaluations */
+		BOBYQA,
+		/** Levenberg-Marquardt on the interpolated likelihood with analytic gradients, see {@link GaussNewtonScanMatcher} */
+		GAUSS_NEWTON,
+		/**
+		 * the best cell and rotation within the search window (see {@link CorrelativeScanMatcher}), refined with
+		 * GAUSS_NEWTON. Finds the pose even when it is several cells away from the predicted one, but rebuilding the
+		 * matcher's pyramid where a map changed costs about as much again as the likelihood field
+		 */
+		CORRELATIVE
+	}
+
+	private PoseOptimizer poseOptimizer = PoseOptimizer.BOBYQA;
+
+	/** the step size of the log-odds and likelihood values when stored with {@link CellStorage#INT16} */
+	public static final double LOG_ODDS_RESOLUTION = 1.0 / 1024, LIKELIHOOD_RESOLUTION = 1.0 / ShortTiledGrid.MAX_VALUE;
+
+	private final CellStorage cellStorage;
+
+	/**
+	 * the likelihood of an unexplored cell as read back from the map, 0.5 stored with the precision of the cell storage
+	 * (which is not exactly 0.5 with CellStorage.INT16)
+	 */
+	private final double unexploredLikelihood;
+
+	/** the log-odds increments for the occupied and free outcomes of the sensor model (the prior has none) */
+	private static final double LOG_ODDS_OCCUPIED = Util.logOdds(SensorModel.P_OCCUPPIED), LOG_ODDS_FREE = Util.logOdds(SensorModel.P_FREE);
+
+	/** update tables for the occupied and free outcomes of the sensor model, only used with CellStorage.INT16 */
+	private short[] occupiedTable, freeTable;
+
+	/** the precomputed rays used when integrating measurements, or null if each ray is traced with a RayIterator */
+	private volatile RayTemplates rayTemplates = null;
+
+	/**
+	 * The data of one map. The cells are stored in shared copy-on-write tiles, so copying a map is cheap and only the tiles
+	 * written to afterwards are actually duplicated.
+	 */
 	public static class GridMapData {
-		public double[] logData, likelihoodData;
+		public TiledGrid logData, likelihoodData;
+
+		/** the bounding box (inclusive) of the cells changed since the likelihood field was last computed, empty if min > max */
+		private int dirtyMinX = Integer.MAX_VALUE, dirtyMinY = Integer.MAX_VALUE, dirtyMaxX = Integer.MIN_VALUE, dirtyMaxY = Integer.MIN_VALUE;
+
+		/** the likelihoodVersion of the GridMap when the likelihood field was last computed */
+		private int likelihoodVersion;
+
+		/** the scores used by the correlative scan matcher, null until the map is first matched by it */
+		CorrelativeScanMatcher.Pyramid pyramid;
+
+		/** Grows the dirty bounding box to include the cell (x, y) */
+		private void markDirty(int x, int y) {
+			dirtyMinX = Math.min(dirtyMinX, x);
+			dirtyMinY = Math.min(dirtyMinY, y);
+			dirtyMaxX = Math.max(dirtyMaxX, x);
+			dirtyMaxY = Math.max(dirtyMaxY, y);
+		}
+
+		private void clearDirty() {
+			dirtyMinX = dirtyMinY = Integer.MAX_VALUE;
+			dirtyMaxX = dirtyMaxY = Integer.MIN_VALUE;
+		}
+
+		/** Lets go of the tiles held by this map, letting other maps sharing them write without copying */
+		public void release() {
+			logData.release();
+			likelihoodData.release();
+			if (pyramid != null)
+				pyramid.release();
+		}
+	}
+
+	/**
+	 * Scratch data needed when manipulating a GridMapData. There is one Workspace per thread so that several particles can
+	 * be processed at the same time against this GridMap.
+	 */
+	private class Workspace {
+		/** array for storing the probability data */
+		final double[] probData = new double[gridSize.getX() * gridSize.getY()];
+
+		/** temporary array used by the separable gaussian blur */
+		final double[] blurData = new double[probData.length];
+
+		/** array for storing the likelihood field before it is copied into the map */
+		final double[] likelihoodData = new double[probData.length];
+
+		/** scratch of the distance transform, a row or column before and after it and the parabolas of its lower envelope */
+		final double[] transformIn = new double[Math.max(gridSize.getX(), gridSize.getY())], transformOut = new double[transformIn.length];
+		final int[] envelopeCells = new int[transformIn.length];
+		final double[] envelopeBounds = new double[transformIn.length + 1];
+
+		/** The RayIterator for finding all cells that overlap with the measurement ray */
+		final RayIterator rayIterator = new RayIterator(gridSize.getX(), gridSize.getY());
+
+		/** Used for crude "scan matching" by maximizing the likelihood of the measurement given the start pose and odometry */
+		final BOBYQAOptimizer optimizer = new BOBYQAOptimizer(6);
+
+		/** used by findBestPoseOptim with PoseOptimizer.GAUSS_NEWTON */
+		final GaussNewtonScanMatcher gaussNewton = new GaussNewtonScanMatcher(GridMap.this);
+
+		/** the grid cells of the end points of the measurements, used by the batched scoring */
+		int[] cellX = new int[0], cellY = new int[0];
+
+		/** the end points of the measurements rotated by rotatedTheta, used by the batched scoring */
+		double[] rotatedX = new double[0], rotatedY = new double[0];
+		float rotatedTheta = Float.NaN;
+
+		/** used by findBestPose and findBestPoseOptim with PoseOptimizer.CORRELATIVE */
+		final CorrelativeScanMatcher scanMatcher = new CorrelativeScanMatcher(GridMap.this);
+
+		/** the candidates of scorePoses sorted by theta, the sortable bits of theta above the index of each candidate */
+		long[] poseOrder = new long[0];
+
+		/** the candidates around the pose found by the correlative scan matcher, and their scores */
+		final float[] candidateX = new float[REFINE_CANDIDATES], candidateY = new float[REFINE_CANDIDATES], candidateTheta = new float[REFINE_CANDIDATES];
+		final double[] candidateScores = new double[REFINE_CANDIDATES];
 	}
 
-	/** Used for crude "scan matching" by maximizing the likelihood of the measurement given the start pose and odometry */
-	private BOBYQAOptimizer optimizer = new BOBYQAOptimizer(6);
+	/** the number of poses around the pose found by the correlative scan matcher that are scored, 3 steps in x, y and theta */
+	private static final int REFINE_CANDIDATES = 27;
+
+	private final ThreadLocal<Workspace> workspace = ThreadLocal.withInitial(Workspace::new);
+
+	/**
+	 * Lets go of the scratch data of the calling thread, which is otherwise kept for as long as the thread lives. It is
+	 * created again if the thread uses this map later.
+	 */
+	public void releaseWorkspace() {
+		workspace.remove();
+	}
 
 	/** Create a new GridMap with the given width and height in meters using the the given resolution */
 	public GridMap(float width, float height, float resolution, Vec2 position) {
+		this(width, height, resolution, position, CellStorage.DOUBLE);
+	}
+
+	/** Create a new GridMap with the given width and height in meters using the the given resolution and cell storage */
+	public GridMap(float width, float height, float resolution, Vec2 position, CellStorage cellStorage) {
 		this.resolution = resolution;
+		this.cellStorage = cellStorage;
 		this.position.put(position);
 
 		// calculate the required size in cells to fill the desired area based on the resolution
@@ -87,71 +237,120 @@ public class GridMap {
 		// calculate the "real" size of this grid map (potentially caused by Math.Ceil() above)
 		worldSize.put(gridSize.getX() * resolution, gridSize.getY() * resolution);
 
-		// create a temporary data array with the correct size
-		probData = new double[(int) (gridSize.getX() * gridSize.getY())];
-
 		// compute the likelihood kernel
-		double sigma = Math.sqrt(0.05 / resolution);
-		likelihoodKernel = Util.generateGaussianKernel(sigma, (int) Math.ceil(sigma * 3));
-
-		// create the correct ray iterator
-		rayIterator = new RayIterator(gridSize.getX(), gridSize.getY());
+		setLikelihoodSigma(Math.sqrt(0.05 / resolution));
+
+		// precompute the map updates
+		if (cellStorage == CellStorage.INT16) {
+			ShortTiledGrid grid = new ShortTiledGrid(1, 1, 0, LOG_ODDS_RESOLUTION);
+			occupiedTable = grid.createUpdateTable(LOG_ODDS_OCCUPIED);
+			freeTable = grid.createUpdateTable(LOG_ODDS_FREE);
+			unexploredLikelihood = new ShortTiledGrid(1, 1, 0.5, LIKELIHOOD_RESOLUTION).get(0, 0);
+		} else {
+			unexploredLikelihood = 0.5;
+		}
 
 	}
 
 	/**
 	 * Creates a new GridMapData object by copying the data from {@code other}. If {@code other} is {@code null}, a map with
-	 * default values is created.
+	 * default values is created. Copying is cheap as the tiles of {@code other} are shared until one of the maps writes to
+	 * them.
 	 */
 	public GridMapData createMapData(GridMapData other) {
 		GridMapData map = new GridMapData();
 
-		// create data structure
-		map.logData = new double[(int) (gridSize.getX() * gridSize.getY())];
-		map.likelihoodData = new double[(int) (gridSize.getX() * gridSize.getY())];
-
 		// is this a copy operation or not?
 		if (other == null) {
 			// create new data; initialize fields
-			Util.fastFillDouble(map.logData, Util.logOdds(0.5));
+			map.logData = createGrid(Util.logOdds(0.5), LOG_ODDS_RESOLUTION);
+			// the field of a map where nothing has been seen, in case it is read before it is computed
+			map.likelihoodData = createGrid(0.5, LIKELIHOOD_RESOLUTION);
+
+			// nothing has been computed yet
+			invalidateLikelihoodMap(map);
+			map.likelihoodVersion = likelihoodVersion;
 		} else {
-			// copy data instead
-			System.arraycopy(other.logData, 0, map.logData, 0, map.logData.length);
-			System.arraycopy(other.likelihoodData, 0, map.likelihoodData, 0, map.likelihoodData.length);
+			// share data instead
+			map.logData = other.logData.copy();
+			map.likelihoodData = other.likelihoodData.copy();
+
+			// the likelihood field is exactly as up to date as the one we copied
+			map.dirtyMinX = other.dirtyMinX;
+			map.dirtyMinY = other.dirtyMinY;
+			map.dirtyMaxX = other.dirtyMaxX;
+			map.dirtyMaxY = other.dirtyMaxY;
+			map.likelihoodVersion = other.likelihoodVersion;
+			if (other.pyramid != null)
+				map.pyramid = new CorrelativeScanMatcher.Pyramid(other.pyramid);
 		}
 
 		return map;
 	}
 
+	// creates a grid of the size of this map using the selected storage, int16Resolution is only used for CellStorage.INT16
+	private TiledGrid createGrid(double value, double int16Resolution) {
+		switch (cellStorage) {
+		case FLOAT:
+			return new FloatTiledGrid(gridSize.getX(), gridSize.getY(), value);
+		case INT16:
+			return new ShortTiledGrid(gridSize.getX(), gridSize.getY(), value, int16Resolution);
+		default:
+			return new DoubleTiledGrid(gridSize.getX(), gridSize.getY(), value);
+		}
+	}
+
+	public CellStorage getCellStorage() {
+		return cellStorage;
+	}
+
+	/**
+	 * Copies the settings (likelihood field, pose optimizer, scoring, search window and ray templates) from other, used when
+	 * replacing a map by one of another size or storage. The likelihood sigma is not copied as it depends on the resolution.
+	 */
+	public void copySettings(GridMap other) {
+		setLikelihoodField(other.likelihoodField);
+		poseOptimizer = other.poseOptimizer;
+		batchedScoring = other.batchedScoring;
+		linearSearchWindow = other.linearSearchWindow;
+		angularSearchWindow = other.angularSearchWindow;
+		setUseRayTemplates(other.getUseRayTemplates());
+	}
+
 	/**
 	 * Resets this GridMap by clearing all probability values to 0.5
 	 */
 	public void reset(GridMapData map) {
 		// fill with default probability
-		Util.fastFillDouble(map.logData, Util.logOdds(0.5));
+		map.logData.fill(Util.logOdds(0.5));
+		invalidateLikelihoodMap(map);
+	}
+
+	/**
+	 * Marks the whole likelihood field of the map as out of date, making the next call to
+	 * {@link #computeLikelihoodMap(GridMapData)} recompute all of it. Must be called after writing to
+	 * {@link GridMapData#logData} directly.
+	 */
+	public void invalidateLikelihoodMap(GridMapData map) {
+		map.markDirty(0, 0);
+		map.markDirty(gridSize.getX() - 1, gridSize.getY() - 1);
 	}
 
 	public double getRawAt(GridMapData map, int x, int y) {
-		return map.logData[x + y * gridSize.getX()];
+		return map.logData.get(x, y);
 	}
 
 	public double getProbAt(GridMapData map, int x, int y) {
-		return Util.invLogOdds(map.logData[x + y * gridSize.getX()]);
+		return Util.invLogOdds(map.logData.get(x, y));
 	}
 
 	public double getRawAt(GridMapData map, Vec2 point) {
-		tmp.put(point);
-		tmp.minusAssign(position);
-		tmp.divAssign(resolution);
-		return map.logData[tmp.getX().intValue() + tmp.getY().intValue() * gridSize.getX()];
+		return map.logData.get(toGridX(point), toGridY(point));
 
 	}
 
 	public double getLikelihood(GridMapData map, Vec2 point) {
-		tmp.put(point);
-		tmp.minusAssign(position);
-		tmp.divAssign(resolution);
-		return map.likelihoodData[tmp.getX().intValue() + tmp.getY().intValue() * gridSize.getX()];
+		return map.likelihoodData.get(toGridX(point), toGridY(point));
 
 	}
 
@@ -162,11 +361,19 @@ public class GridMap {
 	 * @return
 	 */
 	public boolean pointInMap(Vec2 point) {
-		tmp.put(point);
-		tmp.minusAssign(position);
-		tmp.divAssign(resolution);
+		float x = (point.getX() - position.getX()) / resolution;
+		float y = (point.getY() - position.getY()) / resolution;
+
+		return !(x < 0 || y < 0 || x >= gridSize.getX() || y >= gridSize.getY());
+	}
 
-		return !(tmp.getX() < 0 || tmp.getY() < 0 || tmp.getX() >= gridSize.getX() || tmp.getY() >= gridSize.getY());
+	// converts a world coordinate into grid coordinates (without any shared temporary vector, making it safe to call from any thread)
+	private int toGridX(Vec2 point) {
+		return (int) ((point.getX() - position.getX()) / resolution);
+	}
+
+	private int toGridY(Vec2 point) {
+		return (int) ((point.getY() - position.getY()) / resolution);
 	}
 
 	/** Processes a complete Observation packet and integrates the measurements into this map */
@@ -179,13 +386,15 @@ public class GridMap {
 		float startY = (float) ((localToWorld.transformY(0, 0) - position.getY()) / resolution);
 
 		// apply all measurements to the map
-		for (Measurement m : obs.getMeasurements()) {
+		final float[] localX = obs.getLocalXs(), localY = obs.getLocalYs(), range = obs.getRanges();
+		final BitSet hits = obs.getHits();
+		for (int i = 0; i < obs.getNumberOfMeasurements(); i++) {
 
 			// where this measurement ends in grid coordinates
-			float endX = (float) ((localToWorld.transformX(m.localX, m.localY) - position.getX()) / resolution);
-			float endY = (float) ((localToWorld.transformY(m.localX, m.localY) - position.getY()) / resolution);
+			float endX = (float) ((localToWorld.transformX(localX[i], localY[i]) - position.getX()) / resolution);
+			float endY = (float) ((localToWorld.transformY(localX[i], localY[i]) - position.getY()) / resolution);
 
-			applyMeasurement(map, startX, startY, endX, endY, (float) m.distance / resolution, m.wasHit);
+			applyMeasurement(map, startX, startY, endX, endY, range[i] / resolution, hits.get(i));
 
 		}
 	}
@@ -197,56 +406,238 @@ public class GridMap {
 		// float measuredDistance = (float) Math.sqrt(startX * startX + endX * endY);
 
 		// stores the deltas in x and y direction
-		float dX, dY, distance;// , distanceSq;
+		float dX, dY, distanceSq;
+
+		// the sensor model is evaluated on squared distances to avoid a sqrt for each visited cell, the 2 is used as a
+		// "threshold", defining an interval where the cell should be considered occupied based on the measurement
+		float hitTolerance = 2;
+		float measuredDistanceSq = measuredDistance * measuredDistance;
+		float maxDistSq = (measuredDistance + hitTolerance / 2) * (measuredDistance + hitTolerance / 2);
+		// clamped at 0 so that no cell is free when the measured distance is shorter than the tolerance
+		float minDist = Math.max(measuredDistance - hitTolerance / 2, 0);
+		float minDistSq = minDist * minDist;
+
+		// replay a precomputed ray if possible
+		RayTemplates templates = rayTemplates;
+		if (templates != null && applyMeasurementTemplate(map, templates, startX, startY, endX, endY, measuredDistanceSq, wasHit, maxDistSq, minDistSq))
+			return;
 
-		// float hitTolerance = 2;
-		// float measuredDistanceSq = measuredDistance * measuredDistance;
-		// float maxDistSq = (measuredDistance + hitTolerance / 2) * (measuredDistance + hitTolerance / 2);
-		// float minDistSq = (measuredDistance - hitTolerance / 2) * (measuredDistance - hitTolerance / 2);
+		RayIterator rayIterator = workspace.get().rayIterator;
 
 		// initialize the RayIterator, the 2 is to give the sensor model the possibility to act correctly for cells "behind" the
 		// end point
 		// and should be >= the parameter to inverseSensorModel below. Higher values gives "thicker" walls
 		rayIterator.init(startX + 0.5f, startY + 0.5f, endX + 0.5f, endY + 0.5f, 2);
+		if (!rayIterator.hasNext())
+			return;
+
+		// a ray never turns back, so all changed cells are inside the box spanned by the first and the last cell
+		map.markDirty((int) Math.floor(startX + 0.5f), (int) Math.floor(startY + 0.5f));
 		while (rayIterator.hasNext()) {
-			Vec2i cell = rayIterator.next();
+			rayIterator.step();
+			int cellX = rayIterator.getCellX(), cellY = rayIterator.getCellY();
 
-			// calculate the distance from the start to the center of this visited cell
-			dX = startX - (cell.getX() + 0.5f);
-			dY = startY - (cell.getY() + 0.5f);
-			distance = (float) Math.sqrt(dX * dX + dY * dY);
-			// distanceSq = dX * dX + dY * dY;
+			// calculate the squared distance from the start to the center of this visited cell
+			dX = startX - (cellX + 0.5f);
+			dY = startY - (cellY + 0.5f);
+			distanceSq = dX * dX + dY * dY;
 
 			// integrate the measurement to each visited cell, according to the inverse sensor model
-			// the 2 is used as a "threshold", defining an interval where the cell should be considered occupied based on the
-			// measurement
-			map.logData[cell.getX() + cell.getY() * gridSize.getX()] += Util.logOdds(SensorModel.inverseSensorModel(distance, measuredDistance, wasHit, 2));
+			applyOutcome(map, cellX, cellY, SensorModel.inverseSensorModelSq(distanceSq, measuredDistanceSq, wasHit, maxDistSq, minDistSq));
+		}
+		map.markDirty(rayIterator.getCellX(), rayIterator.getCellY());
+	}
 
-			// map.logData[cell.getX() + cell.getY() * gridSize.getX()] += Util
-			// .logOdds(SensorModel.inverseSensorModelSq(distanceSq, measuredDistanceSq, m.wasHit, maxDistSq, minDistSq));
+	/**
+	 * Applies a measurement by replaying the ray template closest to its direction from the center of the start cell, the
+	 * distances are then also measured from the center of the start cell. Returns false if the ray is longer than the
+	 * templates, leaving it to the RayIterator.
+	 */
+	private boolean applyMeasurementTemplate(GridMapData map, RayTemplates templates, float startX, float startY, float endX, float endY,
+			float measuredDistanceSq, boolean wasHit, float maxDistSq, float minDistSq) {
+		// the same cells and number of steps as the RayIterator would use, including the 2 additional steps
+		int x0 = (int) Math.floor(startX + 0.5f), y0 = (int) Math.floor(startY + 0.5f);
+		int steps = 3 + Math.abs((int) Math.floor(endX + 0.5f) - x0) + Math.abs((int) Math.floor(endY + 0.5f) - y0);
+		if (steps > templates.getLength())
+			return false;
+
+		// a ray starting outside of the map visits nothing
+		final int width = gridSize.getX(), height = gridSize.getY();
+		if (x0 < 0 || x0 >= width || y0 < 0 || y0 >= height)
+			return true;
+
+		// only replay the part of the ray inside the map
+		int direction = templates.getDirection(endX - startX, endY - startY);
+		steps = templates.getStepsInside(direction, steps, x0, y0, width, height);
+
+		// the distances only grow along the ray, so the outcomes of the sensor model (see SensorModel.inverseSensorModelSq)
+		// are a run of free cells, for a hit followed by a run of occupied cells, and then cells left at the prior
+		int freeSteps, occupiedSteps;
+		if (wasHit) {
+			freeSteps = templates.getStepsCloserThan(direction, steps, minDistSq);
+			occupiedSteps = templates.getStepsCloserThan(direction, steps, Math.nextUp(maxDistSq)) - freeSteps;
+		} else {
+			freeSteps = templates.getStepsCloserThan(direction, steps, measuredDistanceSq);
+			occupiedSteps = 0;
 		}
+
+		short[] offsetsX = templates.getOffsetsX(direction), offsetsY = templates.getOffsetsY(direction);
+		if (cellStorage == CellStorage.INT16) {
+			ShortTiledGrid logData = (ShortTiledGrid) map.logData;
+			logData.update(x0, y0, offsetsX, offsetsY, 0, freeSteps, freeTable);
+			logData.update(x0, y0, offsetsX, offsetsY, freeSteps, freeSteps + occupiedSteps, occupiedTable);
+		} else {
+			map.logData.add(x0, y0, offsetsX, offsetsY, 0, freeSteps, LOG_ODDS_FREE);
+			map.logData.add(x0, y0, offsetsX, offsetsY, freeSteps, freeSteps + occupiedSteps, LOG_ODDS_OCCUPIED);
+		}
+
+		// a ray never turns back, so all changed cells are inside the box spanned by the first and the last cell
+		if (steps > 0) {
+			map.markDirty(x0, y0);
+			map.markDirty(x0 + offsetsX[steps - 1], y0 + offsetsY[steps - 1]);
+		}
+		return true;
+	}
+
+	// integrates one outcome of the inverse sensor model into a cell. The prior leaves the cell unchanged, the other outcomes
+	// use the precomputed log-odds (or tables). The caller is responsible for marking the cell as dirty
+	private void applyOutcome(GridMapData map, int x, int y, double p) {
+		if (p == SensorModel.P_PRIOR)
+			return;
+
+		if (cellStorage == CellStorage.INT16)
+			((ShortTiledGrid) map.logData).update(x, y, p == SensorModel.P_OCCUPPIED ? occupiedTable : freeTable);
+		else
+			map.logData.add(x, y, p == SensorModel.P_OCCUPPIED ? LOG_ODDS_OCCUPIED : LOG_ODDS_FREE);
+	}
+
+	/**
+	 * Selects whether measurements are integrated by replaying precomputed rays (see {@link RayTemplates}) instead of tracing
+	 * each ray. This is faster but quantizes the start of each ray to the center of a cell and its direction to 1/4 sensor
+	 * step.
+	 */
+	public void setUseRayTemplates(boolean useRayTemplates) {
+		if (!useRayTemplates)
+			rayTemplates = null;
+		else if (rayTemplates == null)
+			// long enough for the longest measurement in any direction, with the additional steps
+			rayTemplates = new RayTemplates((int) Math.ceil(2 * SensorModel.SENSOR_MAX_RANGE / resolution) + 3);
+	}
+
+	public boolean getUseRayTemplates() {
+		return rayTemplates != null;
+	}
+
+	/** Selects how the likelihood field is computed. All maps recompute their whole field the next time it is computed. */
+	public void setLikelihoodField(LikelihoodField likelihoodField) {
+		this.likelihoodField = likelihoodField;
+		likelihoodVersion++;
+	}
+
+	public LikelihoodField getLikelihoodField() {
+		return likelihoodField;
+	}
+
+	/**
+	 * Sets the standard deviation of the likelihood field in cells. The field reaches 3 sigma from each obstacle. All maps
+	 * recompute their whole field the next time it is computed.
+	 */
+	public void setLikelihoodSigma(double sigma) {
+		likelihoodSigma = sigma;
+		likelihoodKernel = Util.generateGaussianKernel(sigma, (int) Math.ceil(sigma * 3));
+		likelihoodVersion++;
+	}
+
+	public double getLikelihoodSigma() {
+		return likelihoodSigma;
 	}
 
 	/**
-	 * Computes the probability likelihood map based on this map
+	 * Computes the probability likelihood map based on this map. Only the part of the field that can have been affected by
+	 * the cells changed since the last call is recomputed, which is the changed area grown by the radius of the kernel.
 	 */
 	public void computeLikelihoodMap(GridMapData map) {
+		// the settings changed since the field was computed, redo all of it
+		if (map.likelihoodVersion != likelihoodVersion) {
+			invalidateLikelihoodMap(map);
+			map.likelihoodVersion = likelihoodVersion;
+		}
+
+		// nothing changed, the field is already up to date
+		if (map.dirtyMinX > map.dirtyMaxX)
+			return;
+
+		Workspace ws = workspace.get();
+		final double[] probData = ws.probData;
 
 		// Util.invLogOdds(this.logData, this.probData);
 
+		// the region of the likelihood field to update, and the region of the map it depends on
+		final int width = gridSize.getX(), height = gridSize.getY(), k = (likelihoodKernel.length - 1) / 2;
+		final int minX = Math.max(map.dirtyMinX - k, 0), minY = Math.max(map.dirtyMinY - k, 0);
+		final int maxX = Math.min(map.dirtyMaxX + k, width - 1), maxY = Math.min(map.dirtyMaxY + k, height - 1);
+		map.clearDirty();
+
 		// apply a "hard" filter that rounds the probability values to either 0, 0.5 or 1
-		for (int i = 0; i < map.logData.length; i++) {
-			if (map.logData[i] > Util.logOdds(0.5))
-				probData[i] = 1;
-			else if (map.logData[i] < Util.logOdds(0.5))
-				probData[i] = 0;
-			else
-				probData[i] = 0.5;
+		final double prior = Util.logOdds(0.5);
+		for (int y = Math.max(minY - k, 0); y <= Math.min(maxY + k, height - 1); y++) {
+			for (int x = Math.max(minX - k, 0); x <= Math.min(maxX + k, width - 1); x++) {
+				double value = map.logData.get(x, y);
+				if (value > prior)
+					probData[x + y * width] = 1;
+				else if (value < prior)
+					probData[x + y * width] = 0;
+				else
+					probData[x + y * width] = 0.5;
+			}
 		}
 
-		// performs the gaussian bluring to create the likelihood field
-		Util.doGaussianBlurdSeparable(this.probData, map.likelihoodData, gridSize.getX(), gridSize.getY(), likelihoodKernel);
+		if (likelihoodField == LikelihoodField.DISTANCE_TRANSFORM)
+			computeDistanceField(probData, ws, k, minX, minY, maxX, maxY);
+		else
+			// performs the gaussian bluring to create the likelihood field
+			Util.doGaussianBlurdSeparable(probData, ws.likelihoodData, ws.blurData, width, height, likelihoodKernel, minX, minY, maxX, maxY);
+		map.likelihoodData.copyFrom(ws.likelihoodData, minX, minY, maxX, maxY);
 
+		// the scores of the correlative scan matcher depend on the changed part of the field
+		if (map.pyramid != null)
+			map.pyramid.markDirty(minX, minY, maxX, maxY);
+	}
+
+	/**
+	 * Stores the likelihood field based on the distance to the nearest obstacle into ws.likelihoodData for the region (minX,
+	 * minY) - (maxX, maxY). The field is a gaussian of the distance to the nearest occupied cell, with unknown cells counting
+	 * as half an obstacle so that unexplored areas get the same 0.5 as with the blur. Distances further than radius are cut
+	 * off, which makes it enough to look at the thresholded probData within radius of the region.
+	 */
+	private void computeDistanceField(double[] probData, Workspace ws, int radius, int minX, int minY, int maxX, int maxY) {
+		final int width = gridSize.getX(), height = gridSize.getY();
+		final int inMinX = Math.max(minX - radius, 0), inMinY = Math.max(minY - radius, 0);
+		final int inMaxX = Math.min(maxX + radius, width - 1), inMaxY = Math.min(maxY + radius, height - 1);
+
+		// the occupied cells are features of the first transform, the unknown cells of the second
+		final double[] occupied = ws.likelihoodData, unknown = ws.blurData;
+		for (int y = inMinY; y <= inMaxY; y++) {
+			for (int x = inMinX; x <= inMaxX; x++) {
+				int i = x + y * width;
+				occupied[i] = probData[i] == 1 ? 0 : Util.DISTANCE_INFINITY;
+				unknown[i] = probData[i] == 0.5 ? 0 : Util.DISTANCE_INFINITY;
+			}
+		}
+		Util.doDistanceTransformSquared(occupied, width, height, inMinX, inMinY, inMaxX, inMaxY, ws.transformIn, ws.transformOut,
+				ws.envelopeCells, ws.envelopeBounds);
+		Util.doDistanceTransformSquared(unknown, width, height, inMinX, inMinY, inMaxX, inMaxY, ws.transformIn, ws.transformOut,
+				ws.envelopeCells, ws.envelopeBounds);
+
+		final double coeff = 2 * likelihoodSigma * likelihoodSigma, maxDistSq = radius * radius;
+		for (int y = minY; y <= maxY; y++) {
+			for (int x = minX; x <= maxX; x++) {
+				int i = x + y * width;
+				double fromOccupied = occupied[i] <= maxDistSq ? Math.exp(-occupied[i] / coeff) : 0;
+				double fromUnknown = unknown[i] <= maxDistSq ? 0.5 * Math.exp(-unknown[i] / coeff) : 0;
+				occupied[i] = Math.max(fromOccupied, fromUnknown);
+			}
+		}
 	}
 
 	/**
@@ -258,23 +649,45 @@ public class GridMap {
 	 */
 	private double zHit = 0.9, zRandom = 1 - zHit;
 
+	/** the number of factors multiplied together before their logarithm is taken, small enough that they can never underflow */
+	private static final int SCORING_BLOCK_SIZE = 16;
+
+	/**
+	 * the size of the window searched by findBestPose, +-1 m and +-45 degrees. PoseOptimizer.CORRELATIVE searches at
+	 * most 3 standard deviations of the odometry, but never more than this
+	 */
+	private double linearSearchWindow = 1.0, angularSearchWindow = 45 * MathUtil.DEG_TO_RAD;
+
+	/** whether probabilityOf uses the batched implementation in {@link #logProbabilityOf(GridMapData, Observation, Pose)} */
+	private boolean batchedScoring = true;
+
 	public double probabilityOf(GridMapData map, Observation obs, Pose p) {
+		if (batchedScoring)
+			return Math.exp(logProbabilityOf(map, obs, p));
+
+		return probabilityOfScalar(map, obs, p);
+	}
+
+	/**
+	 * The original one measurement at a time implementation of {@link #probabilityOf(GridMapData, Observation, Pose)}, used
+	 * when batched scoring is turned off
+	 */
+	public double probabilityOfScalar(GridMapData map, Observation obs, Pose p) {
 		double product = 1;
 
 		// create transform from robot coordinates to world coordinates
 		Transform robotToWorld = Transform.fromRobotToWorld(p);
 
-		for (Measurement m : obs.getMeasurements()) {
-			// only care about measurements that hit something
-			if (!m.wasHit)
-				continue;
-
+		// only care about measurements that hit something
+		final float[] localX = obs.getLocalXs(), localY = obs.getLocalYs();
+		final BitSet hits = obs.getHits();
+		for (int i = hits.nextSetBit(0); i >= 0; i = hits.nextSetBit(i + 1)) {
 			// look up the probability of the end point being occupied and multiply by the product of the others
-			int gridX = (int) ((robotToWorld.transformX(m.localX, m.localY) - position.getX()) / resolution);
-			int gridY = (int) ((robotToWorld.transformY(m.localX, m.localY) - position.getY()) / resolution);
+			int gridX = (int) ((robotToWorld.transformX(localX[i], localY[i]) - position.getX()) / resolution);
+			int gridY = (int) ((robotToWorld.transformY(localX[i], localY[i]) - position.getY()) / resolution);
 
 			if (!(gridX < 0 || gridY < 0 || gridX >= gridSize.getX() || gridY >= gridSize.getY())) {
-				double val = map.likelihoodData[gridX + gridY * gridSize.getX()];
+				double val = map.likelihoodData.get(gridX, gridY);
 
 				// if (!m.wasHit)
 				// val = 1 - val;
@@ -282,7 +695,7 @@ public class GridMap {
 				// multiply all probabilities together
 
 				// if this is an unexplored cell, assume uniform distribution
-				if (val == 0.5)
+				if (val == unexploredLikelihood)
 					product *= 1.0 / SensorModel.SENSOR_MAX_RANGE;
 				else
 					product *= zHit * val + zRandom * 1.0 / SensorModel.SENSOR_MAX_RANGE;
@@ -292,6 +705,177 @@ public class GridMap {
 
 		return product;
 	}
+
+	/**
+	 * Computes the logarithm of p(z | m, x), the same value as {@link #probabilityOf(GridMapData, Observation, Pose)} but
+	 * without underflowing for large observations. The work is done in two passes: first all end points are transformed and
+	 * quantized into grid cells in a branch free loop over the primitive arrays of the observation, which the JIT can
+	 * vectorize, then the likelihoods of the cells are gathered and multiplied in blocks whose logarithms are summed.
+	 */
+	public double logProbabilityOf(GridMapData map, Observation obs, Pose p) {
+		Workspace ws = workspace.get();
+		rotateObservation(ws, obs, p.theta);
+		return logProbabilityOfRotated(ws, map, obs, p.x, p.y);
+	}
+
+	/**
+	 * Scores many candidate poses (xs[i], ys[i], thetas[i]) against the map in one go, storing the logarithm of p(z | m, x)
+	 * for each candidate in out[i], the same value as {@link #logProbabilityOf(GridMapData, Observation, Pose)}. The
+	 * candidates are sorted by theta so that the observation is rotated once for every distinct theta and only translated
+	 * for each candidate. Nothing is allocated per candidate.
+	 */
+	public void scorePoses(GridMapData map, Observation obs, float[] xs, float[] ys, float[] thetas, double[] out) {
+		Workspace ws = workspace.get();
+		final int n = xs.length;
+		if (ws.poseOrder.length < n)
+			ws.poseOrder = new long[n];
+		final long[] order = ws.poseOrder;
+
+		// the bits of a float compare like the float itself once the other bits of negative values are flipped, and the index
+		// below them keeps the key of each candidate unique
+		for (int i = 0; i < n; i++) {
+			int bits = Float.floatToIntBits(thetas[i]);
+			order[i] = (long) (bits ^ ((bits >> 31) & 0x7fffffff)) << 32 | i;
+		}
+		Arrays.sort(order, 0, n);
+
+		for (int k = 0; k < n; k++) {
+			int i = (int) order[k];
+			if (k == 0 || thetas[i] != thetas[(int) order[k - 1]])
+				rotateObservation(ws, obs, thetas[i]);
+			out[i] = logProbabilityOfRotated(ws, map, obs, xs[i], ys[i]);
+		}
+	}
+
+	/**
+	 * Returns an estimate of the logarithm of p(z | m, x) using only every stride:th measurement that hit something, scaled
+	 * by stride to be comparable to {@link #logProbabilityOf(GridMapData, Observation, Pose)}. Meant for cheaply ranking
+	 * many poses or maps.
+	 */
+	public double logProbabilityOfSampled(GridMapData map, Observation obs, Pose p, int stride) {
+		final float[] localX = obs.getLocalXs(), localY = obs.getLocalYs();
+		final BitSet hits = obs.getHits();
+		final double cos = MathUtil.cos(p.theta), sin = MathUtil.sin(p.theta);
+		final float posX = position.getX(), posY = position.getY(), res = resolution;
+		final int width = gridSize.getX(), height = gridSize.getY();
+
+		double logSum = 0, product = 1;
+		int factors = 0, hit = 0;
+		for (int i = hits.nextSetBit(0); i >= 0; i = hits.nextSetBit(i + 1)) {
+			if (hit++ % stride != 0)
+				continue;
+
+			int x = (int) ((localX[i] * cos - localY[i] * sin + p.x - posX) / res);
+			int y = (int) ((localX[i] * sin + localY[i] * cos + p.y - posY) / res);
+			if (x < 0 || y < 0 || x >= width || y >= height)
+				continue;
+
+			product *= measurementProbability(map.likelihoodData.get(x, y));
+
+			if (++factors == SCORING_BLOCK_SIZE) {
+				logSum += Math.log(product);
+				product = 1;
+				factors = 0;
+			}
+		}
+
+		return stride * (logSum + Math.log(product));
+	}
+
+	// rotates all end points of the observation by theta into the workspace, the first half of Transform.fromRobotToWorld
+	private void rotateObservation(Workspace ws, Observation obs, float theta) {
+		final int n = obs.getNumberOfMeasurements();
+		if (ws.rotatedX.length < n) {
+			ws.rotatedX = new double[n];
+			ws.rotatedY = new double[n];
+		}
+		final double[] rotatedX = ws.rotatedX, rotatedY = ws.rotatedY;
+
+		final float[] localX = obs.getLocalXs(), localY = obs.getLocalYs();
+		final double cos = MathUtil.cos(theta), sin = MathUtil.sin(theta);
+		for (int i = 0; i < n; i++) {
+			rotatedX[i] = localX[i] * cos - localY[i] * sin;
+			rotatedY[i] = localX[i] * sin + localY[i] * cos;
+		}
+		ws.rotatedTheta = theta;
+	}
+
+	// scores the observation rotated by rotateObservation when translated by (px, py)
+	private double logProbabilityOfRotated(Workspace ws, GridMapData map, Observation obs, double px, double py) {
+		final int n = obs.getNumberOfMeasurements();
+		if (ws.cellX.length < n) {
+			ws.cellX = new int[n];
+			ws.cellY = new int[n];
+		}
+		final int[] cellX = ws.cellX, cellY = ws.cellY;
+
+		// translate and quantize, with everything hoisted out of the loop
+		final double[] rotatedX = ws.rotatedX, rotatedY = ws.rotatedY;
+		final float posX = position.getX(), posY = position.getY(), res = resolution;
+		for (int i = 0; i < n; i++) {
+			cellX[i] = (int) ((rotatedX[i] + px - posX) / res);
+			cellY[i] = (int) ((rotatedY[i] + py - posY) / res);
+		}
+
+		// gather the likelihoods of the measurements that hit something
+		final int width = gridSize.getX(), height = gridSize.getY();
+		final BitSet hits = obs.getHits();
+		double logSum = 0, product = 1;
+		int factors = 0;
+		for (int i = hits.nextSetBit(0); i >= 0; i = hits.nextSetBit(i + 1)) {
+			int x = cellX[i], y = cellY[i];
+			if (x < 0 || y < 0 || x >= width || y >= height)
+				continue;
+
+			product *= measurementProbability(map.likelihoodData.get(x, y));
+
+			if (++factors == SCORING_BLOCK_SIZE) {
+				logSum += Math.log(product);
+				product = 1;
+				factors = 0;
+			}
+		}
+
+		return logSum + Math.log(product);
+	}
+
+	/** Returns the probability of a measurement ending in a cell with the given likelihood */
+	double measurementProbability(double likelihood) {
+		// if this is an unexplored cell, assume uniform distribution
+		if (likelihood == unexploredLikelihood)
+			return 1.0 / SensorModel.SENSOR_MAX_RANGE;
+		return hitProbability(likelihood);
+	}
+
+	/**
+	 * Returns the probability of a measurement ending where the likelihood is the given one, without checking for unexplored
+	 * cells. Used with likelihoods interpolated between cells, where only the cells themselves can be checked
+	 */
+	double hitProbability(double likelihood) {
+		return zHit * likelihood + zRandom * 1.0 / SensorModel.SENSOR_MAX_RANGE;
+	}
+
+	/** Returns true if a cell of the likelihood field with this value has not been explored */
+	boolean isUnexplored(double likelihood) {
+		return likelihood == unexploredLikelihood;
+	}
+
+	/** Returns the weight of the likelihood in the measurement probability, its derivative with respect to the likelihood */
+	double getZHit() {
+		return zHit;
+	}
+
+	/**
+	 * Selects whether {@link #probabilityOf(GridMapData, Observation, Pose)} uses the batched implementation or the original
+	 * one measurement at a time implementation. They give the same result up to rounding.
+	 */
+	public void setBatchedScoring(boolean batchedScoring) {
+		this.batchedScoring = batchedScoring;
+	}
+
+	public boolean getBatchedScoring() {
+		return batchedScoring;
+	}
 	/*
 	
 	public double probabilityOf(GridMapData map, Measurement m, Pose p) {
@@ -315,37 +899,47 @@ public class GridMap {
 	}
 	*/
 
-	/** Finds the pose that maximizes the observation likelihood using the given pose as a starting point */
+	/**
+	 * Finds the pose that maximizes the observation likelihood within the search window around the given pose, using a
+	 * correlative scan matcher (see {@link CorrelativeScanMatcher})
+	 */
 	public Pose findBestPose(GridMapData map, Observation obs, Pose startPose) {
-		Pose best = startPose;
-		double maxProb = 0;
-		Pose currentPose = new Pose(startPose);
-
-		float xSpan = 0.20f, ySpan = 0.20f, thetaSpan = (float) (15 * MathUtil.DEG_TO_RAD);
-		float transStep = 0.04f, thetaStep = thetaSpan / 5;
-
-		// test all combinations
-		for (float dx = -xSpan; dx < xSpan; dx += transStep) {
-			for (float dy = -ySpan; dy < ySpan; dy += transStep) {
-				for (float dTheta = -thetaSpan; dTheta < thetaSpan; dTheta += thetaStep) {
-
-					Pose p = new Pose(currentPose.x + dx, currentPose.y + dy, currentPose.theta + dTheta);
-					double prob = probabilityOf(map, obs, p);
-					if (prob > maxProb) {
-						maxProb = prob;
-						best = p;
-					}
+		return workspace.get().scanMatcher.match(map, obs, startPose, linearSearchWindow, angularSearchWindow);
+	}
 
-				}
-			}
-		}
+	/** Sets how far from the start pose findBestPose searches, in meters and radians */
+	public void setSearchWindow(double linearSearchWindow, double angularSearchWindow) {
+		this.linearSearchWindow = linearSearchWindow;
+		this.angularSearchWindow = angularSearchWindow;
+	}
 
-		// System.out.println(maxProb);
+	/** Selects how findBestPoseOptim refines the pose */
+	public void setPoseOptimizer(PoseOptimizer poseOptimizer) {
+		this.poseOptimizer = poseOptimizer;
+	}
 
-		return best;
+	public PoseOptimizer getPoseOptimizer() {
+		return poseOptimizer;
 	}
 
+	/**
+	 * Refines startPose, the pose predicted by the odometry u, by maximizing the likelihood of the observation times the
+	 * probability of the pose given the odometry. The likelihood field of the map must be up to date.
+	 */
 	public Pose findBestPoseOptim(GridMapData map, Observation z, Odometry u, Pose startPose) {
+		Workspace ws = workspace.get();
+		if (poseOptimizer == PoseOptimizer.GAUSS_NEWTON)
+			return ws.gaussNewton.match(map, z, u, startPose);
+		if (poseOptimizer == PoseOptimizer.CORRELATIVE) {
+			// only search where the odometry could plausibly have taken the robot, within 3 standard deviations
+			double linearWindow = Math.min(linearSearchWindow, 3 * u.getCenterStdDev());
+			double angularWindow = Math.min(angularSearchWindow, 3 * u.getThetaStdDev());
+			Pose match = ws.scanMatcher.match(map, z, startPose, linearWindow, angularWindow);
+			return ws.gaussNewton.match(map, z, u, startPose, refineMatch(ws, map, z, match));
+		}
+
+		// the rotation in the workspace may come from another observation
+		rotateObservation(ws, z, startPose.theta);
 
 		// function to optimize
 		MultivariateFunction mvf = new MultivariateFunction() {
@@ -353,70 +947,59 @@ public class GridMap {
 			@Override
 			public double value(double[] point) {
 				Pose p = new Pose((float) point[0], (float) point[1], (float) point[2]);
-				return probabilityOf(map, z, p) * u.probabiliyOf(startPose, p);
+
+				// many of the evaluations only change the position, reuse the rotated observation for them
+				// the logarithm of the objective, the objective itself is too small for the quadratic models of the optimizer
+				if (!batchedScoring)
+					return Math.log(probabilityOf(map, z, p)) + u.logProbabilityOf(startPose, p);
+				if (p.theta != ws.rotatedTheta)
+					rotateObservation(ws, z, p.theta);
+				return logProbabilityOfRotated(ws, map, z, p.x, p.y) + u.logProbabilityOf(startPose, p);
 			}
 		};
 
 		// do optimization with some parameters
-		PointValuePair pvp = optimizer.optimize(
-			GoalType.MAXIMIZE, SimpleBounds.unbounded(3), new MaxEval(500), new MaxIter(100), 
-			new ObjectiveFunction(mvf),	new InitialGuess(new double[] { startPose.x, startPose.y, startPose.theta })
-		);
+		PointValuePair pvp;
+		try {
+			pvp = ws.optimizer.optimize(
+				GoalType.MAXIMIZE, SimpleBounds.unbounded(3), new MaxEval(500), new MaxIter(100), 
+				new ObjectiveFunction(mvf),	new InitialGuess(new double[] { startPose.x, startPose.y, startPose.theta })
+			);
+		} catch (MathIllegalStateException e) {
+			// the objective is piecewise constant, which may make the optimizer run out of evaluations or fail to progress
+			return startPose;
+		}
 		
 		// get and return the result
 		double[] res = pvp.getPoint();
 		return new Pose((float) res[0], (float) res[1], (float) res[2]);
 	}
 
-	public void render(ShapeRenderer rend, GridMapData map, boolean renderLines, boolean renderLikelihood) {
-		rend.begin(ShapeType.FILLED);
-
-		float x, y, value;
-		for (int i = 0; i < map.logData.length; i++) {
-			x = i % gridSize.getX();
-			y = i / gridSize.getX();
-			// float r = Util.invLogOdds(data[i]);
-
-			// draw a rect for each grid cell, with the correct color
-			if (renderLikelihood)
-				value = (float) (map.likelihoodData[i]);
-			else
-				value = (float) (1.0f - Util.invLogOdds(map.logData[i]));
-
-			rend.rect(x * resolution + position.getX(), y * resolution + position.getY(), resolution, resolution, Util.getColorBitsGrayscale(value));
-
-		}
-
-		for (Vec2i v : rays) {
-			rend.rect(v.getX() * resolution + position.getX(), v.getY() * resolution + position.getY(), resolution, resolution, Color.colorToFloatBits(1, 0, 0, 1));
-		}
-
-		rend.end();
-
-		if (renderLines) {
-			rend.begin(ShapeType.LINE);
-
-			for (x = 0; x <= gridSize.getX(); x++)
-				rend.line(x * resolution + position.getX(), 0.0f + position.getY(), x * resolution + position.getX(), gridSize.getY() * resolution + position.getX(), Color.BLACK);
-
-			for (y = 0; y <= gridSize.getY(); y++)
-				rend.line(0.0f + position.getX(), y * resolution + position.getY(), gridSize.getX() * resolution + position.getX(), y * resolution + position.getY(), Color.BLACK);
-
-			rend.end();
+	// the correlative scan matcher works on whole cells and steps of rotation, and scores the cell an end point falls in.
+	// Scores the poses half a step around its result exactly, and returns the best one as the start of the Gauss-Newton
+	private Pose refineMatch(Workspace ws, GridMapData map, Observation z, Pose match) {
+		final float[] xs = ws.candidateX, ys = ws.candidateY, thetas = ws.candidateTheta;
+		final double[] scores = ws.candidateScores;
+		final float angleStep = (float) ws.scanMatcher.getAngleStep();
+
+		int i = 0;
+		for (int a = -1; a <= 1; a++) {
+			for (int dx = -1; dx <= 1; dx++) {
+				for (int dy = -1; dy <= 1; dy++) {
+					xs[i] = match.x + dx * resolution / 2;
+					ys[i] = match.y + dy * resolution / 2;
+					thetas[i] = match.theta + a * angleStep / 2;
+					i++;
+				}
+			}
 		}
+		scorePoses(map, z, xs, ys, thetas, scores);
 
-		/*
-		
-		rend.begin(ShapeType.LINE);
-		Vec2 start = new Vec2((gridSize.getX() / 2 + 0.5f) * resolution + position.getX(), (gridSize.getY() / 2 + 0.5f) * resolution + position.getY());
-		
-		for (Vec2 p : rays)
-			rend.line(start, p, Color.GREEN);
-		
-		rend.end();
-		 */
-
-		// TODO: do GUI?
+		int best = REFINE_CANDIDATES / 2;
+		for (i = 0; i < REFINE_CANDIDATES; i++)
+			if (scores[i] > scores[best])
+				best = i;
+		return new Pose(xs[best], ys[best], thetas[best]);
 	}
 
 	public Vec2 getWorldSize() {
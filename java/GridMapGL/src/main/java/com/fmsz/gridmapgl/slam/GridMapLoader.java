@@ -25,6 +25,9 @@ import com.fmsz.gridmapgl.app.ObjectSerializer;
 import com.fmsz.gridmapgl.slam.GridMap.GridMapData;
 
 public class GridMapLoader {
+	/** the first byte of a map file, files starting with LEGACY_HEADER were written before the cell storage was saved */
+	private static final byte HEADER = (byte) 0xfe, LEGACY_HEADER = (byte) 0xff;
+
 	private static FileOutputStream fos = null;
 	private static DataOutputStream dos = null;
 
@@ -37,7 +40,7 @@ public class GridMapLoader {
 			dos = new DataOutputStream(fos);
 
 			// write header
-			dos.writeByte(0xff);
+			dos.writeByte(HEADER);
 
 		} catch (IOException e) {
 			System.err.println("Error opening file: " + filename);
@@ -81,6 +84,7 @@ public class GridMapLoader {
 
 	private static FileInputStream fis = null;
 	private static DataInputStream dis = null;
+	private static boolean legacyFile = false;
 
 	public static void beginLoad(String filename) {
 		try {
@@ -90,11 +94,12 @@ public class GridMapLoader {
 			dis = new DataInputStream(fis);
 
 			// correct "header" byte?
-			byte b;
-			if ((b = dis.readByte()) != (byte) 0xff) {
+			byte b = dis.readByte();
+			if (b != HEADER && b != LEGACY_HEADER) {
 				dis.close();
-				throw new IllegalStateException("Error opening file, header byte is not correct! Wanted " + 0xff + ", got " + b);
+				throw new IllegalStateException("Error opening file, header byte is not correct! Wanted " + HEADER + ", got " + b);
 			}
+			legacyFile = b == LEGACY_HEADER;
 
 		} catch (IOException e) {
 			System.err.println("Error opening file " + filename);
@@ -105,7 +110,7 @@ public class GridMapLoader {
 	public static GridMap loadGridMap() {
 		try {
 
-			return ObjectSerializer.readGridMap(dis);
+			return ObjectSerializer.readGridMap(dis, !legacyFile);
 
 		} catch (IOException e) {
 			e.printStackTrace();
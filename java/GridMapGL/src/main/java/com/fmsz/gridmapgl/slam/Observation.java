@@ -15,92 +15,121 @@
  *******************************************************************************/
 package com.fmsz.gridmapgl.slam;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.BitSet;
 
 import com.fmsz.gridmapgl.math.MathUtil;
 
 /**
- * Class containing all data for a single lidar scan (a complete revolution)
+ * Class containing all data for a single lidar scan (a complete revolution). The measurements are stored as one array per
+ * property (structure of arrays) so that they can be looped over without creating or following any objects. Only the
+ * first {@link #getNumberOfMeasurements()} values of the arrays are used.
  * 
  * @author Anton
  *
  */
 public class Observation {
+	/** the angle and distance of each measurement in the robot's local coordinate frame */
+	private float[] angle, range;
 
-	/**
-	 * Class for storing a single measurement
-	 * 
-	 * @author Anton
-	 *
-	 */
-	public static class Measurement {
-		public double angle, distance;
-		public boolean wasHit;
-
-		public double localX, localY;
-
-		/** Constructs a new measurement based on the given angle and distance in robot's local coordinate frame */
-		public Measurement(double angle, double distance, boolean wasHit) {
-			this.angle = angle;
-			this.distance = distance;
-			this.wasHit = wasHit;
-
-			this.localX = distance * MathUtil.cos(angle);
-			this.localY = distance * MathUtil.sin(angle);
-		}
+	/** the end point of each measurement in the robot's local coordinate frame */
+	private float[] localX, localY;
 
-		/** Constructs a new measurement based on a given pose and world coordinates of end point */
-		public Measurement(float x, float y, boolean wasHit, Pose p) {
-			float dx = x - p.x;
-			float dy = y - p.y;
-			float a = MathUtil.atan2(dy, dx);
+	/** whether each measurement hit something */
+	private final BitSet hits = new BitSet();
 
-			this.distance = Math.sqrt(dx * dx + dy * dy);
-			this.angle = a - p.theta;
-			this.wasHit = wasHit;
+	private int size = 0;
 
-			// TODO: Probably not correct ^^
-			this.localX = dx;
-			this.localY = dy;
-		}
+	public Observation() {
+		this(64);
+	}
 
-		/** Constructs a new measurement based on coordinates given i robot's local coordinate frame */
-		public Measurement(double x, double y, boolean wasHit, int dummy) {
-			this.angle = MathUtil.atan2(y, x);
-			this.distance = Math.sqrt(x * x + y * y);
-			this.wasHit = wasHit;
+	/** Creates an observation with room for capacity measurements before it has to grow */
+	public Observation(int capacity) {
+		angle = new float[capacity];
+		range = new float[capacity];
+		localX = new float[capacity];
+		localY = new float[capacity];
+	}
 
-			this.localX = x;
-			this.localY = y;
+	/** Adds a measurement based on the given angle and distance in robot's local coordinate frame */
+	public void addMeasurement(float angle, float distance, boolean wasHit) {
+		add(angle, distance, distance * MathUtil.cos(angle), distance * MathUtil.sin(angle), wasHit);
+	}
+
+	/** Adds a measurement based on coordinates given in robot's local coordinate frame */
+	public void addMeasurementLocal(float x, float y, boolean wasHit) {
+		add(MathUtil.atan2(y, x), (float) Math.sqrt(x * x + y * y), x, y, wasHit);
+	}
+
+	private void add(float a, float r, float x, float y, boolean wasHit) {
+		// grow the arrays if needed
+		if (size == angle.length) {
+			int capacity = Math.max(16, size * 2);
+			angle = Arrays.copyOf(angle, capacity);
+			range = Arrays.copyOf(range, capacity);
+			localX = Arrays.copyOf(localX, capacity);
+			localY = Arrays.copyOf(localY, capacity);
 		}
 
+		angle[size] = a;
+		range[size] = r;
+		localX[size] = x;
+		localY[size] = y;
+		hits.set(size, wasHit);
+		size++;
 	}
 
-	private ArrayList<Measurement> measurements;
+	public int getNumberOfMeasurements() {
+		return size;
+	}
 
-	public Observation() {
-		measurements = new ArrayList<>();
+	public float getAngle(int i) {
+		return angle[i];
+	}
 
+	public float getRange(int i) {
+		return range[i];
 	}
 
-	public void addMeasurement(float angle, float distance, boolean wasHit) {
-		measurements.add(new Measurement(angle, distance, wasHit));
+	public float getLocalX(int i) {
+		return localX[i];
 	}
 
-	public void addMeasurement(Measurement m) {
-		measurements.add(m);
+	public float getLocalY(int i) {
+		return localY[i];
 	}
 
-	public List<Measurement> getMeasurements() {
-		return measurements;
+	public boolean wasHit(int i) {
+		return hits.get(i);
 	}
 
-	public int getNumberOfMeasurements() {
-		return measurements.size();
+	// bulk accessors, the returned arrays are owned by this observation and must not be modified
+
+	public float[] getAngles() {
+		return angle;
+	}
+
+	public float[] getRanges() {
+		return range;
+	}
+
+	public float[] getLocalXs() {
+		return localX;
+	}
+
+	public float[] getLocalYs() {
+		return localY;
+	}
+
+	/** Returns the set of indices of the measurements that hit something */
+	public BitSet getHits() {
+		return hits;
 	}
 
+	/** Removes all measurements, keeping the arrays so the observation can be refilled without allocating */
 	public void reset() {
-		measurements.clear();
+		size = 0;
+		hits.clear();
 	}
 }
@@ -26,8 +26,9 @@ public class Odometry {
 	// shared random generator for the normal distributions
 	private static RandomGenerator rndGen = new Well1024a();
 
-	// used to add noise when applying to Pose
-	private NormalDistribution ndCenter, ndTheta = new NormalDistribution();
+	// used to add noise when applying to Pose, created on the first use as most odometry objects (like the ones in a loaded
+	// recording) are never applied directly
+	private NormalDistribution ndCenter, ndTheta;
 
 	public double dCenter, dTheta;
 	private double dCenterSD, dThetaSD;
@@ -54,6 +55,11 @@ public class Odometry {
 		recalculateStdDev();
 	}
 
+	/** Re-seeds the random generator shared by all Odometry objects */
+	public static void setRandomSeed(long seed) {
+		rndGen.setSeed(seed);
+	}
+
 	/**
 	 * Calculates the standard deviation used when applying random Gaussian noise to a Pose
 	 */
@@ -63,8 +69,7 @@ public class Odometry {
 		dCenterSD = (0.01 + Math.abs(dCenter) * 0.05) / 2;
 		dThetaSD = 5 * MathUtil.DEG_TO_RAD + 0.1 * Math.abs(dTheta);
 
-		ndCenter = new NormalDistribution(rndGen, dCenter, dCenterSD);
-		ndTheta = new NormalDistribution(rndGen, dTheta, dThetaSD);
+		ndCenter = ndTheta = null;
 
 	}
 
@@ -76,6 +81,11 @@ public class Odometry {
 	 */
 	public void apply(Pose p) {
 
+		if (ndCenter == null) {
+			ndCenter = new NormalDistribution(rndGen, dCenter, dCenterSD);
+			ndTheta = new NormalDistribution(rndGen, dTheta, dThetaSD);
+		}
+
 		// take a sample from this very simple motion model
 		double d = ndCenter.sample();
 		double theta = ndTheta.sample();
@@ -95,10 +105,55 @@ public class Odometry {
 
 	}
 
-	// Calculates the probability of being at pose p when starting at pose start given this odometry
+	/** Returns the probability density of being at pose p when this odometry predicts pose start */
 	public double probabiliyOf(Pose start, Pose p) {
-		// calculate moved distance
-		double dist = Math.sqrt(start.x - p.x) * (start.x - p.x) + (start.y - p.y) * (start.y - p.y);
-		return ndCenter.probability(dist) * ndTheta.probability(p.theta);
+		return Math.exp(logProbabilityOf(start, p));
+	}
+
+	/**
+	 * Returns the logarithm of the probability density of being at pose p when this odometry predicts pose start. The
+	 * position is gaussian around the predicted one with the standard deviation of the traveled distance in both directions,
+	 * and the angle is gaussian around the predicted angle with the standard deviation of the turned angle.
+	 */
+	public double logProbabilityOf(Pose start, Pose p) {
+		double dx = p.x - start.x, dy = p.y - start.y, dTheta = MathUtil.angleConstrain(p.theta - start.theta);
+		double centerVar = dCenterSD * dCenterSD, thetaVar = dThetaSD * dThetaSD;
+
+		return -(dx * dx + dy * dy) / (2 * centerVar) - Math.log(2 * MathUtil.PI * centerVar)
+				- dTheta * dTheta / (2 * thetaVar) - 0.5 * Math.log(2 * MathUtil.PI * thetaVar);
+	}
+
+	/**
+	 * Removes the motion of the robot during the sweep from the observation raw and adds the corrected measurements to out.
+	 * The measurements are assumed to be taken evenly spread out in time while this odometry was traveled, and are
+	 * transformed back to the pose the robot had when the sweep started.
+	 */
+	public void compensateMotion(Observation raw, Observation out) {
+		int length = raw.getNumberOfMeasurements();
+		for (int i = 0; i < length; i++) {
+			// calculate negative "time factor" since we want to transform "back" the measurement
+			double d_i = -(length - i) / (double) length;
+
+			// calculate difference in angle and x (forward) motion
+			double delta_theta = dTheta * d_i;
+			double delta_x = dCenter * d_i;
+
+			// calculate new coordinates for this measurement (in local coordinate frame) by adding rotation and translation
+			// component
+			double x_a = raw.getRange(i) * MathUtil.cos(raw.getAngle(i) + delta_theta) + delta_x;
+			double y_a = raw.getRange(i) * MathUtil.sin(raw.getAngle(i) + delta_theta);
+
+			out.addMeasurementLocal((float) x_a, (float) y_a, raw.wasHit(i));
+		}
+	}
+
+	/** Returns the standard deviation of the traveled distance */
+	public double getCenterStdDev() {
+		return dCenterSD;
+	}
+
+	/** Returns the standard deviation of the turned angle */
+	public double getThetaStdDev() {
+		return dThetaSD;
 	}
 }
\ No newline at end of file
@@ -30,6 +30,7 @@ public class RayIterator implements Iterator<Vec2i> {
 
 	private final Vec2i vector = new Vec2i();
 	private int x, y, width, height, x_inc, y_inc, n;
+	private int cellX, cellY;
 	private float dx, dy, error;
 
 	/**
@@ -110,8 +111,21 @@ public class RayIterator implements Iterator<Vec2i> {
 
 	@Override
 	public Vec2i next() {
+		step();
+
 		// cell coordinates to return
-		vector.put(x, y);
+		vector.put(cellX, cellY);
+		return vector;
+	}
+
+	/**
+	 * Same as {@link #next()} but without filling in the returned vector, the cell is instead read with {@link #getCellX()}
+	 * and {@link #getCellY()}. Avoids boxing the coordinates in tight loops.
+	 */
+	public void step() {
+		// cell coordinates to return
+		cellX = x;
+		cellY = y;
 
 		// move to next position
 		if (error > 0) {
@@ -124,9 +138,16 @@ public class RayIterator implements Iterator<Vec2i> {
 
 		// decrease number of cells
 		n -= 1;
+	}
 
-		// return cell coordinates
-		return vector;
+	/** Returns the x-coordinate of the cell visited by the last call to {@link #step()} or {@link #next()} */
+	public int getCellX() {
+		return cellX;
+	}
+
+	/** Returns the y-coordinate of the cell visited by the last call to {@link #step()} or {@link #next()} */
+	public int getCellY() {
+		return cellY;
 	}
 
 }
@@ -0,0 +1,123 @@
+/*******************************************************************************
+ *  Copyright 2018 Anton Berneving
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *******************************************************************************/
+package com.fmsz.gridmapgl.slam;
+
+/**
+ * Precomputed cell sequences of rays starting in the center of a cell, one for each of a fixed number of directions. A ray
+ * is replayed by adding the offsets to the cell of the sensor, which removes the setup work of {@link RayIterator#init}
+ * for every beam and particle. The cells visited are the ones {@link RayIterator} visits for a ray starting at the center
+ * of the sensor cell with the direction rounded to the nearest template.
+ *
+ * Along a ray the x and y offsets never shrink, so the squared distances of the steps from the start cell never decrease.
+ * The steps closer than a given distance therefore form a prefix of the template, found with a binary search, and a ray
+ * splits into a few runs of cells that all get the same outcome of the sensor model.
+ * 
+ * @author Anton
+ *
+ */
+public class RayTemplates {
+	/** the number of directions, 4 per sensor step so that a rotated particle still gets a close match */
+	public static final int DIRECTIONS = Robot.SENSOR_STEPS_PER_REVOLUTION * 4;
+
+	/** the cell offsets of each step of each template, relative to the start cell */
+	private final short[][] offsetsX, offsetsY;
+
+	/** the squared distance of each step of each template from the start cell, in cells */
+	private final int[][] distancesSq;
+
+	/** the number of steps stored in each template */
+	private final int length;
+
+	/** Creates templates with length cells each */
+	public RayTemplates(int length) {
+		this.length = length;
+
+		offsetsX = new short[DIRECTIONS][length];
+		offsetsY = new short[DIRECTIONS][length];
+		distancesSq = new int[DIRECTIONS][length];
+
+		// trace the rays in a grid large enough to never leave it, with the start cell in the middle
+		RayIterator rayIterator = new RayIterator(2 * length + 1, 2 * length + 1);
+		for (int i = 0; i < DIRECTIONS; i++) {
+			double angle = 2 * Math.PI * i / DIRECTIONS;
+			rayIterator.init(length + 0.5f, length + 0.5f, (float) (length + 0.5 + length * Math.cos(angle)), (float) (length + 0.5 + length * Math.sin(angle)),
+					length);
+
+			for (int step = 0; step < length; step++) {
+				rayIterator.step();
+				offsetsX[i][step] = (short) (rayIterator.getCellX() - length);
+				offsetsY[i][step] = (short) (rayIterator.getCellY() - length);
+				distancesSq[i][step] = offsetsX[i][step] * offsetsX[i][step] + offsetsY[i][step] * offsetsY[i][step];
+			}
+		}
+	}
+
+	/** Returns the number of steps stored in each template */
+	public int getLength() {
+		return length;
+	}
+
+	/** Returns the index of the template closest to the direction (dx, dy) */
+	public int getDirection(float dx, float dy) {
+		int direction = (int) Math.round(Math.atan2(dy, dx) * DIRECTIONS / (2 * Math.PI));
+		return direction < 0 ? direction + DIRECTIONS : direction % DIRECTIONS;
+	}
+
+	/** Returns the x offsets of all steps of a template, the returned array must not be modified */
+	public short[] getOffsetsX(int direction) {
+		return offsetsX[direction];
+	}
+
+	/** Returns the y offsets of all steps of a template, the returned array must not be modified */
+	public short[] getOffsetsY(int direction) {
+		return offsetsY[direction];
+	}
+
+	/** Returns how many of the first steps of the template have a squared distance from the start cell below distanceSq */
+	public int getStepsCloserThan(int direction, int steps, float distanceSq) {
+		int[] d = distancesSq[direction];
+
+		int low = 0, high = steps;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (d[mid] < distanceSq)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Returns how many of the first steps of the template stay inside a grid of the given size when starting at the cell
+	 * (startX, startY), which must be inside the grid. Since a ray never turns back in x or y the steps inside form a
+	 * prefix of the template, so it can be found with a binary search.
+	 */
+	public int getStepsInside(int direction, int steps, int startX, int startY, int width, int height) {
+		short[] dx = offsetsX[direction], dy = offsetsY[direction];
+
+		int low = 0, high = steps;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			int x = startX + dx[mid], y = startY + dy[mid];
+			if (x < 0 || x >= width || y < 0 || y >= height)
+				high = mid;
+			else
+				low = mid + 1;
+		}
+		return low;
+	}
+}
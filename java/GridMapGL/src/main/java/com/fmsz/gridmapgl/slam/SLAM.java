@@ -16,8 +16,15 @@
 package com.fmsz.gridmapgl.slam;
 
 import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
 
+import com.fmsz.gridmapgl.app.Util;
 import com.fmsz.gridmapgl.math.MathUtil;
+import com.fmsz.gridmapgl.slam.GridMap.CellStorage;
 import com.fmsz.gridmapgl.slam.GridMap.GridMapData;
 
 import glm_.vec2.Vec2;
@@ -51,18 +58,81 @@ public class SLAM {
 
 	private Particle strongestParticle = null;
 
-	// private Random rand = new Random();
+	/** random generator used when resampling */
+	private Random rand = new Random();
+
+	/** the pool used for updating the particles in parallel, or null if they are updated sequentially */
+	private ForkJoinPool workerPool = null;
+
+	/** the most threads used by default, more give little as the particles share the memory bandwidth */
+	private static final int MAX_DEFAULT_PARALLELISM = 8;
+
+	/** how long to wait for the workers of a replaced pool to finish, in seconds */
+	private static final long POOL_SHUTDOWN_TIMEOUT = 10;
+
+	/** the maximum number of particles handled by one task when updating in parallel */
+	private static final int PARTICLES_PER_TASK = 8;
+
+	/** the coarse score of a particle only uses every COARSE_BEAM_STRIDE:th measurement that hit something */
+	private static final int COARSE_BEAM_STRIDE = 8;
+
+	/** the number of particles refined by the scan matcher in each update, the others keep their sampled pose */
+	private int refinedParticles = numParticles;
+
+	/** the quantile of the coarse scores at or above which particles are refined, or NaN to refine refinedParticles of them */
+	private double refinedQuantile = Double.NaN;
+
+	/** the coarse score of each particle during the current update, only used when not all particles are refined */
+	private double[] coarseScores = new double[0];
+
+	/** a copy of coarseScores reordered when finding the threshold of the refined particles */
+	private double[] selectionScores = new double[0];
+
+	/** statistics of the stages of the last update, for tuning refinedParticles */
+	private int lastCoarseScoredCount, lastRefinedCount;
+	private long lastCoarseStageTime, lastRefineStageTime;
 
 	public SLAM() {
-		gridMap = new GridMap(6.0f, 6.0f, 0.05f, new Vec2(-3.0f, -3.0f));
+		this(CellStorage.DOUBLE);
+	}
+
+	/** Creates a SLAM instance where the maps of the particles store their cells using the given storage */
+	public SLAM(CellStorage cellStorage) {
+		this(6.0f, 6.0f, 0.05f, cellStorage);
+	}
+
+	/**
+	 * Creates a SLAM instance with maps of the given size in meters centered around the origin, with the given resolution
+	 * in meters per cell and cell storage
+	 */
+	public SLAM(float width, float height, float resolution, CellStorage cellStorage) {
+		gridMap = new GridMap(width, height, resolution, new Vec2(-width / 2, -height / 2), cellStorage);
 
 		particles = new ArrayList<>(numParticles);
 
 		reset();
 	}
 
+	/**
+	 * Replaces the grid map by one of the given size, resolution and cell storage, keeping the other settings of the map,
+	 * and resets all the particles
+	 */
+	public void recreateGridMap(float width, float height, float resolution, CellStorage cellStorage) {
+		GridMap newGridMap = new GridMap(width, height, resolution, new Vec2(-width / 2, -height / 2), cellStorage);
+		newGridMap.copySettings(gridMap);
+
+		// the workspaces of the old map are held by the threads that used it, restarting the pool lets go of them
+		gridMap.releaseWorkspace();
+		gridMap = newGridMap;
+		setParallelism(getParallelism());
+
+		reset();
+	}
+
 	/** Resets all the particles to an initial Pose of (0, 0, 0) and with a blank map */
 	public void reset() {
+		for (Particle p : particles)
+			p.m.release();
 		particles.clear();
 		for (int i = 0; i < numParticles; i++) {
 			Particle p = new Particle(new Pose(0, 0, 0), gridMap.createMapData(null));
@@ -83,21 +153,51 @@ public class SLAM {
 
 		strongestParticle = null;
 
-		// do logic for all particles
-		double weightSum = 0;
-		for (Particle p : particles) {
-			// first sample a new pose from the motion model based on the given controls (odometry)
+		// first sample a new pose from the motion model based on the given controls (odometry). This is done for all particles
+		// before anything else so that the random numbers are drawn in the same order no matter how the rest is distributed
+		for (Particle p : particles)
 			p.pose = sampleMotionModel(p.pose, u);
 
-			// calculate the weight of this particle as p(z|x,m)
+		// when only some particles are refined, score all of them cheaply at the sampled pose to select which
+		final int count = particles.size();
+		final boolean staged = Double.isNaN(refinedQuantile) ? refinedParticles < count : refinedQuantile > 0;
+		if (staged && coarseScores.length != count) {
+			coarseScores = new double[count];
+			selectionScores = new double[count];
+		}
+
+		// every particle is scored and weighted against its current likelihood field. Only the part changed by the last scan is
+		// recomputed, and the staged update brings all fields up to date before the coarse scoring
+		long stageStart = System.nanoTime();
+		if (staged) {
+			forEachParticle((i) -> {
+				Particle p = particles.get(i);
+				gridMap.computeLikelihoodMap(p.m);
+				coarseScores[i] = gridMap.logProbabilityOfSampled(p.m, z, p.pose, COARSE_BEAM_STRIDE);
+			});
+		}
+		final boolean[] refine = selectRefinedParticles(staged);
+		lastCoarseStageTime = System.nanoTime() - stageStart;
+		lastCoarseScoredCount = staged ? count : 0;
+		lastRefinedCount = 0;
+		for (int i = 0; i < count; i++)
+			if (refine == null || refine[i])
+				lastRefinedCount++;
+
+		// do logic for all particles
+		stageStart = System.nanoTime();
+		forEachParticle((i) -> {
+			Particle p = particles.get(i);
+
+			// does nothing if the coarse stage already did it
 			gridMap.computeLikelihoodMap(p.m);
-			
+
 			// optimize pose position to maximize measurement likelihood
-			//p.pose = gridMap.findBestPose(p.m, z, p.pose);
-			p.pose = gridMap.findBestPoseOptim(p.m, z, u, p.pose);
+			if (refine == null || refine[i])
+				p.pose = gridMap.findBestPoseOptim(p.m, z, u, p.pose);
 
+			// calculate the weight of this particle as p(z|x,m)
 			p.weight = gridMap.probabilityOf(p.m, z, p.pose);
-			weightSum += p.weight;
 
 			if (!skipUpdate) {
 
@@ -105,6 +205,14 @@ public class SLAM {
 				gridMap.integrateObservation(p.m, z, p.pose);
 
 			}
+		});
+
+		lastRefineStageTime = System.nanoTime() - stageStart;
+
+		// sum the weights in a fixed order to get the same result as when running sequentially
+		double weightSum = 0;
+		for (Particle p : particles) {
+			weightSum += p.weight;
 
 			// store the particle with highest weight
 			if (strongestParticle == null)
@@ -130,12 +238,92 @@ public class SLAM {
 
 	}
 
+	// returns which particles to refine, or null if all of them are. These are the ones with a coarse score at or above
+	// refinedQuantile, or the refinedParticles ones with the best coarse score
+	private boolean[] selectRefinedParticles(boolean staged) {
+		if (!staged)
+			return null;
+
+		final int count = particles.size();
+		boolean[] refine = new boolean[count];
+		System.arraycopy(coarseScores, 0, selectionScores, 0, count);
+
+		if (!Double.isNaN(refinedQuantile)) {
+			double threshold = Util.select(selectionScores, count, (int) Math.floor(refinedQuantile * (count - 1)));
+			for (int i = 0; i < count; i++)
+				refine[i] = coarseScores[i] >= threshold;
+			return refine;
+		}
+
+		if (refinedParticles == 0)
+			return refine;
+
+		// everything above the refinedParticles:th best score is refined, and as many of the particles with exactly that score
+		// as there is room for, in order of index to keep the selection deterministic
+		double threshold = Util.select(selectionScores, count, count - refinedParticles);
+		int ties = refinedParticles;
+		for (int i = 0; i < count; i++)
+			if (coarseScores[i] > threshold)
+				ties--;
+		for (int i = 0; i < count; i++)
+			refine[i] = coarseScores[i] > threshold || (coarseScores[i] == threshold && ties-- > 0);
+		return refine;
+	}
+
+	/**
+	 * Sets how many particles get their pose refined by the scan matcher in each update. All particles are first scored
+	 * cheaply from a subset of the measurements at the pose sampled from the motion model, against their up to date likelihood
+	 * field, and only the best ones are refined, the others keep the sampled pose. A count of the number of particles or more refines all of them without
+	 * the coarse scoring.
+	 */
+	public void setRefinedParticles(int refinedParticles) {
+		this.refinedParticles = Math.max(0, refinedParticles);
+		this.refinedQuantile = Double.NaN;
+	}
+
+	/**
+	 * Refines the particles whose coarse score is at or above the given quantile (0 - 1) of the coarse scores of the update,
+	 * instead of a fixed number of them. Particles sharing the same score are all refined, and a quantile of 0 refines all
+	 * particles without the coarse scoring. See {@link #setRefinedParticles(int)}.
+	 */
+	public void setRefinedQuantile(double quantile) {
+		this.refinedQuantile = Math.min(Math.max(quantile, 0), 1);
+	}
+
+	public int getRefinedParticles() {
+		return refinedParticles;
+	}
+
+	/** Returns the number of particles given a coarse score during the last update, 0 if all particles were refined */
+	public int getLastCoarseScoredCount() {
+		return lastCoarseScoredCount;
+	}
+
+	/** Returns the number of particles refined by the scan matcher during the last update */
+	public int getLastRefinedCount() {
+		return lastRefinedCount;
+	}
+
+	/** Returns the time in nanoseconds spent computing the coarse scores and selecting the particles during the last update */
+	public long getLastCoarseStageTime() {
+		return lastCoarseStageTime;
+	}
+
+	/**
+	 * Returns the time in nanoseconds spent computing the likelihood fields of, refining, weighting and updating the
+	 * particles during the last update
+	 */
+	public long getLastRefineStageTime() {
+		return lastRefineStageTime;
+	}
+
 	public void resample() {
 		ArrayList<Particle> newParticles = new ArrayList<>(numParticles);
 
-		double r = Math.random() * 1.0 / numParticles;
+		double r = rand.nextDouble() * 1.0 / numParticles;
 		double c = particles.get(0).weight;
 		int i = 0;
+		Particle newStrongest = null;
 
 		for (int m = 1; m <= numParticles; m++) {
 			double U = r + (m - 1) * 1.0 / numParticles;
@@ -144,12 +332,105 @@ public class SLAM {
 				c += particles.get(i).weight;
 			}
 			// add the i:th particle to the new generation (note that this a copying operation)
-			newParticles.add(new Particle(particles.get(i)));
+			Particle copy = new Particle(particles.get(i));
+			newParticles.add(copy);
+
+			// keep pointing at a live copy of the strongest particle, the old one's map is released below
+			if (particles.get(i) == strongestParticle)
+				newStrongest = copy;
 
 		}
 
 		// make the new generation the current one
+		// the old particles are no longer used, let go of their maps so the new ones can write to them without copying
+		for (Particle p : particles)
+			p.m.release();
+
 		particles = newParticles;
+		if (newStrongest != null)
+			strongestParticle = newStrongest;
+	}
+
+	/**
+	 * Runs the action for the index of every particle. The particles are handed out to the worker pool if parallel updating
+	 * is enabled, otherwise they are all processed in order on the calling thread.
+	 */
+	private void forEachParticle(IntConsumer action) {
+		if (workerPool == null) {
+			for (int i = 0; i < particles.size(); i++)
+				action.accept(i);
+		} else {
+			workerPool.invoke(new ParticleTask(0, particles.size(), action));
+		}
+	}
+
+	/** Fork/join task that splits a range of particle indices until it is small enough to be processed directly */
+	private static class ParticleTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int from, to;
+		private final IntConsumer action;
+
+		ParticleTask(int from, int to, IntConsumer action) {
+			this.from = from;
+			this.to = to;
+			this.action = action;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= PARTICLES_PER_TASK) {
+				for (int i = from; i < to; i++)
+					action.accept(i);
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(new ParticleTask(from, mid, action), new ParticleTask(mid, to, action));
+			}
+		}
+	}
+
+	/**
+	 * Sets the number of threads used for updating the particles. A value of 1 or less updates all particles sequentially
+	 * on the calling thread. Both modes give the same result when the random generators are seeded with
+	 * {@link #setRandomSeed(long)}.
+	 */
+	public void setParallelism(int threads) {
+		// wait for the old workers to stop, which lets go of the workspaces they hold in the GridMap
+		if (workerPool != null) {
+			workerPool.shutdown();
+			try {
+				workerPool.awaitTermination(POOL_SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		workerPool = threads > 1 ? new ForkJoinPool(threads) : null;
+	}
+
+	/**
+	 * Returns the number of threads to use by default, one less than the number of processors to leave one for the rendering
+	 * and the connections, but at most MAX_DEFAULT_PARALLELISM
+	 */
+	public static int getDefaultParallelism() {
+		return Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, MAX_DEFAULT_PARALLELISM));
+	}
+
+	/** Returns the number of threads used for updating the particles */
+	public int getParallelism() {
+		return workerPool == null ? 1 : workerPool.getParallelism();
+	}
+
+	/** Seeds all random generators used by the SLAM algorithm, making the results reproducible */
+	public void setRandomSeed(long seed) {
+		rand.setSeed(seed);
+		Odometry.setRandomSeed(seed);
+	}
+
+	/** Stops the worker threads (if any) and lets go of the workspace of the calling thread */
+	public void dispose() {
+		setParallelism(1);
+		gridMap.releaseWorkspace();
 	}
 
 	private Pose sampleMotionModel(Pose x, Odometry u) {
@@ -0,0 +1,147 @@
+/*******************************************************************************
+ *  Copyright 2018 Anton Berneving
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *******************************************************************************/
+package com.fmsz.gridmapgl.slam;
+
+import java.util.Arrays;
+
+/**
+ * A TiledGrid storing each cell as a 16 bit fixed-point number, using 2 bytes per cell. A stored value of n represents
+ * n * resolution, values outside of +-{@link #MAX_VALUE} * resolution are clamped.
+ *
+ * Since the inverse sensor model only produces a few different probabilities, updates can be done with precomputed tables
+ * mapping every old value to the updated one (see {@link #createUpdateTable(double)}), the same way Cartographer does it.
+ *
+ * @author Anton
+ *
+ */
+public class ShortTiledGrid extends TiledGrid {
+	/** the largest magnitude that can be stored, the value -32768 is not used to keep the range symmetric */
+	public static final int MAX_VALUE = Short.MAX_VALUE;
+
+	/** the value of one step of the stored numbers */
+	private final double resolution;
+
+	/** Creates a new grid with the given size in cells where all cells are set to value */
+	public ShortTiledGrid(int width, int height, double value, double resolution) {
+		super(width, height);
+		this.resolution = resolution;
+		fillTiles(value);
+	}
+
+	private ShortTiledGrid(ShortTiledGrid other) {
+		super(other);
+		this.resolution = other.resolution;
+	}
+
+	@Override
+	public TiledGrid copy() {
+		return new ShortTiledGrid(this);
+	}
+
+	@Override
+	public double get(int x, int y) {
+		return ((short[]) tiles[tileIndex(x, y)].data)[cellIndex(x, y)] * resolution;
+	}
+
+	@Override
+	public void set(int x, int y, double value) {
+		((short[]) writableData(x, y))[cellIndex(x, y)] = quantize(value);
+	}
+
+	@Override
+	public void add(int x, int y, double value) {
+		short[] data = (short[]) writableData(x, y);
+		int i = cellIndex(x, y);
+		data[i] = quantize(data[i] * resolution + value);
+	}
+
+	@Override
+	public void add(int x0, int y0, short[] offsetsX, short[] offsetsY, int from, int to, double value) {
+		for (int i = from; i < to; i++)
+			add(x0 + offsetsX[i], y0 + offsetsY[i], value);
+	}
+
+	/** Replaces the value of the cell (x, y) using a table created by {@link #createUpdateTable(double)} */
+	public void update(int x, int y, short[] table) {
+		short[] data = (short[]) writableData(x, y);
+		int i = cellIndex(x, y);
+		data[i] = table[data[i] + MAX_VALUE];
+	}
+
+	/**
+	 * Replaces the values of the cells (x0 + offsetsX[i], y0 + offsetsY[i]) for from <= i < to using a table, the same as
+	 * {@link #update(int, int, short[])} for each cell but only looking up a tile when the path moves into another one. The
+	 * cells must all be inside the grid.
+	 */
+	public void update(int x0, int y0, short[] offsetsX, short[] offsetsY, int from, int to, short[] table) {
+		int tile = -1;
+		short[] data = null;
+		for (int i = from; i < to; i++) {
+			int x = x0 + offsetsX[i], y = y0 + offsetsY[i];
+			if (tileIndex(x, y) != tile) {
+				tile = tileIndex(x, y);
+				data = (short[]) writableData(x, y);
+			}
+			int c = cellIndex(x, y);
+			data[c] = table[data[c] + MAX_VALUE];
+		}
+	}
+
+	/**
+	 * Creates a table for {@link #update(int, int, short[])} that adds delta to a cell, giving the same result as
+	 * {@link #add(int, int, double)} without any floating point math.
+	 */
+	public short[] createUpdateTable(double delta) {
+		short[] table = new short[2 * MAX_VALUE + 1];
+		for (int i = 0; i < table.length; i++)
+			table[i] = quantize((i - MAX_VALUE) * resolution + delta);
+		return table;
+	}
+
+	public double getResolution() {
+		return resolution;
+	}
+
+	@Override
+	public int getBytesPerCell() {
+		return Short.BYTES;
+	}
+
+	@Override
+	protected Object createTileData(double value) {
+		short[] data = new short[TILE_SIZE * TILE_SIZE];
+		Arrays.fill(data, quantize(value));
+		return data;
+	}
+
+	@Override
+	protected Object cloneTileData(Object data) {
+		return ((short[]) data).clone();
+	}
+
+	@Override
+	protected void copyIntoTileData(double[] src, int srcIndex, Object data, int dstIndex, int length) {
+		short[] dst = (short[]) data;
+		for (int i = 0; i < length; i++)
+			dst[dstIndex + i] = quantize(src[srcIndex + i]);
+	}
+
+	// converts a value to the closest stored number, clamping it to the range
+	private short quantize(double value) {
+		long n = Math.round(value / resolution);
+		return (short) Math.max(-MAX_VALUE, Math.min(MAX_VALUE, n));
+	}
+}
@@ -0,0 +1,246 @@
+/*******************************************************************************
+ *  Copyright 2018 Anton Berneving
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *******************************************************************************/
+package com.fmsz.gridmapgl.slam;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A grid of values stored in fixed-size square tiles. Tiles are reference counted and shared between copies of the grid,
+ * a tile is only copied when one of the grids sharing it writes to it (copy-on-write). This makes copying a grid cost one
+ * pointer copy per tile, and the memory used only grows with the tiles that actually differ between the copies.
+ *
+ * How the values are stored inside the tiles is up to the subclasses, see {@link DoubleTiledGrid}, {@link FloatTiledGrid}
+ * and {@link ShortTiledGrid}.
+ *
+ * Different grids may be used from different threads at the same time, but a single grid must only be used by one thread
+ * at a time.
+ *
+ * @author Anton
+ *
+ */
+public abstract class TiledGrid {
+	/** the size of a tile is 2^TILE_SHIFT cells in each direction */
+	public static final int TILE_SHIFT = 4;
+	public static final int TILE_SIZE = 1 << TILE_SHIFT;
+	protected static final int TILE_MASK = TILE_SIZE - 1;
+
+	/**
+	 * A single tile of data (a primitive array of TILE_SIZE^2 values) together with the number of grids referencing it, and
+	 * a version that is increased every time the data may be written to
+	 */
+	protected static class Tile {
+		final Object data;
+		final AtomicInteger references;
+		int version;
+
+		Tile(Object data, int references) {
+			this.data = data;
+			this.references = new AtomicInteger(references);
+		}
+	}
+
+	/** the size of the grid in cells and tiles */
+	protected final int width, height, tilesX, tilesY;
+
+	protected final Tile[] tiles;
+
+	/** Creates a new grid with the given size in cells. The subclass must fill the tiles. */
+	protected TiledGrid(int width, int height) {
+		this.width = width;
+		this.height = height;
+		this.tilesX = (width + TILE_MASK) >> TILE_SHIFT;
+		this.tilesY = (height + TILE_MASK) >> TILE_SHIFT;
+
+		tiles = new Tile[tilesX * tilesY];
+	}
+
+	/** Creates a copy of other. No data is copied, instead all tiles are shared until they are written to. */
+	protected TiledGrid(TiledGrid other) {
+		this.width = other.width;
+		this.height = other.height;
+		this.tilesX = other.tilesX;
+		this.tilesY = other.tilesY;
+
+		tiles = new Tile[other.tiles.length];
+		for (int i = 0; i < tiles.length; i++) {
+			tiles[i] = other.tiles[i];
+			tiles[i].references.incrementAndGet();
+		}
+	}
+
+	/** Returns a copy of this grid sharing all tiles with it */
+	public abstract TiledGrid copy();
+
+	public abstract double get(int x, int y);
+
+	public abstract void set(int x, int y, double value);
+
+	public abstract void add(int x, int y, double value);
+
+	/**
+	 * Adds value to the cells (x0 + offsetsX[i], y0 + offsetsY[i]) for from <= i < to, which must all be inside the grid.
+	 * Works directly on the tile arrays, only looking up a tile when the path moves into another one, so it is much faster
+	 * than calling {@link #add(int, int, double)} for each cell of a path of neighboring cells (like a ray).
+	 */
+	public abstract void add(int x0, int y0, short[] offsetsX, short[] offsetsY, int from, int to, double value);
+
+	/** Returns the number of bytes used to store one cell */
+	public abstract int getBytesPerCell();
+
+	/** Creates the data of a tile with all values set to value */
+	protected abstract Object createTileData(double value);
+
+	/** Returns a copy of the data of a tile */
+	protected abstract Object cloneTileData(Object data);
+
+	/** Stores length values from src, starting at srcIndex, into the tile data starting at dstIndex */
+	protected abstract void copyIntoTileData(double[] src, int srcIndex, Object data, int dstIndex, int length);
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/** Returns the number of tiles in the x direction */
+	public int getTilesX() {
+		return tilesX;
+	}
+
+	/** Returns the number of tiles in the y direction */
+	public int getTilesY() {
+		return tilesY;
+	}
+
+	/**
+	 * Returns an object identifying the tile (tx, ty). As long as both this and {@link #getTileVersion(int, int)} are the
+	 * same, the values in the tile have not changed, which lets copies of the data (like a texture) only update the tiles
+	 * that changed.
+	 */
+	public Object getTileKey(int tx, int ty) {
+		return tiles[tx + ty * tilesX];
+	}
+
+	/** Returns the version of the tile (tx, ty), see {@link #getTileKey(int, int)} */
+	public int getTileVersion(int tx, int ty) {
+		return tiles[tx + ty * tilesX].version;
+	}
+
+	/** Sets all cells to the given value. The old tiles are released and replaced by one shared tile. */
+	public void fill(double value) {
+		release();
+		fillTiles(value);
+	}
+
+	/** Copies all values into the array dst, stored row by row (index = x + y * width) */
+	public void copyTo(double[] dst) {
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+				dst[x + y * width] = get(x, y);
+	}
+
+	/**
+	 * Sets all values from the array src, stored row by row (index = x + y * width). Shared tiles are replaced without
+	 * copying their old content first since it will be overwritten anyway.
+	 */
+	public void copyFrom(double[] src) {
+		copyFrom(src, 0, 0, width - 1, height - 1);
+	}
+
+	/**
+	 * Sets the values inside the region (minX, minY) - (maxX, maxY), inclusive, from the array src, stored row by row (index
+	 * = x + y * width). Shared tiles completely covered by the region are replaced without copying their old content.
+	 */
+	public void copyFrom(double[] src, int minX, int minY, int maxX, int maxY) {
+		for (int ty = minY >> TILE_SHIFT; ty <= maxY >> TILE_SHIFT; ty++) {
+			for (int tx = minX >> TILE_SHIFT; tx <= maxX >> TILE_SHIFT; tx++) {
+				int tileIndex = tx + ty * tilesX;
+
+				// the part of the tile that is inside both the grid and the region
+				int x0 = Math.max(tx << TILE_SHIFT, minX), y0 = Math.max(ty << TILE_SHIFT, minY);
+				int x1 = Math.min((tx << TILE_SHIFT) + TILE_MASK, maxX), y1 = Math.min((ty << TILE_SHIFT) + TILE_MASK, maxY);
+
+				// a fully covered tile does not need its old content, otherwise the rest of it has to be preserved
+				Object data;
+				boolean covered = x0 == tx << TILE_SHIFT && y0 == ty << TILE_SHIFT && (x1 == (tx << TILE_SHIFT) + TILE_MASK || x1 == width - 1)
+						&& (y1 == (ty << TILE_SHIFT) + TILE_MASK || y1 == height - 1);
+				if (covered && tiles[tileIndex].references.get() != 1) {
+					tiles[tileIndex].references.decrementAndGet();
+					tiles[tileIndex] = new Tile(createTileData(0), 1);
+					data = tiles[tileIndex].data;
+				} else {
+					data = writableData(x0, y0);
+				}
+
+				for (int y = y0; y <= y1; y++)
+					copyIntoTileData(src, x0 + y * width, data, cellIndex(x0, y), x1 - x0 + 1);
+			}
+		}
+	}
+
+	/** Releases all tiles held by this grid. The grid must not be used after this unless it is filled again. */
+	public void release() {
+		for (int i = 0; i < tiles.length; i++) {
+			if (tiles[i] != null)
+				tiles[i].references.decrementAndGet();
+			tiles[i] = null;
+		}
+	}
+
+	/** Returns the number of tiles that are only referenced by this grid */
+	public int getExclusiveTileCount() {
+		int count = 0;
+		for (Tile t : tiles)
+			if (t.references.get() == 1)
+				count++;
+		return count;
+	}
+
+	/** Returns the index of the tile containing (x, y) */
+	protected final int tileIndex(int x, int y) {
+		return (x >> TILE_SHIFT) + (y >> TILE_SHIFT) * tilesX;
+	}
+
+	/** Returns the index of the cell (x, y) inside its tile */
+	protected static int cellIndex(int x, int y) {
+		return (x & TILE_MASK) | ((y & TILE_MASK) << TILE_SHIFT);
+	}
+
+	// lets all tiles reference one single tile filled with value
+	protected void fillTiles(double value) {
+		Tile tile = new Tile(createTileData(value), tiles.length);
+		for (int i = 0; i < tiles.length; i++)
+			tiles[i] = tile;
+	}
+
+	/** Returns the data of the tile containing (x, y), making a private copy first if the tile is shared with other grids */
+	protected final Object writableData(int x, int y) {
+		int tileIndex = tileIndex(x, y);
+		Tile tile = tiles[tileIndex];
+
+		if (tile.references.get() != 1) {
+			// copy the data before letting go of the shared tile, as the last owner may start writing to it directly after
+			Object data = cloneTileData(tile.data);
+			tile.references.decrementAndGet();
+			tile = tiles[tileIndex] = new Tile(data, 1);
+		}
+
+		tile.version++;
+		return tile.data;
+	}
+}
@@ -0,0 +1,299 @@
+/*******************************************************************************
+ *  Copyright 2018 Anton Berneving
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *******************************************************************************/
+package com.fmsz.gridmapgl.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.fmsz.gridmapgl.math.MathUtil;
+import com.fmsz.gridmapgl.slam.Observation;
+import com.fmsz.gridmapgl.slam.Odometry;
+import com.fmsz.gridmapgl.slam.TimeFrame;
+
+/**
+ * Writes recordings and reads them back, in order and in random order across the chunks, in both formats and after the
+ * writer was never closed.
+ * 
+ * @author Anton
+ *
+ */
+public class RecordingFileTest {
+	/** enough frames for two full chunks and a partial one */
+	private static final int FRAMES = 2 * RecordingFile.FRAMES_PER_CHUNK + 22;
+
+	/** the quantization of the version 2 format, half a step of the angles and ranges */
+	private static final double ANGLE_TOLERANCE = Math.PI / 65536 + 1e-6, RANGE_TOLERANCE = 0.0005 + 1e-6;
+
+	@Test
+	public void roundTripIsWithinTheQuantization() throws IOException {
+		List<TimeFrame> frames = new ArrayList<>();
+		List<Float> timeStamps = new ArrayList<>();
+		createFrames(new Random(1), frames, timeStamps);
+
+		Path file = Files.createTempFile("recording", ".rec");
+		try {
+			RecordingFile.write(file, frames, timeStamps);
+
+			List<Float> readTimeStamps = new ArrayList<>();
+			List<TimeFrame> read = RecordingFile.read(file, readTimeStamps);
+			assertEquals(FRAMES, read.size());
+			for (int i = 0; i < FRAMES; i++) {
+				assertEquals(timeStamps.get(i), readTimeStamps.get(i), 0);
+				assertFrameEquals(frames.get(i), read.get(i), ANGLE_TOLERANCE, RANGE_TOLERANCE);
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void randomAccessAcrossChunks() throws IOException {
+		List<TimeFrame> frames = new ArrayList<>();
+		List<Float> timeStamps = new ArrayList<>();
+		createFrames(new Random(2), frames, timeStamps);
+
+		Path file = Files.createTempFile("recording", ".rec");
+		try {
+			RecordingFile.write(file, frames, timeStamps);
+
+			// every frame in random order, so that most of them are in another chunk than the one before
+			List<Integer> order = new ArrayList<>();
+			for (int i = 0; i < FRAMES; i++)
+				order.add(i);
+			Collections.shuffle(order, new Random(3));
+
+			try (RecordingFile.Reader reader = RecordingFile.open(file)) {
+				assertEquals(FRAMES, reader.getFrameCount());
+				assertFalse(reader.isRecovered());
+
+				for (int i : order) {
+					assertEquals(timeStamps.get(i), reader.getTimeStamp(i), 0);
+					assertFrameEquals(frames.get(i), reader.get(i), ANGLE_TOLERANCE, RANGE_TOLERANCE);
+				}
+
+				// iterating from the last frame of the first chunk
+				int from = RecordingFile.FRAMES_PER_CHUNK - 1;
+				reader.seek(from);
+				for (int i = from; i < FRAMES; i++) {
+					assertEquals(i, reader.getPosition());
+					assertFrameEquals(frames.get(i), reader.next(), ANGLE_TOLERANCE, RANGE_TOLERANCE);
+				}
+				assertFalse(reader.hasNext());
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void randomAccessWithASmallWindow() throws IOException {
+		List<TimeFrame> frames = new ArrayList<>();
+		List<Float> timeStamps = new ArrayList<>();
+		createFrames(new Random(7), frames, timeStamps);
+
+		Path file = Files.createTempFile("recording", ".rec");
+		try {
+			RecordingFile.write(file, frames, timeStamps);
+
+			// a window smaller than the chunks, so that it is moved for nearly every read
+			Random rand = new Random(8);
+			try (RecordingFile.Reader reader = RecordingFile.open(file, 1024)) {
+				for (int k = 0; k < 2 * FRAMES; k++) {
+					int i = rand.nextInt(FRAMES);
+					assertEquals(timeStamps.get(i), reader.getTimeStamp(i), 0);
+					assertFrameEquals(frames.get(i), reader.get(i), ANGLE_TOLERANCE, RANGE_TOLERANCE);
+				}
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void readsTheOriginalFormat() throws IOException {
+		List<TimeFrame> frames = new ArrayList<>();
+		List<Float> timeStamps = new ArrayList<>();
+		createFrames(new Random(4), frames, timeStamps);
+
+		Path file = Files.createTempFile("recording", ".rec");
+		try {
+			// as the recordings were written before the version 2 format
+			try (DataOutputStream dos = new DataOutputStream(Files.newOutputStream(file))) {
+				dos.writeByte(0xff);
+				dos.writeShort(FRAMES);
+				for (int i = 0; i < FRAMES; i++) {
+					dos.writeFloat(timeStamps.get(i));
+					ObjectSerializer.writeOdometry(dos, frames.get(i).u);
+					ObjectSerializer.writeObservation(dos, frames.get(i).z);
+				}
+			}
+
+			// nothing is quantized
+			List<Float> readTimeStamps = new ArrayList<>();
+			List<TimeFrame> read = RecordingFile.read(file, readTimeStamps);
+			assertEquals(FRAMES, read.size());
+			for (int i = 0; i < FRAMES; i++) {
+				assertEquals(timeStamps.get(i), readTimeStamps.get(i), 0);
+				assertFrameEquals(frames.get(i), read.get(i), 0, 0);
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void recoversTheChunksOfAnUnclosedRecording() throws IOException {
+		List<TimeFrame> frames = new ArrayList<>();
+		List<Float> timeStamps = new ArrayList<>();
+		createFrames(new Random(5), frames, timeStamps);
+
+		Path file = Files.createTempFile("recording", ".rec");
+		try {
+			RecordingFile.write(file, frames, timeStamps);
+			long indexOffset = readLong(file, Files.size(file) - 8);
+
+			// without the index, as if the application crashed after the last chunk reached the disk
+			truncate(file, indexOffset);
+			try (RecordingFile.Reader reader = RecordingFile.open(file)) {
+				assertTrue(reader.isRecovered());
+				assertEquals(FRAMES, reader.getFrameCount());
+				for (int i = FRAMES - 1; i >= 0; i--)
+					assertFrameEquals(frames.get(i), reader.get(i), ANGLE_TOLERANCE, RANGE_TOLERANCE);
+			}
+
+			// and while the last chunk was being written
+			truncate(file, indexOffset - 5);
+			try (RecordingFile.Reader reader = RecordingFile.open(file)) {
+				assertTrue(reader.isRecovered());
+				assertEquals(2 * RecordingFile.FRAMES_PER_CHUNK, reader.getFrameCount());
+				for (int i = 0; i < reader.getFrameCount(); i++) {
+					assertEquals(timeStamps.get(i), reader.getTimeStamp(i), 0);
+					assertFrameEquals(frames.get(i), reader.get(i), ANGLE_TOLERANCE, RANGE_TOLERANCE);
+				}
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void framesReachTheDiskWhenNoMoreAreAppended() throws IOException, InterruptedException {
+		List<TimeFrame> frames = new ArrayList<>();
+		List<Float> timeStamps = new ArrayList<>();
+		createFrames(new Random(9), frames, timeStamps);
+
+		Path file = Files.createTempFile("recording", ".rec");
+		try (RecordingFile.Writer writer = RecordingFile.create(file)) {
+			for (int i = 0; i < 3; i++)
+				writer.append(frames.get(i), timeStamps.get(i));
+
+			// the background thread writes the open chunk once it is FLUSH_INTERVAL ms old
+			long deadline = System.currentTimeMillis() + 2 * RecordingFile.Writer.FLUSH_INTERVAL;
+			while (Files.size(file) == 6 && System.currentTimeMillis() < deadline)
+				Thread.sleep(100);
+
+			try (RecordingFile.Reader reader = RecordingFile.open(file)) {
+				assertTrue(reader.isRecovered());
+				assertEquals(3, reader.getFrameCount());
+				for (int i = 0; i < 3; i++)
+					assertFrameEquals(frames.get(i), reader.get(i), ANGLE_TOLERANCE, RANGE_TOLERANCE);
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void corruptChunkOfAnUnclosedRecordingFails() throws IOException {
+		List<TimeFrame> frames = new ArrayList<>();
+		List<Float> timeStamps = new ArrayList<>();
+		createFrames(new Random(6), frames, timeStamps);
+
+		Path file = Files.createTempFile("recording", ".rec");
+		try {
+			RecordingFile.write(file, frames, timeStamps);
+			truncate(file, readLong(file, Files.size(file) - 8));
+
+			// a negative number of frames in the first chunk
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+				ByteBuffer count = ByteBuffer.allocate(4).putInt(-1);
+				count.flip();
+				channel.write(count, 6);
+			}
+
+			RecordingFile.open(file).close();
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	// fills frames and timeStamps with FRAMES random frames of up to 360 measurements, some of them misses
+	private static void createFrames(Random rand, List<TimeFrame> frames, List<Float> timeStamps) {
+		float time = 0;
+		for (int i = 0; i < FRAMES; i++) {
+			int n = rand.nextInt(361);
+			Observation z = new Observation(n);
+			for (int j = 0; j < n; j++)
+				z.addMeasurement((float) (rand.nextDouble() * MathUtil.PI2), (float) (10 * rand.nextDouble()), rand.nextInt(4) != 0);
+
+			frames.add(new TimeFrame(z, new Odometry(rand.nextGaussian(), rand.nextGaussian())));
+			timeStamps.add(time += (float) (0.2 * rand.nextDouble()));
+		}
+	}
+
+	private static void assertFrameEquals(TimeFrame expected, TimeFrame actual, double angleTolerance, double rangeTolerance) {
+		assertEquals(expected.u.dCenter, actual.u.dCenter, 0);
+		assertEquals(expected.u.dTheta, actual.u.dTheta, 0);
+
+		assertEquals(expected.z.getNumberOfMeasurements(), actual.z.getNumberOfMeasurements());
+		for (int j = 0; j < expected.z.getNumberOfMeasurements(); j++) {
+			assertEquals(0, MathUtil.angleConstrain(expected.z.getAngle(j) - actual.z.getAngle(j)), angleTolerance);
+			assertEquals(expected.z.getRange(j), actual.z.getRange(j), rangeTolerance);
+			assertEquals(expected.z.wasHit(j), actual.z.wasHit(j));
+		}
+	}
+
+	private static long readLong(Path file, long offset) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocate(8);
+			while (buffer.hasRemaining())
+				channel.read(buffer, offset + buffer.position());
+			buffer.flip();
+			return buffer.getLong();
+		}
+	}
+
+	private static void truncate(Path file, long size) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			channel.truncate(size);
+		}
+	}
+}
@@ -0,0 +1,90 @@
+/*******************************************************************************
+ *  Copyright 2018 Anton Berneving
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *******************************************************************************/
+package com.fmsz.gridmapgl.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks {@link Util#doDistanceTransformSquared} against the squared distance to the nearest feature found by looking at
+ * every feature, in random regions of grids with few and many features.
+ * 
+ * @author Anton
+ *
+ */
+public class UtilDistanceTransformTest {
+	private static final int WIDTH = 47, HEIGHT = 31;
+
+	@Test
+	public void matchesBruteForce() {
+		Random rand = new Random(1);
+		for (int k = 0; k < 200; k++) {
+			// from a single feature to a third of the cells
+			double density = k % 4 == 0 ? 0.002 : rand.nextDouble() / 3;
+			double[] data = new double[WIDTH * HEIGHT];
+			for (int i = 0; i < data.length; i++)
+				data[i] = rand.nextDouble() < density ? 0 : Util.DISTANCE_INFINITY;
+
+			int minX = rand.nextInt(WIDTH), maxX = minX + rand.nextInt(WIDTH - minX);
+			int minY = rand.nextInt(HEIGHT), maxY = minY + rand.nextInt(HEIGHT - minY);
+			checkTransform(data, minX, minY, maxX, maxY);
+		}
+	}
+
+	@Test
+	public void regionWithoutFeaturesStaysInfinite() {
+		double[] data = new double[WIDTH * HEIGHT];
+		for (int i = 0; i < data.length; i++)
+			data[i] = Util.DISTANCE_INFINITY;
+		data[0] = 0;
+
+		// the only feature is outside of the region
+		checkTransform(data, 5, 3, WIDTH - 1, HEIGHT - 1);
+	}
+
+	// transforms data inside the region and compares it to the brute force transform, and the rest of data to the input
+	private static void checkTransform(double[] data, int minX, int minY, int maxX, int maxY) {
+		double[] input = data.clone();
+		int n = Math.max(maxX - minX, maxY - minY) + 1;
+		Util.doDistanceTransformSquared(data, WIDTH, HEIGHT, minX, minY, maxX, maxY, new double[n], new double[n], new int[n],
+				new double[n + 1]);
+
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				int i = x + y * WIDTH;
+				if (x < minX || x > maxX || y < minY || y > maxY) {
+					assertEquals(input[i], data[i], 0);
+					continue;
+				}
+
+				double expected = Util.DISTANCE_INFINITY;
+				for (int fy = minY; fy <= maxY; fy++)
+					for (int fx = minX; fx <= maxX; fx++)
+						if (input[fx + fy * WIDTH] == 0)
+							expected = Math.min(expected, (fx - x) * (fx - x) + (fy - y) * (fy - y));
+
+				if (expected == Util.DISTANCE_INFINITY)
+					assertTrue("cell " + x + ", " + y, data[i] >= Util.DISTANCE_INFINITY);
+				else
+					assertEquals("cell " + x + ", " + y, expected, data[i], 0);
+			}
+		}
+	}
+}
@@ -0,0 +1,143 @@
+/*******************************************************************************
+ *  Copyright 2018 Anton Berneving
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *******************************************************************************/
+package com.fmsz.gridmapgl.graphics;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.fmsz.gridmapgl.graphics.PrimitiveRenderer.IBatchSink;
+import com.fmsz.gridmapgl.graphics.gl.VertexRing;
+
+import glm_.mat4x4.Mat4;
+
+/**
+ * Checks the batches {@link PrimitiveRenderer} hands to its sink, using a sink that records them instead of drawing, so
+ * that no GL context is needed.
+ * 
+ */
+public class PrimitiveRendererTest {
+	// the primitive type passed along, the value does not matter to the renderer (GL_LINES)
+	private static final int LINES = 1;
+
+	/** Records the batches, and places them in a ring like the streaming buffer does */
+	private static class RecordingSink implements IBatchSink {
+		final ArrayList<float[]> batches = new ArrayList<>();
+		final ArrayList<Integer> types = new ArrayList<>();
+		final VertexRing ring;
+		boolean disposed = false;
+
+		RecordingSink(int capacity) {
+			ring = new VertexRing(capacity);
+		}
+
+		@Override
+		public void draw(int primitiveType, float[] vertices, int vertexCount, Mat4 projModelView) {
+			batches.add(Arrays.copyOf(vertices, vertexCount * PrimitiveRenderer.FLOATS_PER_VERTEX));
+			types.add(primitiveType);
+			ring.allocate(vertexCount);
+		}
+
+		@Override
+		public void dispose() {
+			disposed = true;
+		}
+	}
+
+	@Test
+	public void endHandsTheVerticesToTheSink() {
+		RecordingSink sink = new RecordingSink(100);
+		PrimitiveRenderer renderer = new PrimitiveRenderer(10, sink);
+
+		float red = Color.colorToFloatBits(1, 0, 0, 1), green = Color.colorToFloatBits(0, 1, 0, 1);
+		renderer.begin(LINES);
+		renderer.color(red);
+		renderer.vertex(1, 2, 3);
+		renderer.color(green);
+		renderer.vertex(4, 5, 6);
+		renderer.end();
+
+		assertEquals(1, sink.batches.size());
+		assertEquals(LINES, (int) sink.types.get(0));
+		assertArrayEquals(new float[] { 1, 2, 3, red, 4, 5, 6, green }, sink.batches.get(0), 0);
+		assertEquals(1, renderer.getBatches());
+		assertEquals(2, renderer.getBatchedVertices());
+		assertEquals(0, renderer.getVertexCount());
+	}
+
+	@Test
+	public void fullBatchIsFlushed() {
+		RecordingSink sink = new RecordingSink(100);
+		PrimitiveRenderer renderer = new PrimitiveRenderer(4, sink);
+
+		renderer.begin(LINES);
+		for (int i = 0; i < 10; i++)
+			renderer.vertex(i, 0, 0);
+		renderer.end();
+
+		// batches of 4, 4 and 2 vertices, in order
+		assertEquals(3, sink.batches.size());
+		assertEquals(16, sink.batches.get(0).length);
+		assertEquals(16, sink.batches.get(1).length);
+		assertEquals(8, sink.batches.get(2).length);
+		assertEquals(4, sink.batches.get(1)[0], 0);
+		assertEquals(8, sink.batches.get(2)[0], 0);
+		assertEquals(LINES, (int) sink.types.get(2));
+
+		assertEquals(3, renderer.getBatches());
+		assertEquals(10, renderer.getBatchedVertices());
+	}
+
+	@Test
+	public void emptyBatchIsNotDrawn() {
+		RecordingSink sink = new RecordingSink(100);
+		PrimitiveRenderer renderer = new PrimitiveRenderer(4, sink);
+
+		renderer.begin(LINES);
+		renderer.end();
+		assertEquals(0, sink.batches.size());
+		assertEquals(0, renderer.getBatches());
+	}
+
+	@Test
+	public void ringOnlyWrapsWhenFull() {
+		// a ring of 8 full batches, like the one of the default sink
+		RecordingSink sink = new RecordingSink(8 * 100);
+		PrimitiveRenderer renderer = new PrimitiveRenderer(100, sink);
+
+		renderer.begin(LINES);
+		for (int i = 0; i < 1000; i++)
+			renderer.vertex(i, i, 0);
+		renderer.end();
+
+		// 1000 vertices are 10 full batches, the ring wraps before the ninth
+		assertEquals(10, renderer.getBatches());
+		assertEquals(1, sink.ring.getWraps());
+		assertEquals(200, sink.ring.getHead());
+	}
+
+	@Test
+	public void disposeDisposesTheSink() {
+		RecordingSink sink = new RecordingSink(100);
+		new PrimitiveRenderer(4, sink).dispose();
+		assertTrue(sink.disposed);
+	}
+}
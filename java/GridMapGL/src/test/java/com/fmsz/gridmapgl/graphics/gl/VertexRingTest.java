@@ -0,0 +1,84 @@
+/*******************************************************************************
+ *  Copyright 2018 Anton Berneving
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *******************************************************************************/
+package com.fmsz.gridmapgl.graphics.gl;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Checks where {@link VertexRing} places the batches and when it wraps.
+ * 
+ */
+public class VertexRingTest {
+
+	@Test
+	public void batchesArePlacedAfterEachOther() {
+		VertexRing ring = new VertexRing(100);
+		assertEquals(0, ring.allocate(30));
+		assertEquals(30, ring.allocate(50));
+		assertEquals(80, ring.getHead());
+		assertEquals(0, ring.getWraps());
+	}
+
+	@Test
+	public void batchFillingTheRingExactlyDoesNotWrap() {
+		VertexRing ring = new VertexRing(100);
+		ring.allocate(60);
+		assertEquals(60, ring.allocate(40));
+		assertEquals(0, ring.getWraps());
+
+		// the next batch starts over
+		assertEquals(0, ring.allocate(1));
+		assertEquals(1, ring.getWraps());
+	}
+
+	@Test
+	public void wrapsWhenTheBatchDoesNotFit() {
+		VertexRing ring = new VertexRing(100);
+		ring.allocate(60);
+		assertEquals(0, ring.allocate(50));
+		assertEquals(50, ring.getHead());
+		assertEquals(1, ring.getWraps());
+	}
+
+	@Test
+	public void countsBatchesAndVertices() {
+		// full batches of 10 vertices in a ring of 8 batches wrap once every 8 batches
+		VertexRing ring = new VertexRing(80);
+		for (int i = 0; i < 100; i++)
+			assertEquals(10 * (i % 8), ring.allocate(10));
+
+		assertEquals(100, ring.getAllocations());
+		assertEquals(1000, ring.getAllocatedVertices());
+		assertEquals(99 / 8, ring.getWraps());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void batchLargerThanTheRingIsRejected() {
+		new VertexRing(100).allocate(101);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void negativeBatchIsRejected() {
+		new VertexRing(100).allocate(-1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void emptyRingIsRejected() {
+		new VertexRing(0);
+	}
+}
@@ -0,0 +1,150 @@
+/*******************************************************************************
+ *  Copyright 2018 Anton Berneving
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *******************************************************************************/
+package com.fmsz.gridmapgl.slam;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.fmsz.gridmapgl.math.MathUtil;
+import com.fmsz.gridmapgl.slam.GridMap.GridMapData;
+
+import glm_.vec2.Vec2;
+
+/**
+ * Checks that {@link CorrelativeScanMatcher} finds the same best score as an exhaustive search over the same rotations and
+ * translations, also when the search window reaches outside of the map.
+ * 
+ * @author Anton
+ *
+ */
+public class CorrelativeScanMatcherTest {
+	private static final int BEAMS = 90, RUNS = 10;
+
+	@Test
+	public void matchesExhaustiveSearchNearTheEdge() {
+		// the walls of the room are 0.2 m from the low edges of the map, so the window reaches far outside of it
+		GridMap gridMap = new GridMap(4.4f, 3.4f, 0.05f, new Vec2(-2.2f, -1.7f));
+		checkAgainstExhaustive(gridMap, 1.0, 45 * MathUtil.DEG_TO_RAD);
+		checkAgainstExhaustive(gridMap, 0.3, 20 * MathUtil.DEG_TO_RAD);
+	}
+
+	@Test
+	public void matchesExhaustiveSearchInTheMiddle() {
+		GridMap gridMap = new GridMap(6, 6, 0.05f, new Vec2(-3, -3));
+		checkAgainstExhaustive(gridMap, 1.0, 45 * MathUtil.DEG_TO_RAD);
+	}
+
+	private static void checkAgainstExhaustive(GridMap gridMap, double linearWindow, double angularWindow) {
+		GridMapData map = gridMap.createMapData(null);
+		for (int i = 0; i < 3; i++)
+			gridMap.integrateObservation(map, scanRoom(new Pose(0, 0, 0)), new Pose(0, 0, 0));
+		gridMap.computeLikelihoodMap(map);
+
+		CorrelativeScanMatcher matcher = new CorrelativeScanMatcher(gridMap);
+		Random rand = new Random(2);
+		for (int run = 0; run < RUNS; run++) {
+			Pose truePose = new Pose((float) rand.nextGaussian() * 0.2f, (float) rand.nextGaussian() * 0.2f, (float) rand.nextGaussian() * 0.2f);
+			Observation obs = scanRoom(truePose);
+			Pose start = new Pose(truePose.x + (float) rand.nextGaussian() * 0.2f, truePose.y + (float) rand.nextGaussian() * 0.2f,
+					truePose.theta + (float) rand.nextGaussian() * 0.1f);
+
+			Pose match = matcher.match(map, obs, start, linearWindow, angularWindow);
+			new Exhaustive(gridMap, map, obs, start, linearWindow, angularWindow).check(match);
+		}
+	}
+
+	/** Scores every rotation and translation the matcher considers, the same way the matcher places the hits in cells */
+	private static class Exhaustive {
+		final GridMap gridMap;
+		final GridMapData map;
+		final Observation obs;
+		final Pose start;
+		final double angleStep;
+		final int angles, window;
+
+		Exhaustive(GridMap gridMap, GridMapData map, Observation obs, Pose start, double linearWindow, double angularWindow) {
+			this.gridMap = gridMap;
+			this.map = map;
+			this.obs = obs;
+			this.start = start;
+
+			// the same steps as the matcher, one cell at the end of the longest measurement
+			final float resolution = gridMap.getResolution();
+			double maxRange = 0;
+			BitSet hits = obs.getHits();
+			for (int i = hits.nextSetBit(0); i >= 0; i = hits.nextSetBit(i + 1))
+				maxRange = Math.max(maxRange, Math.sqrt(obs.getLocalX(i) * obs.getLocalX(i) + obs.getLocalY(i) * obs.getLocalY(i)));
+			angleStep = Math.acos(1 - resolution * resolution / (2 * maxRange * maxRange));
+			angles = (int) Math.ceil(angularWindow / angleStep);
+			window = (int) Math.ceil(linearWindow / resolution);
+		}
+
+		void check(Pose match) {
+			double best = Double.NEGATIVE_INFINITY;
+			for (int a = -angles; a <= angles; a++)
+				for (int dx = -window; dx <= window; dx++)
+					for (int dy = -window; dy <= window; dy++)
+						best = Math.max(best, score(a, dx, dy));
+
+			final float resolution = gridMap.getResolution();
+			int a = (int) Math.round((match.theta - start.theta) / angleStep);
+			int dx = Math.round((match.x - start.x) / resolution), dy = Math.round((match.y - start.y) / resolution);
+			assertEquals("match from " + start, best, score(a, dx, dy), 1e-6);
+		}
+
+		// the score of the hits rotated by a steps and moved dx, dy cells
+		double score(int a, int dx, int dy) {
+			final Vec2 position = gridMap.getPosition();
+			final float resolution = gridMap.getResolution();
+			final int width = map.likelihoodData.getWidth(), height = map.likelihoodData.getHeight();
+			double theta = start.theta + a * angleStep, cos = MathUtil.cos(theta), sin = MathUtil.sin(theta);
+
+			double sum = 0;
+			BitSet hits = obs.getHits();
+			for (int i = hits.nextSetBit(0); i >= 0; i = hits.nextSetBit(i + 1)) {
+				float hx = obs.getLocalX(i), hy = obs.getLocalY(i);
+				int x = (int) Math.floor((hx * cos - hy * sin + start.x - position.getX()) / resolution) + dx;
+				int y = (int) Math.floor((hx * sin + hy * cos + start.y - position.getY()) / resolution) + dy;
+
+				// the matcher stores the cell scores as floats, and scores the measurements outside of the map worst
+				double likelihood = x >= 0 && y >= 0 && x < width && y < height ? map.likelihoodData.get(x, y) : 0;
+				sum += (float) Math.log(gridMap.measurementProbability(likelihood));
+			}
+			return sum;
+		}
+	}
+
+	// simulates a scan of a 4x3 m room centered at the origin with a pillar, in the local frame of the pose
+	private static Observation scanRoom(Pose pose) {
+		Observation obs = new Observation(BEAMS);
+		for (int i = 0; i < BEAMS; i++) {
+			double angle = 2 * Math.PI * i / BEAMS, c = Math.cos(angle + pose.theta), s = Math.sin(angle + pose.theta);
+			double t = Math.min(c > 0 ? (2 - pose.x) / c : c < 0 ? (-2 - pose.x) / c : Double.MAX_VALUE,
+					s > 0 ? (1.5 - pose.y) / s : s < 0 ? (-1.5 - pose.y) / s : Double.MAX_VALUE);
+
+			// a pillar with a radius of 0.2 m at (0.8, 0.5)
+			double ox = pose.x - 0.8, oy = pose.y - 0.5, b = ox * c + oy * s, d = b * b - (ox * ox + oy * oy - 0.04);
+			if (d > 0 && -b - Math.sqrt(d) > 0)
+				t = Math.min(t, -b - Math.sqrt(d));
+			obs.addMeasurement((float) angle, (float) t, true);
+		}
+		return obs;
+	}
+}
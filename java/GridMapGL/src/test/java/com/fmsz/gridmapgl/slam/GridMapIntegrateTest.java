@@ -0,0 +1,86 @@
+/*******************************************************************************
+ *  Copyright 2018 Anton Berneving
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *******************************************************************************/
+package com.fmsz.gridmapgl.slam;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.fmsz.gridmapgl.app.Util;
+import com.fmsz.gridmapgl.math.Transform;
+import com.fmsz.gridmapgl.slam.GridMap.GridMapData;
+
+import glm_.vec2.Vec2;
+import glm_.vec2.Vec2i;
+
+/**
+ * Checks that {@link GridMap#integrateObservation(GridMapData, Observation, Pose)}, which evaluates the sensor model on
+ * squared distances and adds precomputed log-odds, gives the same map as evaluating a sqrt and a log for each visited cell.
+ * 
+ * @author Anton
+ *
+ */
+public class GridMapIntegrateTest {
+	private static final int BEAMS = 360, SCANS = 20;
+
+	@Test
+	public void integrateMatchesReference() {
+		GridMap gridMap = new GridMap(10, 10, 0.05f, new Vec2(-5, -5));
+		GridMapData map = gridMap.createMapData(null), reference = gridMap.createMapData(null);
+		RayIterator rayIterator = new RayIterator(200, 200);
+
+		// scans with beams between 0 and 4.5 m, some of them misses, from random poses
+		Random rand = new Random(3);
+		for (int k = 0; k < SCANS; k++) {
+			Observation obs = new Observation(BEAMS);
+			for (int i = 0; i < BEAMS; i++)
+				obs.addMeasurement((float) Math.toRadians(i), (float) (4.5 * rand.nextDouble()), rand.nextInt(5) != 0);
+			Pose pose = new Pose((float) rand.nextGaussian(), (float) rand.nextGaussian(), (float) (rand.nextDouble() * 2 * Math.PI));
+
+			gridMap.integrateObservation(map, obs, pose);
+			integrateReference(gridMap, reference, rayIterator, obs, pose);
+		}
+
+		for (int y = 0; y < map.logData.getHeight(); y++)
+			for (int x = 0; x < map.logData.getWidth(); x++)
+				assertEquals("cell " + x + ", " + y, reference.logData.get(x, y), map.logData.get(x, y), 1e-9);
+	}
+
+	// the original implementation of GridMap.integrateObservation and applyMeasurement
+	private static void integrateReference(GridMap gridMap, GridMapData map, RayIterator rayIterator, Observation obs, Pose p) {
+		Vec2 position = gridMap.getPosition();
+		float resolution = gridMap.getResolution();
+		Transform localToWorld = Transform.fromRobotToWorld(p);
+		float startX = (float) ((localToWorld.transformX(0, 0) - position.getX()) / resolution);
+		float startY = (float) ((localToWorld.transformY(0, 0) - position.getY()) / resolution);
+
+		for (int i = 0; i < obs.getNumberOfMeasurements(); i++) {
+			float endX = (float) ((localToWorld.transformX(obs.getLocalX(i), obs.getLocalY(i)) - position.getX()) / resolution);
+			float endY = (float) ((localToWorld.transformY(obs.getLocalX(i), obs.getLocalY(i)) - position.getY()) / resolution);
+			float measuredDistance = obs.getRange(i) / resolution;
+
+			rayIterator.init(startX + 0.5f, startY + 0.5f, endX + 0.5f, endY + 0.5f, 2);
+			while (rayIterator.hasNext()) {
+				Vec2i cell = rayIterator.next();
+				float dX = startX - (cell.getX() + 0.5f), dY = startY - (cell.getY() + 0.5f);
+				float distance = (float) Math.sqrt(dX * dX + dY * dY);
+				map.logData.add(cell.getX(), cell.getY(), Util.logOdds(SensorModel.inverseSensorModel(distance, measuredDistance, obs.wasHit(i), 2)));
+			}
+		}
+	}
+}
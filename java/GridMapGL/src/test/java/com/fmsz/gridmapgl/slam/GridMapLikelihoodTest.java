@@ -0,0 +1,90 @@
+/*******************************************************************************
+ *  Copyright 2018 Anton Berneving
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *******************************************************************************/
+package com.fmsz.gridmapgl.slam;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.fmsz.gridmapgl.slam.GridMap.GridMapData;
+import com.fmsz.gridmapgl.slam.GridMap.LikelihoodField;
+
+import glm_.vec2.Vec2;
+
+/**
+ * Checks that {@link GridMap#computeLikelihoodMap(GridMapData)}, which only recomputes the likelihood field around the
+ * cells changed since it was last computed, gives the same field as computing all of it, for both kinds of field.
+ * 
+ * @author Anton
+ *
+ */
+public class GridMapLikelihoodTest {
+	private static final int BEAMS = 180, SCANS = 20;
+
+	@Test
+	public void incrementalBlurMatchesFullRecompute() {
+		checkIncremental(LikelihoodField.GAUSSIAN_BLUR, 1);
+	}
+
+	@Test
+	public void incrementalDistanceTransformMatchesFullRecompute() {
+		checkIncremental(LikelihoodField.DISTANCE_TRANSFORM, 2);
+	}
+
+	private static void checkIncremental(LikelihoodField likelihoodField, long seed) {
+		GridMap gridMap = new GridMap(8, 8, 0.05f, new Vec2(-4, -4));
+		gridMap.setLikelihoodField(likelihoodField);
+		GridMapData map = gridMap.createMapData(null);
+		gridMap.computeLikelihoodMap(map);
+
+		// short scans from random poses, so that each one only changes a part of the map
+		Random rand = new Random(seed);
+		int width = map.likelihoodData.getWidth(), height = map.likelihoodData.getHeight();
+		for (int k = 0; k < SCANS; k++) {
+			Observation obs = new Observation(BEAMS);
+			for (int i = 0; i < BEAMS; i++)
+				obs.addMeasurement((float) Math.toRadians(2 * i), (float) (0.3 + 1.5 * rand.nextDouble()), rand.nextInt(5) != 0);
+			Pose pose = new Pose((float) (4 * rand.nextDouble() - 2), (float) (4 * rand.nextDouble() - 2),
+					(float) (rand.nextDouble() * 2 * Math.PI));
+
+			gridMap.integrateObservation(map, obs, pose);
+			gridMap.computeLikelihoodMap(map);
+
+			// a copy with all of its field recomputed, the original keeps its tiles
+			GridMapData reference = gridMap.createMapData(map);
+			gridMap.invalidateLikelihoodMap(reference);
+			gridMap.computeLikelihoodMap(reference);
+
+			int explored = 0;
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					double expected = reference.likelihoodData.get(x, y);
+					assertEquals("scan " + k + " cell " + x + ", " + y, expected, map.likelihoodData.get(x, y), 1e-12);
+					if (expected != 0.5)
+						explored++;
+				}
+			}
+			assertTrue(explored > 0);
+
+			reference.release();
+		}
+
+		map.release();
+	}
+}
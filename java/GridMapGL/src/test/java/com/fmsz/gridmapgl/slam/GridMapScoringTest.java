@@ -0,0 +1,140 @@
+/*******************************************************************************
+ *  Copyright 2018 Anton Berneving
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *******************************************************************************/
+package com.fmsz.gridmapgl.slam;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.fmsz.gridmapgl.slam.GridMap.CellStorage;
+import com.fmsz.gridmapgl.slam.GridMap.GridMapData;
+
+import glm_.vec2.Vec2;
+
+/**
+ * Checks that the batched {@link GridMap#logProbabilityOf(GridMapData, Observation, Pose)} gives the same scores as the
+ * original {@link GridMap#probabilityOfScalar(GridMapData, Observation, Pose)}.
+ * 
+ * @author Anton
+ *
+ */
+public class GridMapScoringTest {
+	private static final int BEAMS = 360, POSES = 200;
+
+	/** the largest allowed difference between the logarithms of the scores, they only differ by rounding */
+	private static final double TOLERANCE = 1e-9;
+
+	@Test
+	public void batchedMatchesScalar() {
+		for (CellStorage storage : CellStorage.values()) {
+			GridMap gridMap = new GridMap(6, 6, 0.05f, new Vec2(-3, -3), storage);
+			GridMapData map = createRoomMap(gridMap);
+			Observation obs = scanRoom(new Pose(0, 0, 0), BEAMS);
+
+			// poses around the true one, like the ones the optimizer tries
+			Random rand = new Random(1);
+			int compared = 0;
+			for (int i = 0; i < POSES; i++) {
+				Pose p = new Pose((float) rand.nextGaussian() * 0.1f, (float) rand.nextGaussian() * 0.1f, (float) rand.nextGaussian() * 0.1f);
+				double scalar = gridMap.probabilityOfScalar(map, obs, p);
+
+				// the scalar version underflows for poor poses, which is why the batched one works in log space
+				if (scalar < Double.MIN_NORMAL)
+					continue;
+
+				assertEquals(storage + " " + p, Math.log(scalar), gridMap.logProbabilityOf(map, obs, p), TOLERANCE);
+				compared++;
+			}
+			assertTrue(storage + ": too few poses compared", compared > POSES / 2);
+		}
+	}
+
+	@Test
+	public void scorePosesMatchesLogProbabilityOf() {
+		GridMap gridMap = new GridMap(6, 6, 0.05f, new Vec2(-3, -3));
+		GridMapData map = createRoomMap(gridMap);
+		Observation obs = scanRoom(new Pose(0, 0, 0), BEAMS);
+
+		// candidates in random order sharing a few rotations, like a search over a grid of poses
+		Random rand = new Random(2);
+		float[] xs = new float[POSES], ys = new float[POSES], thetas = new float[POSES];
+		for (int i = 0; i < POSES; i++) {
+			xs[i] = (float) rand.nextGaussian() * 0.1f;
+			ys[i] = (float) rand.nextGaussian() * 0.1f;
+			thetas[i] = (rand.nextInt(7) - 3) * 0.05f;
+		}
+
+		double[] out = new double[POSES];
+		gridMap.scorePoses(map, obs, xs, ys, thetas, out);
+		for (int i = 0; i < POSES; i++)
+			assertEquals(gridMap.logProbabilityOf(map, obs, new Pose(xs[i], ys[i], thetas[i])), out[i], 0);
+	}
+
+	@Test
+	public void probabilityOfFollowsBatchedScoring() {
+		GridMap gridMap = new GridMap(6, 6, 0.05f, new Vec2(-3, -3));
+		GridMapData map = createRoomMap(gridMap);
+		Observation obs = scanRoom(new Pose(0, 0, 0), BEAMS);
+		Pose p = new Pose(0.05f, -0.03f, 0.02f);
+
+		gridMap.setBatchedScoring(false);
+		assertEquals(gridMap.probabilityOfScalar(map, obs, p), gridMap.probabilityOf(map, obs, p), 0);
+
+		gridMap.setBatchedScoring(true);
+		assertEquals(Math.exp(gridMap.logProbabilityOf(map, obs, p)), gridMap.probabilityOf(map, obs, p), 0);
+	}
+
+	@Test
+	public void unexploredMapMatchesScalar() {
+		// every measurement ends in an unexplored cell, which both versions must treat the same for every storage. Few beams
+		// are used so that the scalar version does not underflow
+		for (CellStorage storage : CellStorage.values()) {
+			GridMap gridMap = new GridMap(6, 6, 0.05f, new Vec2(-3, -3), storage);
+			GridMapData map = gridMap.createMapData(null);
+			gridMap.computeLikelihoodMap(map);
+
+			Observation obs = scanRoom(new Pose(0, 0, 0), 36);
+			Pose p = new Pose(0.1f, 0.1f, 0.1f);
+			assertEquals(storage.toString(), Math.log(gridMap.probabilityOfScalar(map, obs, p)), gridMap.logProbabilityOf(map, obs, p), TOLERANCE);
+		}
+	}
+
+	// a map of a 4x3 m room centered at the origin, built from a few scans
+	private static GridMapData createRoomMap(GridMap gridMap) {
+		GridMapData map = gridMap.createMapData(null);
+		for (int i = 0; i < 5; i++) {
+			Pose pose = new Pose(0.1f * i, 0.05f * i, 0.1f * i);
+			gridMap.integrateObservation(map, scanRoom(pose, BEAMS), pose);
+		}
+		gridMap.computeLikelihoodMap(map);
+		return map;
+	}
+
+	// simulates a scan of the room with the given number of evenly spaced beams, in the local frame of the pose
+	private static Observation scanRoom(Pose pose, int beams) {
+		Observation obs = new Observation(beams);
+		for (int i = 0; i < beams; i++) {
+			double angle = 2 * Math.PI * i / beams, c = Math.cos(angle + pose.theta), s = Math.sin(angle + pose.theta);
+			double t = Math.min(c > 0 ? (2 - pose.x) / c : c < 0 ? (-2 - pose.x) / c : Double.MAX_VALUE,
+					s > 0 ? (1.5 - pose.y) / s : s < 0 ? (-1.5 - pose.y) / s : Double.MAX_VALUE);
+			obs.addMeasurement((float) angle, (float) t, true);
+		}
+		return obs;
+	}
+}
@@ -0,0 +1,176 @@
+/*******************************************************************************
+ *  Copyright 2018 Anton Berneving
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *******************************************************************************/
+package com.fmsz.gridmapgl.slam;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.fmsz.gridmapgl.slam.GridMap.GridMapData;
+
+import glm_.vec2.Vec2;
+
+/**
+ * Checks that copies of a {@link TiledGrid} share their tiles until one of them writes to a tile, that only that tile is
+ * copied, and that releasing a grid lets the others own the tiles again. Every check runs for all three cell storages.
+ * 
+ * @author Anton
+ *
+ */
+public class TiledGridTest {
+	/** not a multiple of the tile size, so that the last row and column of tiles are partly outside of the grid */
+	private static final int WIDTH = 3 * TiledGrid.TILE_SIZE + 5, HEIGHT = 2 * TiledGrid.TILE_SIZE + 9;
+
+	/** values that all storages hold exactly */
+	private static final double FILL = 0.5, VALUE = 1.25, OTHER_VALUE = -2.75;
+
+	private static TiledGrid[] createGrids() {
+		return new TiledGrid[] { new DoubleTiledGrid(WIDTH, HEIGHT, FILL), new FloatTiledGrid(WIDTH, HEIGHT, FILL),
+				new ShortTiledGrid(WIDTH, HEIGHT, FILL, 1 / 64.0) };
+	}
+
+	@Test
+	public void copySharesAllTiles() {
+		for (TiledGrid grid : createGrids()) {
+			// three tiles of their own, the rest share the filled tile
+			grid.set(0, 0, VALUE);
+			grid.set(TiledGrid.TILE_SIZE, 0, VALUE);
+			grid.set(WIDTH - 1, HEIGHT - 1, VALUE);
+			assertEquals(3, grid.getExclusiveTileCount());
+
+			TiledGrid copy = grid.copy();
+			assertEquals(0, grid.getExclusiveTileCount());
+			assertEquals(0, copy.getExclusiveTileCount());
+			for (int ty = 0; ty < grid.getTilesY(); ty++)
+				for (int tx = 0; tx < grid.getTilesX(); tx++)
+					assertTrue(grid.getTileKey(tx, ty) == copy.getTileKey(tx, ty));
+			assertGridEquals(grid, copy);
+		}
+	}
+
+	@Test
+	public void writeCopiesOnlyThatTile() {
+		for (TiledGrid grid : createGrids()) {
+			grid.set(0, 0, VALUE);
+			grid.set(WIDTH - 1, HEIGHT - 1, VALUE);
+			TiledGrid copy = grid.copy();
+
+			copy.set(1, 1, OTHER_VALUE);
+			assertEquals(FILL, grid.get(1, 1), 0);
+			assertEquals(OTHER_VALUE, copy.get(1, 1), 0);
+			assertEquals(VALUE, copy.get(0, 0), 0);
+
+			// the written tile now belongs to each grid alone, the others are still shared
+			assertEquals(1, grid.getExclusiveTileCount());
+			assertEquals(1, copy.getExclusiveTileCount());
+			assertTrue(grid.getTileKey(0, 0) != copy.getTileKey(0, 0));
+			assertTrue(grid.getTileKey(grid.getTilesX() - 1, grid.getTilesY() - 1) == copy.getTileKey(grid.getTilesX() - 1,
+					grid.getTilesY() - 1));
+
+			// writing to a tile that is already private does not copy it again
+			Object key = copy.getTileKey(0, 0);
+			int version = copy.getTileVersion(0, 0);
+			copy.add(2, 2, VALUE);
+			assertTrue(key == copy.getTileKey(0, 0));
+			assertTrue(copy.getTileVersion(0, 0) > version);
+			assertEquals(FILL, grid.get(2, 2), 0);
+		}
+	}
+
+	@Test
+	public void copyFromOnlyTouchesTheCopy() {
+		Random rand = new Random(1);
+		double[] values = new double[WIDTH * HEIGHT];
+		for (int i = 0; i < values.length; i++)
+			values[i] = rand.nextInt(256) / 64.0;
+
+		for (TiledGrid grid : createGrids()) {
+			TiledGrid copy = grid.copy();
+
+			// covers the first tile completely and the ones around it partly
+			int maxX = TiledGrid.TILE_SIZE + 3, maxY = TiledGrid.TILE_SIZE + 3;
+			copy.copyFrom(values, 0, 0, maxX, maxY);
+			for (int y = 0; y < HEIGHT; y++) {
+				for (int x = 0; x < WIDTH; x++) {
+					assertEquals(FILL, grid.get(x, y), 0);
+					assertEquals(x <= maxX && y <= maxY ? values[x + y * WIDTH] : FILL, copy.get(x, y), 0);
+				}
+			}
+			assertEquals(4, copy.getExclusiveTileCount());
+		}
+	}
+
+	@Test
+	public void releaseLetsTheOthersOwnTheTiles() {
+		for (TiledGrid grid : createGrids()) {
+			grid.set(0, 0, VALUE);
+			grid.set(TiledGrid.TILE_SIZE, TiledGrid.TILE_SIZE, VALUE);
+			TiledGrid first = grid.copy(), second = grid.copy();
+			assertEquals(0, grid.getExclusiveTileCount());
+
+			first.release();
+			assertEquals(0, grid.getExclusiveTileCount());
+			second.release();
+			assertEquals(2, grid.getExclusiveTileCount());
+
+			// and the last owner writes without copying
+			Object key = grid.getTileKey(0, 0);
+			grid.set(1, 0, OTHER_VALUE);
+			assertTrue(key == grid.getTileKey(0, 0));
+		}
+	}
+
+	@Test
+	public void integratingIntoACopyKeepsTheOriginal() {
+		GridMap gridMap = new GridMap(6, 6, 0.05f, new Vec2(-3, -3));
+		GridMapData map = gridMap.createMapData(null);
+
+		Random rand = new Random(2);
+		Observation obs = new Observation(90);
+		for (int i = 0; i < 90; i++)
+			obs.addMeasurement((float) Math.toRadians(4 * i), (float) (2.5 * rand.nextDouble()), true);
+		gridMap.integrateObservation(map, obs, new Pose(0, 0, 0));
+
+		double[] before = new double[map.logData.getWidth() * map.logData.getHeight()];
+		map.logData.copyTo(before);
+
+		// a resampled particle integrates the next scan into its copy of the map
+		GridMapData copy = gridMap.createMapData(map);
+		gridMap.integrateObservation(copy, obs, new Pose(0.5f, 0, 0.3f));
+
+		double[] after = new double[before.length];
+		map.logData.copyTo(after);
+		for (int i = 0; i < before.length; i++)
+			assertEquals(before[i], after[i], 0);
+
+		// only the tiles around the second scan were copied
+		int tiles = map.logData.getTilesX() * map.logData.getTilesY();
+		assertTrue(copy.logData.getExclusiveTileCount() > 0);
+		assertTrue(copy.logData.getExclusiveTileCount() < tiles);
+
+		copy.release();
+		map.release();
+	}
+
+	private static void assertGridEquals(TiledGrid expected, TiledGrid actual) {
+		for (int y = 0; y < HEIGHT; y++)
+			for (int x = 0; x < WIDTH; x++)
+				assertEquals(expected.get(x, y), actual.get(x, y), 0);
+	}
+}